@@ -0,0 +1,139 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * AsyncDataService runs DataService calls in the background, so that independent reads and writes can overlap
+ * instead of waiting for each other. Every call returns straight away with a Future; if the call fails, getting the
+ * result throws an ExecutionException whose cause is the InvalidSchemaException or DatastoreException the
+ * corresponding DataService method would have thrown.
+ *
+ * <code>
+ *     Future&lt;List&lt;SMObject&gt;&gt; todos = asyncDataService.readObjects("todo", todoConditions);
+ *     Future&lt;List&lt;SMObject&gt;&gt; users = asyncDataService.readObjects("user", userConditions);
+ *     render(todos.get(), users.get());
+ * </code>
+ */
+public interface AsyncDataService {
+
+  /**
+   * Creates a new object in the datastore in the background.
+   *
+   * @param schema the name of the relevant object schema
+   * @param toCreate the object to create; must match the schema declared for the relevant object type
+   * @return a future representing the object created
+   * @see DataService#createObject(String, SMObject)
+   */
+  Future<SMObject> createObject(String schema, SMObject toCreate);
+
+  /**
+   * Creates a number of new objects in the datastore in the background.
+   *
+   * @param schema the name of the relevant object schema
+   * @param objectsToCreate the objects to create
+   * @return a future representing the ids of objects which were created, and of objects which failed to insert
+   * @see DataService#createObjects(String, List)
+   */
+  Future<BulkResult> createObjects(String schema, List<SMObject> objectsToCreate);
+
+  /**
+   * Reads objects from the datastore in the background.
+   *
+   * @param schema the name of the relevant object model
+   * @param conditions the list of conditions which comprise the query
+   * @return a future representing the objects matching the query
+   * @see DataService#readObjects(String, List)
+   */
+  Future<List<SMObject>> readObjects(String schema, List<SMCondition> conditions);
+
+  /**
+   * Reads objects from the datastore in the background.
+   *
+   * @param schema the name of the relevant object model
+   * @param conditions the list of conditions which comprise the query
+   * @param expandDepth the depth to which a query should be expanded
+   * @param resultFilters the options to be used when filtering the resultset
+   * @return a future representing the objects matching the query
+   * @see DataService#readObjects(String, List, int, ResultFilters)
+   */
+  Future<List<SMObject>> readObjects(String schema, List<SMCondition> conditions, int expandDepth, ResultFilters resultFilters);
+
+  /**
+   * Updates an object in the datastore in the background.
+   *
+   * @param schema the name of the relevant object model
+   * @param id the id of the object to update
+   * @param updateActions the actions to take on the object being updated
+   * @return a future representing the updated object
+   * @see DataService#updateObject(String, SMValue, List)
+   */
+  Future<SMObject> updateObject(String schema, SMValue id, List<SMUpdate> updateActions);
+
+  /**
+   * Updates an object in the datastore in the background, if it meets the given conditions.
+   *
+   * @param schema the name of the relevant object model
+   * @param id the id of the object to update
+   * @param conditions the conditions the object must meet to be updated
+   * @param updateActions the actions to take on the object being updated
+   * @return a future representing the updated object, or null if it didn't meet the conditions
+   * @see DataService#updateObject(String, SMValue, List, List)
+   */
+  Future<SMObject> updateObject(String schema, SMValue id, List<SMCondition> conditions, List<SMUpdate> updateActions);
+
+  /**
+   * Updates a number of objects in the datastore in the background, each with its own update actions.
+   *
+   * @param schema the name of the relevant object model
+   * @param updateActions the actions to take on each object, keyed by the id of the object
+   * @return a future representing the ids of objects which were updated, and of objects which failed to update
+   * @see DataService#updateObjects(String, Map)
+   */
+  Future<BulkResult> updateObjects(String schema, Map<SMValue, List<SMUpdate>> updateActions);
+
+  /**
+   * Deletes an object in the datastore in the background.
+   *
+   * @param schema the name of the relevant object model
+   * @param id the id of the object to delete
+   * @return a future representing success (Boolean.TRUE) or failure (Boolean.FALSE)
+   * @see DataService#deleteObject(String, SMValue)
+   */
+  Future<Boolean> deleteObject(String schema, SMValue id);
+
+  /**
+   * Deletes a number of objects in the datastore in the background.
+   *
+   * @param schema the name of the relevant object model
+   * @param ids the ids of the objects to delete
+   * @return a future representing the ids of objects which were deleted, and of objects which failed to delete
+   * @see DataService#deleteObjects(String, List)
+   */
+  Future<BulkResult> deleteObjects(String schema, List<SMValue> ids);
+
+  /**
+   * Counts the objects in a schema in the background.
+   *
+   * @param schema the name of the object model to count
+   * @return a future representing the number of objects in the schema
+   * @see DataService#countObjects(String)
+   */
+  Future<Long> countObjects(String schema);
+}
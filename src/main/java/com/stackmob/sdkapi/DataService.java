@@ -64,6 +64,19 @@ public interface DataService {
   BulkResult createRelatedObjects(String schema, SMValue objectId, String relatedField, List<SMObject> relatedObjectsToCreate)
           throws InvalidSchemaException, DatastoreException;
 
+  /**
+   * Creates a number of new objects in the datastore in a single request. Each object is created or fails on its own;
+   * one failure doesn't stop the rest from being created.
+   *
+   * @param schema the name of the relevant object schema
+   * @param objectsToCreate the objects to create; each must match the schema declared for the relevant object type
+   * @return a BulkResult containing the ids of objects which were created, and of objects which failed to insert
+   * @throws InvalidSchemaException if the schema is invalid
+   * @throws DatastoreException if the connection to the datastore fails or the datastore encounters an error
+   */
+  BulkResult createObjects(String schema, List<SMObject> objectsToCreate)
+          throws InvalidSchemaException, DatastoreException;
+
   /**
    * Reads a list of objects matching the given query fields from the datastore.
    *
@@ -116,6 +129,24 @@ public interface DataService {
   List<SMObject> readObjects(String schema, List<SMCondition> conditions, int expandDepth, ResultFilters resultFilters)
           throws InvalidSchemaException, DatastoreException;  
 
+  /**
+   * Opens a cursor over the objects matching the given query. The cursor reads the results from the datastore a page
+   * at a time as it is walked, rather than all at once.
+   *
+   * @param schema the name of the relevant object model
+   * @param conditions the list of conditions which comprise the query
+   * @param expandDepth the depth to which a query should be expanded
+   * @param resultFilters the options to be used when filtering the resultset; start and end bound the whole walk, and a
+   *                      continuation is where it starts from. each page after the first resumes from a continuation
+   *                      made from the last object of the page before
+   * @param pageSize the number of objects to read from the datastore at a time
+   * @return a cursor over all documents matching the query
+   * @throws InvalidSchemaException if the schema specified does not exist, or the query is incompatible with the schema
+   * @throws DatastoreException if the connection to the datastore fails or the datastore encounters an error
+   */
+  ObjectCursor readObjectsCursor(String schema, List<SMCondition> conditions, int expandDepth, ResultFilters resultFilters, int pageSize)
+          throws InvalidSchemaException, DatastoreException;
+
   /**
    * Updates an object in the datastore.
    *
@@ -168,6 +199,19 @@ public interface DataService {
   void updateObjects(String schema, List<SMCondition> conditions, List<SMUpdate> updateActions)
           throws InvalidSchemaException, DatastoreException;
 
+  /**
+   * Updates a number of objects in the datastore in a single request, each with its own update actions. Each object
+   * is updated or fails on its own; one failure doesn't stop the rest from being updated.
+   *
+   * @param schema the name of the relevant object model; must be a type already declared for the current application
+   * @param updateActions the actions to take on each object, keyed by the id of the object
+   * @return a BulkResult containing the ids of objects which were updated, and of objects which don't exist or failed to update
+   * @throws InvalidSchemaException if the schema does not exist
+   * @throws DatastoreException if the connection to the datastore fails or the datastore encounters an error
+   */
+  BulkResult updateObjects(String schema, Map<SMValue, List<SMUpdate>> updateActions)
+          throws InvalidSchemaException, DatastoreException;
+
   /**
    * Adds the specified IDs to the specified relationship
    * 
@@ -216,6 +260,17 @@ public interface DataService {
    */
   Boolean deleteObject(String schema, SMValue id) throws InvalidSchemaException, DatastoreException;
 
+  /**
+   * Deletes a number of objects in the datastore in a single request.
+   *
+   * @param schema the name of the relevant object model; must be a type already declared for the current application
+   * @param ids the ids of the objects to delete
+   * @return a BulkResult containing the ids of objects which were deleted, and of objects which don't exist or failed to delete
+   * @throws InvalidSchemaException if the object model specified does not exist
+   * @throws DatastoreException if the connection to the datastore fails or the datastore encounters an error
+   */
+  BulkResult deleteObjects(String schema, List<SMValue> ids) throws InvalidSchemaException, DatastoreException;
+
   /**
    * Removes any number of related objects from a relationship. May also delete the objects removed from the relationship.
    * @param schema the name of the relevant object model; must be a type already declared for the current application
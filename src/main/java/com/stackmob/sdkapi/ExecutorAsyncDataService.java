@@ -0,0 +1,145 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An AsyncDataService which runs the calls of a blocking DataService on an ExecutorService. Independent calls overlap
+ * up to the number of threads the executor has, so size the executor for the number of calls you want in flight.
+ * Use it to get an AsyncDataService for a DataService such as {@link com.stackmob.sdkapi.data.InMemoryDataService}.
+ */
+public class ExecutorAsyncDataService implements AsyncDataService {
+
+  private final DataService dataService;
+  private final ExecutorService executor;
+
+  /**
+   * create a new ExecutorAsyncDataService
+   * @param dataService the data service to make calls on
+   * @param executor the executor to make calls in. it isn't shut down by this class
+   */
+  public ExecutorAsyncDataService(DataService dataService, ExecutorService executor) {
+    this.dataService = dataService;
+    this.executor = executor;
+  }
+
+  @Override
+  public Future<SMObject> createObject(final String schema, final SMObject toCreate) {
+    return executor.submit(new Callable<SMObject>() {
+      @Override
+      public SMObject call() throws Exception {
+        return dataService.createObject(schema, toCreate);
+      }
+    });
+  }
+
+  @Override
+  public Future<BulkResult> createObjects(final String schema, final List<SMObject> objectsToCreate) {
+    return executor.submit(new Callable<BulkResult>() {
+      @Override
+      public BulkResult call() throws Exception {
+        return dataService.createObjects(schema, objectsToCreate);
+      }
+    });
+  }
+
+  @Override
+  public Future<List<SMObject>> readObjects(final String schema, final List<SMCondition> conditions) {
+    return executor.submit(new Callable<List<SMObject>>() {
+      @Override
+      public List<SMObject> call() throws Exception {
+        return dataService.readObjects(schema, conditions);
+      }
+    });
+  }
+
+  @Override
+  public Future<List<SMObject>> readObjects(final String schema, final List<SMCondition> conditions, final int expandDepth,
+                                            final ResultFilters resultFilters) {
+    return executor.submit(new Callable<List<SMObject>>() {
+      @Override
+      public List<SMObject> call() throws Exception {
+        return dataService.readObjects(schema, conditions, expandDepth, resultFilters);
+      }
+    });
+  }
+
+  @Override
+  public Future<SMObject> updateObject(final String schema, final SMValue id, final List<SMUpdate> updateActions) {
+    return executor.submit(new Callable<SMObject>() {
+      @Override
+      public SMObject call() throws Exception {
+        return dataService.updateObject(schema, id, updateActions);
+      }
+    });
+  }
+
+  @Override
+  public Future<SMObject> updateObject(final String schema, final SMValue id, final List<SMCondition> conditions,
+                                       final List<SMUpdate> updateActions) {
+    return executor.submit(new Callable<SMObject>() {
+      @Override
+      public SMObject call() throws Exception {
+        return dataService.updateObject(schema, id, conditions, updateActions);
+      }
+    });
+  }
+
+  @Override
+  public Future<BulkResult> updateObjects(final String schema, final Map<SMValue, List<SMUpdate>> updateActions) {
+    return executor.submit(new Callable<BulkResult>() {
+      @Override
+      public BulkResult call() throws Exception {
+        return dataService.updateObjects(schema, updateActions);
+      }
+    });
+  }
+
+  @Override
+  public Future<Boolean> deleteObject(final String schema, final SMValue id) {
+    return executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return dataService.deleteObject(schema, id);
+      }
+    });
+  }
+
+  @Override
+  public Future<BulkResult> deleteObjects(final String schema, final List<SMValue> ids) {
+    return executor.submit(new Callable<BulkResult>() {
+      @Override
+      public BulkResult call() throws Exception {
+        return dataService.deleteObjects(schema, ids);
+      }
+    });
+  }
+
+  @Override
+  public Future<Long> countObjects(final String schema) {
+    return executor.submit(new Callable<Long>() {
+      @Override
+      public Long call() throws Exception {
+        return dataService.countObjects(schema);
+      }
+    });
+  }
+}
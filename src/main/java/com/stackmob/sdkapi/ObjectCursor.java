@@ -0,0 +1,179 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi;
+
+import com.stackmob.core.DatastoreException;
+import com.stackmob.core.InvalidSchemaException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks the results of a query one object at a time, reading them from the datastore a page at a time. Only one page
+ * is held in memory at once, so a cursor can walk an entire schema without loading it all.
+ *
+ * Each page after the first resumes from a continuation created from the last object of the page before (see
+ * {@link ResultFilters#after(SMObject, String)}), rather than skipping the pages already read, so every page costs the
+ * same however deep the walk is, and objects created or deleted behind the cursor don't make later objects repeat or
+ * get skipped. Queries with an SMNear condition and no orderings are listed by distance, which a continuation can't
+ * resume, so those are paged by position instead.
+ *
+ * <code>
+ *     ObjectCursor cursor = dataService.readObjectsCursor("todo", conditions, 0, filters, 500);
+ *     while(cursor.hasNext()) {
+ *         process(cursor.next());
+ *     }
+ * </code>
+ */
+public class ObjectCursor {
+  private final DataService dataService;
+  private final String schema;
+  private final String idField;
+  private final List<SMCondition> conditions;
+  private final int expandDepth;
+  private final List<SMOrdering> orderings;
+  private final List<String> fields;
+  private final List<String> readFields;
+  private final List<String> extraFields = new ArrayList<String>();
+  private final int pageSize;
+  private final boolean byContinuation;
+
+  private long nextStart;
+  private long remaining;
+  private String continuation;
+  private List<SMObject> page = Collections.emptyList();
+  private int position = 0;
+  private boolean exhausted = false;
+
+  /**
+   * Create a new cursor. Nothing is read until the first call to {@link #hasNext()} or {@link #next()}.
+   *
+   * @param dataService the data service to read pages from
+   * @param schema the name of the relevant object model
+   * @param idField the id field of the schema, which continuations use to order objects with equal sort values
+   * @param conditions the list of conditions which comprise the query
+   * @param expandDepth the depth to which a query should be expanded
+   * @param resultFilters the options to be used when filtering the resultset; start and end bound the whole walk, and a
+   *                      continuation is where it starts from. may be null
+   * @param pageSize the number of objects to read from the datastore at a time
+   */
+  public ObjectCursor(DataService dataService, String schema, String idField, List<SMCondition> conditions, int expandDepth,
+                      ResultFilters resultFilters, int pageSize) {
+    if(pageSize <= 0) {
+      throw new IllegalArgumentException("pageSize must be positive");
+    }
+    this.dataService = dataService;
+    this.schema = schema;
+    this.idField = idField;
+    this.conditions = conditions;
+    this.expandDepth = expandDepth;
+    this.orderings = resultFilters == null ? null : resultFilters.getOrderings();
+    this.fields = resultFilters == null ? null : resultFilters.getFields();
+    this.continuation = resultFilters == null ? null : resultFilters.getContinuation();
+    this.pageSize = pageSize;
+    this.nextStart = resultFilters == null ? 0 : Math.max(resultFilters.getStart(), 0);
+    this.remaining = resultFilters == null || resultFilters.getEnd() < 0 ? -1 : Math.max(resultFilters.getEnd() - nextStart + 1, 0);
+    this.byContinuation = (orderings != null && !orderings.isEmpty()) || !hasNear(conditions);
+    // continuations are made from the ordering fields, so they're read even when the caller didn't ask for them
+    if(fields == null || orderings == null) {
+      this.readFields = fields;
+    } else {
+      this.readFields = new ArrayList<String>(fields);
+      for(SMOrdering ordering : orderings) {
+        if(!readFields.contains(ordering.getField()) && !ordering.getField().equals(idField)) {
+          readFields.add(ordering.getField());
+          extraFields.add(ordering.getField());
+        }
+      }
+    }
+  }
+
+  /**
+   * Determine whether there are more objects, reading the next page if the current one has been used up.
+   *
+   * @return true if there is another object
+   * @throws InvalidSchemaException if the schema specified does not exist, or the query is incompatible with the schema
+   * @throws DatastoreException if the connection to the datastore fails or the datastore encounters an error
+   */
+  public boolean hasNext() throws InvalidSchemaException, DatastoreException {
+    while(position >= page.size()) {
+      if(exhausted) {
+        return false;
+      }
+      readPage();
+    }
+    return true;
+  }
+
+  /**
+   * Get the next object.
+   *
+   * @return the next object
+   * @throws NoSuchElementException if there are no more objects
+   * @throws InvalidSchemaException if the schema specified does not exist, or the query is incompatible with the schema
+   * @throws DatastoreException if the connection to the datastore fails or the datastore encounters an error
+   */
+  public SMObject next() throws InvalidSchemaException, DatastoreException {
+    if(!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return page.get(position++);
+  }
+
+  private void readPage() throws InvalidSchemaException, DatastoreException {
+    // let the consumed page go before reading the next one so that only one is ever reachable
+    page = Collections.emptyList();
+    position = 0;
+    long count = remaining < 0 ? pageSize : Math.min(pageSize, remaining);
+    if(count == 0) {
+      exhausted = true;
+      return;
+    }
+    ResultFilters filters = new ResultFilters(nextStart, nextStart + count - 1, orderings, readFields, continuation);
+    List<SMObject> read = dataService.readObjects(schema, conditions, expandDepth, filters);
+    if(remaining >= 0) {
+      remaining -= read.size();
+    }
+    exhausted = read.size() < count || remaining == 0;
+    if(byContinuation) {
+      if(!read.isEmpty()) {
+        continuation = filters.after(read.get(read.size() - 1), idField).getContinuation();
+      }
+      nextStart = 0;
+    } else {
+      nextStart += count;
+    }
+    if(!extraFields.isEmpty()) {
+      for(SMObject object : read) {
+        object.getValue().keySet().removeAll(extraFields);
+      }
+    }
+    page = read;
+  }
+
+  private static boolean hasNear(List<SMCondition> conditions) {
+    if(conditions != null) {
+      for(SMCondition condition : conditions) {
+        if(condition instanceof SMNear || condition instanceof SMAnd && hasNear(((SMAnd) condition).getClauses())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
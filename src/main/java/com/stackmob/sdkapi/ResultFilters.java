@@ -15,6 +15,8 @@
  */
 package com.stackmob.sdkapi;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -25,6 +27,7 @@ public class ResultFilters {
   private final long end;
   private final List<SMOrdering> ordering;
   private final List<String> fields;
+  private final String continuation;
 
   /**
    * Create a new set of result filters
@@ -34,10 +37,26 @@ public class ResultFilters {
    * @param fields the fields to return in the result set
    */
   public ResultFilters(long start, long end, List<SMOrdering> orderings, List<String> fields) {
+    this(start, end, orderings, fields, null);
+  }
+
+  /**
+   * Create a new set of result filters which resume after a continuation token. Results are sorted by the orderings
+   * and then by id, and start and end count from the first record after the token. Unlike paging with start alone,
+   * reading the next page costs the same however deep it is, and records created or deleted on earlier pages don't
+   * shift later ones.
+   * @param start the index (inclusive), counting from the first record after the continuation, of the first record to return
+   * @param end the index (inclusive), counting from the first record after the continuation, of the last record to return, or -1 for all records
+   * @param orderings the order in which results should be sorted; must be the same orderings the continuation was created with
+   * @param fields the fields to return in the result set
+   * @param continuation a token from {@link #after(SMObject, String)}, or null to start from the beginning
+   */
+  public ResultFilters(long start, long end, List<SMOrdering> orderings, List<String> fields, String continuation) {
     this.start = start;
     this.end = end;
     this.ordering = orderings;
     this.fields = fields;
+    this.continuation = continuation;
   }
 
   public long getStart() {
@@ -55,4 +74,92 @@ public class ResultFilters {
   public List<String> getFields() {
     return fields;
   }
+
+  public String getContinuation() {
+    return continuation;
+  }
+
+  /**
+   * Get the sort key encoded in the continuation token: the value of each ordering field, followed by the id
+   * @return the sort key of the last record already read, or null if there is no continuation
+   * @throws IllegalArgumentException if the continuation token is malformed
+   */
+  public List<SMValue> getContinuationValues() {
+    return continuation == null ? null : decode(continuation);
+  }
+
+  /**
+   * Create result filters for the page after the given record, with the same orderings, fields and page size as these
+   * filters. The ordering fields must have been returned with the record. {@link ObjectCursor} pages this way.
+   * @param lastObject the last record of the current page
+   * @param idField the id field of the schema being read, for example <code>todo_id</code>
+   * @return result filters which resume after lastObject
+   */
+  public ResultFilters after(SMObject lastObject, String idField) {
+    List<SMValue> key = new ArrayList<SMValue>();
+    if(ordering != null) {
+      for(SMOrdering o : ordering) {
+        key.add(lastObject.getValue().get(o.getField()));
+      }
+    }
+    key.add(lastObject.getValue().get(idField));
+    return new ResultFilters(0, end < 0 ? -1 : end - Math.max(start, 0), ordering, fields, encode(key));
+  }
+
+  /**
+   * tokens are a run of type-tagged values: n for null, b0/b1, i and d (raw double bits in hex) terminated by ';', and
+   * s followed by the string's length, ':' and the string itself
+   */
+  private static String encode(List<SMValue> key) {
+    StringBuilder token = new StringBuilder();
+    for(SMValue value : key) {
+      if(value == null || value.getValue() == null) {
+        token.append('n');
+      } else if(value instanceof SMBoolean) {
+        token.append((Boolean) value.getValue() ? "b1" : "b0");
+      } else if(value instanceof SMInt || value instanceof SMLong) {
+        token.append('i').append(value.getValue()).append(';');
+      } else if(value instanceof SMDouble) {
+        token.append('d').append(Long.toHexString(Double.doubleToLongBits((Double) value.getValue()))).append(';');
+      } else if(value instanceof SMString) {
+        String string = (String) value.getValue();
+        token.append('s').append(string.length()).append(':').append(string);
+      } else {
+        throw new IllegalArgumentException("cannot continue after a record sorted on a " + value.getClass().getSimpleName());
+      }
+    }
+    return token.toString();
+  }
+
+  private static List<SMValue> decode(String token) {
+    List<SMValue> key = new ArrayList<SMValue>();
+    int i = 0;
+    try {
+      while(i < token.length()) {
+        char type = token.charAt(i++);
+        if(type == 'n') {
+          key.add(null);
+        } else if(type == 'b') {
+          key.add(new SMBoolean(token.charAt(i++) == '1'));
+        } else if(type == 'i' || type == 'd') {
+          int terminator = token.indexOf(';', i);
+          String number = token.substring(i, terminator);
+          key.add(type == 'i' ? new SMInt(Long.parseLong(number)) : new SMDouble(Double.longBitsToDouble(new BigInteger(number, 16).longValue())));
+          i = terminator + 1;
+        } else if(type == 's') {
+          int colon = token.indexOf(':', i);
+          int length = Integer.parseInt(token.substring(i, colon));
+          key.add(new SMString(token.substring(colon + 1, colon + 1 + length)));
+          i = colon + 1 + length;
+        } else {
+          throw new IllegalArgumentException("malformed continuation " + token);
+        }
+      }
+    } catch(IndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("malformed continuation " + token, e);
+    } catch(NumberFormatException e) {
+      throw new IllegalArgumentException("malformed continuation " + token, e);
+    }
+    return key;
+  }
 }
@@ -56,6 +56,14 @@ public interface SDKServiceProvider {
    */
   DataService getDataService();
 
+  /**
+   * Get the <code>AsyncDataService</code>, which accesses the datastore for the current application without blocking,
+   * so that independent reads and writes can run at the same time.
+   *
+   * @return the asynchronous data service
+   */
+  AsyncDataService getAsyncDataService();
+
   /**
    * Get the <code>PushService</code> required to send push notifications for the current application.
    *
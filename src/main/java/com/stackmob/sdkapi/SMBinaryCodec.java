@@ -0,0 +1,416 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of SMValues, for caching objects or writing snapshots without going through JSON.
+ * Integers and sizes are varints, so small numbers take a byte or two, and each field name is written out once per
+ * encoding and referred to by number after that, so lists of objects with the same fields don't repeat them.
+ *
+ * A codec encodes into a buffer which it keeps and reuses, so encoding many values with one codec allocates little
+ * beyond the results. Codecs aren't thread safe, so give each thread its own.
+ *
+ * <code>
+ *     SMBinaryCodec codec = new SMBinaryCodec();
+ *     cachingService.setBytes("todos", codec.encodeObjects(todos), 60000);
+ *     List&lt;SMObject&gt; cached = codec.decodeObjects(cachingService.getBytes("todos"));
+ * </code>
+ *
+ * Values which are null, or wrap null, read back as null. SMLongs read back as SMInts.
+ */
+public class SMBinaryCodec {
+
+  private static final byte FORMAT_VERSION = 1;
+
+  private static final byte NULL = 0;
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+  private static final byte INT = 3;
+  private static final byte DOUBLE = 4;
+  private static final byte STRING = 5;
+  private static final byte LIST = 6;
+  private static final byte OBJECT = 7;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private byte[] buffer = new byte[256];
+  // the array being decoded, which is the caller's rather than the buffer
+  private byte[] input;
+  private int position;
+  private int limit;
+  private final Map<String, Integer> fieldNumbers = new HashMap<String, Integer>();
+  private final List<String> fieldNames = new ArrayList<String>();
+
+  /**
+   * encode a single value
+   * @param value the value to encode
+   * @return the encoded value
+   * @throws IllegalArgumentException if the value, or something in it, isn't one of the standard SMValue types
+   */
+  public byte[] encode(SMValue value) {
+    startEncoding();
+    writeValue(value);
+    return Arrays.copyOf(buffer, position);
+  }
+
+  /**
+   * encode a list of objects, sharing field names between them
+   * @param objects the objects to encode
+   * @return the encoded objects
+   * @throws IllegalArgumentException if something in the objects isn't one of the standard SMValue types
+   */
+  public byte[] encodeObjects(List<SMObject> objects) {
+    startEncoding();
+    writeObjects(objects);
+    return Arrays.copyOf(buffer, position);
+  }
+
+  /**
+   * encode a list of objects straight to a stream, without copying them out of this codec's buffer
+   * @param objects the objects to encode
+   * @param out the stream to write to
+   * @throws IOException if the stream throws
+   * @throws IllegalArgumentException if something in the objects isn't one of the standard SMValue types
+   */
+  public void encodeObjects(List<SMObject> objects, OutputStream out) throws IOException {
+    startEncoding();
+    writeObjects(objects);
+    out.write(buffer, 0, position);
+  }
+
+  /**
+   * decode a value written by {@link #encode(SMValue)}
+   * @param bytes the encoded value
+   * @return the value
+   * @throws IOException if the bytes aren't an encoded value
+   */
+  public SMValue decode(byte[] bytes) throws IOException {
+    return decode(bytes, 0, bytes.length);
+  }
+
+  /**
+   * decode a value written by {@link #encode(SMValue)}
+   * @param bytes the array holding the encoded value
+   * @param offset where the encoded value starts
+   * @param length the length of the encoded value
+   * @return the value
+   * @throws IOException if the bytes aren't an encoded value
+   */
+  public SMValue decode(byte[] bytes, int offset, int length) throws IOException {
+    startDecoding(bytes, offset, length);
+    SMValue value = readValue();
+    finishDecoding();
+    return value;
+  }
+
+  /**
+   * decode a list of objects written by {@link #encodeObjects(List)}
+   * @param bytes the encoded objects
+   * @return the objects
+   * @throws IOException if the bytes aren't encoded objects
+   */
+  public List<SMObject> decodeObjects(byte[] bytes) throws IOException {
+    return decodeObjects(bytes, 0, bytes.length);
+  }
+
+  /**
+   * decode a list of objects written by {@link #encodeObjects(List)}
+   * @param bytes the array holding the encoded objects
+   * @param offset where the encoded objects start
+   * @param length the length of the encoded objects
+   * @return the objects
+   * @throws IOException if the bytes aren't encoded objects
+   */
+  public List<SMObject> decodeObjects(byte[] bytes, int offset, int length) throws IOException {
+    startDecoding(bytes, offset, length);
+    int size = readSize();
+    List<SMObject> objects = new ArrayList<SMObject>(size);
+    for(int i = 0; i < size; i++) {
+      SMValue value = readValue();
+      if(!(value instanceof SMObject)) {
+        throw new IOException("expected an object but found " + value);
+      }
+      objects.add((SMObject) value);
+    }
+    finishDecoding();
+    return objects;
+  }
+
+  private void startEncoding() {
+    position = 0;
+    fieldNumbers.clear();
+    writeByte(FORMAT_VERSION);
+  }
+
+  private void writeObjects(List<SMObject> objects) {
+    writeVarint(objects.size());
+    for(SMObject object : objects) {
+      writeValue(object);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void writeValue(SMValue value) {
+    if(value == null || value.getValue() == null) {
+      writeByte(NULL);
+    } else if(value instanceof SMInt || value instanceof SMLong) {
+      long l = (Long) value.getValue();
+      writeByte(INT);
+      // zigzag, so that small negative numbers are small varints too
+      writeVarint((l << 1) ^ (l >> 63));
+    } else if(value instanceof SMDouble) {
+      writeByte(DOUBLE);
+      long bits = Double.doubleToLongBits(((SMDouble) value).getValue());
+      ensureCapacity(8);
+      for(int shift = 56; shift >= 0; shift -= 8) {
+        buffer[position++] = (byte) (bits >>> shift);
+      }
+    } else if(value instanceof SMString) {
+      writeByte(STRING);
+      writeString(((SMString) value).getValue());
+    } else if(value instanceof SMBoolean) {
+      writeByte(((SMBoolean) value).getValue() ? TRUE : FALSE);
+    } else if(value instanceof SMList) {
+      List<SMValue> elements = ((SMList<SMValue>) value).getValue();
+      writeByte(LIST);
+      writeVarint(elements.size());
+      for(SMValue element : elements) {
+        writeValue(element);
+      }
+    } else if(value instanceof SMObject) {
+      Map<String, SMValue> fields = ((SMObject) value).getValue();
+      writeByte(OBJECT);
+      writeVarint(fields.size());
+      for(Map.Entry<String, SMValue> field : fields.entrySet()) {
+        writeFieldName(field.getKey());
+        writeValue(field.getValue());
+      }
+    } else {
+      throw new IllegalArgumentException("cannot encode a " + value.getClass().getName());
+    }
+  }
+
+  /**
+   * a field name is 0 followed by the name the first time it's written, and its number plus one after that
+   */
+  private void writeFieldName(String name) {
+    Integer number = fieldNumbers.get(name);
+    if(number != null) {
+      writeVarint(number + 1);
+      return;
+    }
+    fieldNumbers.put(name, fieldNumbers.size());
+    writeVarint(0);
+    writeString(name);
+  }
+
+  /**
+   * write a string as its UTF-8 length and bytes, encoding it straight into the buffer
+   */
+  private void writeString(String string) {
+    int chars = string.length();
+    int length = 0;
+    for(int i = 0; i < chars; i++) {
+      char c = string.charAt(i);
+      if(c < 0x80) {
+        length += 1;
+      } else if(c < 0x800) {
+        length += 2;
+      } else if(Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(string.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    writeVarint(length);
+    ensureCapacity(length);
+    byte[] b = buffer;
+    int p = position;
+    for(int i = 0; i < chars; i++) {
+      char c = string.charAt(i);
+      if(c < 0x80) {
+        b[p++] = (byte) c;
+      } else if(c < 0x800) {
+        b[p++] = (byte) (0xc0 | (c >> 6));
+        b[p++] = (byte) (0x80 | (c & 0x3f));
+      } else if(Character.isHighSurrogate(c) && i + 1 < chars && Character.isLowSurrogate(string.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, string.charAt(++i));
+        b[p++] = (byte) (0xf0 | (codePoint >> 18));
+        b[p++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        b[p++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        b[p++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else {
+        // unpaired surrogates are written as is, which UTF-8 decoders read back as replacement characters
+        b[p++] = (byte) (0xe0 | (c >> 12));
+        b[p++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        b[p++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+    position = p;
+  }
+
+  private void writeVarint(long value) {
+    ensureCapacity(10);
+    while((value & ~0x7fL) != 0) {
+      buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+
+  private void writeByte(byte b) {
+    ensureCapacity(1);
+    buffer[position++] = b;
+  }
+
+  private void ensureCapacity(int needed) {
+    if(buffer.length - position < needed) {
+      buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + needed));
+    }
+  }
+
+  private void startDecoding(byte[] bytes, int offset, int length) throws IOException {
+    if(offset < 0 || length < 0 || offset + length > bytes.length) {
+      throw new IndexOutOfBoundsException();
+    }
+    input = bytes;
+    position = offset;
+    limit = offset + length;
+    fieldNames.clear();
+    byte version = readByte();
+    if(version != FORMAT_VERSION) {
+      throw new IOException("unknown format version " + version);
+    }
+  }
+
+  private void finishDecoding() throws IOException {
+    boolean trailing = position != limit;
+    input = null;
+    fieldNames.clear();
+    if(trailing) {
+      throw new IOException("unexpected bytes after the encoded value");
+    }
+  }
+
+  private SMValue readValue() throws IOException {
+    byte type = readByte();
+    switch(type) {
+      case NULL:
+        return null;
+      case FALSE:
+        return new SMBoolean(false);
+      case TRUE:
+        return new SMBoolean(true);
+      case INT: {
+        long zigzag = readVarint();
+        return new SMInt((zigzag >>> 1) ^ -(zigzag & 1));
+      }
+      case DOUBLE: {
+        require(8);
+        long bits = 0;
+        for(int i = 0; i < 8; i++) {
+          bits = (bits << 8) | (input[position++] & 0xff);
+        }
+        return new SMDouble(Double.longBitsToDouble(bits));
+      }
+      case STRING:
+        return new SMString(readString());
+      case LIST: {
+        int size = readSize();
+        List<SMValue> elements = new ArrayList<SMValue>(size);
+        for(int i = 0; i < size; i++) {
+          elements.add(readValue());
+        }
+        return new SMList<SMValue>(elements);
+      }
+      case OBJECT: {
+        int size = readSize();
+        Map<String, SMValue> fields = new HashMap<String, SMValue>(size * 4 / 3 + 1);
+        for(int i = 0; i < size; i++) {
+          String name = readFieldName();
+          fields.put(name, readValue());
+        }
+        return new SMObject(fields);
+      }
+      default:
+        throw new IOException("unknown value type " + type);
+    }
+  }
+
+  private String readFieldName() throws IOException {
+    long number = readVarint();
+    if(number == 0) {
+      String name = readString();
+      fieldNames.add(name);
+      return name;
+    }
+    if(number > fieldNames.size()) {
+      throw new IOException("unknown field name " + number);
+    }
+    return fieldNames.get((int) number - 1);
+  }
+
+  private String readString() throws IOException {
+    int length = readSize();
+    String string = new String(input, position, length, UTF8);
+    position += length;
+    return string;
+  }
+
+  /**
+   * read a list, object or string size, which can't be more than the bytes left since every element takes at least one
+   */
+  private int readSize() throws IOException {
+    long size = readVarint();
+    if(size < 0 || size > limit - position) {
+      throw new IOException("size " + size + " is bigger than the input");
+    }
+    return (int) size;
+  }
+
+  private long readVarint() throws IOException {
+    long value = 0;
+    for(int shift = 0; shift < 64; shift += 7) {
+      byte b = readByte();
+      value |= (long) (b & 0x7f) << shift;
+      if(b >= 0) {
+        return value;
+      }
+    }
+    throw new IOException("varint is too long");
+  }
+
+  private byte readByte() throws IOException {
+    require(1);
+    return input[position++];
+  }
+
+  private void require(int bytes) throws IOException {
+    if(limit - position < bytes) {
+      throw new IOException("unexpected end of input");
+    }
+  }
+}
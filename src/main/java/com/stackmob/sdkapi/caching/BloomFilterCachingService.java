@@ -0,0 +1,655 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.caching;
+
+import com.stackmob.sdkapi.caching.exceptions.DataSizeException;
+import com.stackmob.sdkapi.caching.exceptions.RateLimitedException;
+import com.stackmob.sdkapi.caching.exceptions.TTLTooBigException;
+import com.stackmob.sdkapi.caching.exceptions.TimeoutException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A CachingService which answers gets for keys that were never set without going to the cache, using a Bloom filter
+ * of the keys set in each namespace. It suits namespaces where most gets miss, like per-user overrides which most
+ * users don't have. Keys outside every namespace go straight to the wrapped CachingService.
+ *
+ * A namespace is a key prefix with the longest TTL its keys are set with. Its filter is split into generations as
+ * long as that TTL, and a key is only looked for in the generation it's set in and the next one, when it must have
+ * expired. That keeps deleted and expired keys from filling the filter up.
+ *
+ * Each node adds the keys it sets to its own filters straight away, and shares them with other nodes by merging them
+ * into copies kept in the cache every sync interval. So a key set on another node may be reported missing for up to
+ * about two sync intervals after it's set; pick a sync interval you can live with that for. Until a node has read a
+ * generation's shared copy, or written the first one, it doesn't answer from that generation.
+ *
+ * Syncs read the shared copies with <code>getBytesAsync</code> and write them with <code>setBytesAsync</code>, and
+ * the get or set which notices a read is done merges it, so a sync only holds up callers if the wrapped
+ * CachingService's async calls block. Wrap a blocking CachingService in an {@link ExecutorCachingService} first.
+ */
+public class BloomFilterCachingService extends CachingService {
+
+    public static final String DEFAULT_KEY_PREFIX = "bloomfilter:";
+    public static final long DEFAULT_SYNC_INTERVAL_MILLISECONDS = 1000;
+
+    // how many sync intervals to wait for a sync's reads before giving up on them
+    private static final int ABANDON_SYNC_INTERVALS = 10;
+
+    private final CachingService cachingService;
+    private final long syncIntervalMilliseconds;
+    private final String keyPrefix;
+    private final int maxValueSize;
+    private final long maxTtlMilliseconds;
+    private final List<Namespace> namespaces = new CopyOnWriteArrayList<Namespace>();
+
+    /**
+     * create a new BloomFilterCachingService which syncs every {@link #DEFAULT_SYNC_INTERVAL_MILLISECONDS} and keeps
+     * its filters under {@link #DEFAULT_KEY_PREFIX}
+     * @param cachingService the caching service to get and set through
+     */
+    public BloomFilterCachingService(CachingService cachingService) {
+        this(cachingService, DEFAULT_SYNC_INTERVAL_MILLISECONDS, DEFAULT_KEY_PREFIX);
+    }
+
+    /**
+     * create a new BloomFilterCachingService for a cache with StackMob's limits: the defaults of
+     * {@link OffHeapCachingService}
+     * @param cachingService the caching service to get and set through
+     * @param syncIntervalMilliseconds how often to share filters with other nodes, in milliseconds
+     * @param keyPrefix the prefix of the keys the shared filters are kept under
+     */
+    public BloomFilterCachingService(CachingService cachingService, long syncIntervalMilliseconds, String keyPrefix) {
+        this(cachingService, syncIntervalMilliseconds, keyPrefix, OffHeapCachingService.DEFAULT_MAX_VALUE_SIZE,
+                OffHeapCachingService.DEFAULT_MAX_TTL_MILLISECONDS);
+    }
+
+    /**
+     * create a new BloomFilterCachingService
+     * @param cachingService the caching service to get and set through
+     * @param syncIntervalMilliseconds how often to share filters with other nodes, in milliseconds
+     * @param keyPrefix the prefix of the keys the shared filters are kept under
+     * @param maxValueSize the largest value the cache allows, in bytes, which every shared filter has to fit in
+     * @param maxTtlMilliseconds the longest TTL the cache allows, in milliseconds, which every shared filter is kept for
+     */
+    public BloomFilterCachingService(CachingService cachingService, long syncIntervalMilliseconds, String keyPrefix, int maxValueSize, long maxTtlMilliseconds) {
+        if(syncIntervalMilliseconds <= 0 || maxValueSize <= 0 || maxTtlMilliseconds <= 0) {
+            throw new IllegalArgumentException("syncIntervalMilliseconds and limits must be positive");
+        }
+        this.cachingService = cachingService;
+        this.syncIntervalMilliseconds = syncIntervalMilliseconds;
+        this.keyPrefix = keyPrefix;
+        this.maxValueSize = maxValueSize;
+        this.maxTtlMilliseconds = maxTtlMilliseconds;
+    }
+
+    /**
+     * start filtering gets for the keys starting with a prefix. every node must add a namespace with the same
+     * arguments. each generation's filter is kept in the cache as a single value of about
+     * <code>-expectedKeys * ln(falsePositiveRate) / (ln 2)^2</code> bits, which has to fit under the cache's value size
+     * limit, for up to <code>2 * maxTtlMilliseconds</code> plus the sync interval, which has to fit under its TTL limit
+     * @param prefix the prefix of the keys in the namespace
+     * @param expectedKeys the most keys expected to be set in the namespace during one maxTtlMilliseconds
+     * @param falsePositiveRate the fraction of gets for missing keys which should still go to the cache at expectedKeys
+     * @param maxTtlMilliseconds the longest TTL keys in the namespace are set with. setting a key with a longer TTL, or
+     *                           a TTL <= 0, throws a TTLTooBigException
+     * @throws IllegalArgumentException if the arguments are out of range, or the shared filters wouldn't fit under the
+     * cache's limits
+     */
+    public void addNamespace(String prefix, long expectedKeys, double falsePositiveRate, long maxTtlMilliseconds) {
+        if(expectedKeys <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1 || maxTtlMilliseconds <= 0) {
+            throw new IllegalArgumentException("expectedKeys and maxTtlMilliseconds must be positive and falsePositiveRate between 0 and 1");
+        }
+        if(namespace(prefix) != null) {
+            throw new IllegalArgumentException("there is already a namespace for " + prefix);
+        }
+        double bits = -expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        int words = (int) Math.min(Integer.MAX_VALUE / 64, (long) Math.ceil(bits / 64));
+        int hashes = Math.max(1, (int) Math.round(words * 64.0 / expectedKeys * Math.log(2)));
+        // a shared filter the cache can't store would never be written, and other nodes would trust it empty
+        if(words * 8L > maxValueSize) {
+            throw new IllegalArgumentException(String.format("the filter for %s takes %d bytes, more than the cache's limit of %d", prefix, words * 8L, maxValueSize));
+        }
+        if(2 * maxTtlMilliseconds + syncIntervalMilliseconds > this.maxTtlMilliseconds) {
+            throw new IllegalArgumentException(String.format("the filters for %s have to be kept for %d ms, longer than the cache's limit of %d", prefix,
+                    2 * maxTtlMilliseconds + syncIntervalMilliseconds, this.maxTtlMilliseconds));
+        }
+        namespaces.add(new Namespace(prefix, words, hashes, maxTtlMilliseconds));
+    }
+
+    /**
+     * @param prefix the namespace's prefix
+     * @return the number of gets in the namespace answered as missing without going to the cache
+     */
+    public long getLocalMisses(String prefix) {
+        return checkedNamespace(prefix).localMisses.get();
+    }
+
+    /**
+     * @param prefix the namespace's prefix
+     * @return the number of gets in the namespace which the filter let through but which missed in the cache
+     */
+    public long getFalsePositives(String prefix) {
+        return checkedNamespace(prefix).falsePositives.get();
+    }
+
+    /**
+     * @param prefix the namespace's prefix
+     * @return the fraction of gets for missing keys in the namespace which still went to the cache, or 0 if there
+     * haven't been any
+     */
+    public double getFalsePositiveRate(String prefix) {
+        Namespace namespace = checkedNamespace(prefix);
+        long falsePositives = namespace.falsePositives.get();
+        long total = falsePositives + namespace.localMisses.get();
+        return total == 0 ? 0 : (double) falsePositives / total;
+    }
+
+    /**
+     * @param prefix the namespace's prefix
+     * @return the false positive rate the namespace's current filters should give, from how full they are
+     */
+    public double getExpectedFalsePositiveRate(String prefix) {
+        return checkedNamespace(prefix).expectedFalsePositiveRate(System.currentTimeMillis());
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        Namespace namespace = namespaceFor(key);
+        if(namespace == null) {
+            return cachingService.getBytes(key);
+        }
+        int check = namespace.check(key, System.currentTimeMillis());
+        if(check == MISSING) {
+            return null;
+        }
+        byte[] value = cachingService.getBytes(key);
+        if(value == null && check == MAYBE) {
+            namespace.falsePositives.incrementAndGet();
+        }
+        return value;
+    }
+
+    @Override
+    public MultiResult<byte[]> getBytesMulti(Collection<String> keys) {
+        Map<String, Integer> checks = new HashMap<String, Integer>();
+        List<String> remote = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        for(String key : keys) {
+            Namespace namespace = namespaceFor(key);
+            int check = namespace == null ? UNKNOWN : namespace.check(key, now);
+            if(check != MISSING) {
+                checks.put(key, check);
+                remote.add(key);
+            }
+        }
+        MultiResult<byte[]> result = cachingService.getBytesMulti(remote);
+        for(String key : remote) {
+            if(checks.get(key) == MAYBE && !result.getResults().containsKey(key) && !result.getFailures().containsKey(key)) {
+                namespaceFor(key).falsePositives.incrementAndGet();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Future<byte[]> getBytesAsync(String key) {
+        Namespace namespace = namespaceFor(key);
+        if(namespace == null || namespace.check(key, System.currentTimeMillis()) != MISSING) {
+            return cachingService.getBytesAsync(key);
+        }
+        FutureTask<byte[]> missing = new FutureTask<byte[]>(new Runnable() {
+            @Override
+            public void run() {}
+        }, null);
+        missing.run();
+        return missing;
+    }
+
+    @Override
+    public Boolean setBytes(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        added(key, ttlMilliseconds);
+        return cachingService.setBytes(key, value, ttlMilliseconds);
+    }
+
+    @Override
+    public MultiResult<Boolean> setBytesMulti(Map<String, byte[]> values, long ttlMilliseconds) {
+        Map<String, byte[]> allowed = new HashMap<String, byte[]>();
+        Map<String, Exception> failures = new HashMap<String, Exception>();
+        for(Map.Entry<String, byte[]> value : values.entrySet()) {
+            try {
+                added(value.getKey(), ttlMilliseconds);
+                allowed.put(value.getKey(), value.getValue());
+            } catch(TTLTooBigException e) {
+                failures.put(value.getKey(), e);
+            }
+        }
+        MultiResult<Boolean> result = cachingService.setBytesMulti(allowed, ttlMilliseconds);
+        failures.putAll(result.getFailures());
+        return new MultiResult<Boolean>(result.getResults(), failures);
+    }
+
+    @Override
+    public Future<Boolean> setBytesAsync(String key, byte[] value, long ttlMilliseconds) {
+        try {
+            added(key, ttlMilliseconds);
+        } catch(TTLTooBigException e) {
+            return super.setBytesAsync(key, value, ttlMilliseconds);
+        }
+        return cachingService.setBytesAsync(key, value, ttlMilliseconds);
+    }
+
+    @Override
+    public void setBytesEventually(String key, byte[] value, long ttlMilliseconds) throws DataSizeException, TTLTooBigException {
+        added(key, ttlMilliseconds);
+        cachingService.setBytesEventually(key, value, ttlMilliseconds);
+    }
+
+    @Override
+    public VersionedValue getVersioned(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        Namespace namespace = namespaceFor(key);
+        if(namespace != null && namespace.check(key, System.currentTimeMillis()) == MISSING) {
+            return null;
+        }
+        return cachingService.getVersioned(key);
+    }
+
+    @Override
+    public Boolean compareAndSet(String key, long expectedVersion, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        added(key, ttlMilliseconds);
+        return cachingService.compareAndSet(key, expectedVersion, value, ttlMilliseconds);
+    }
+
+    @Override
+    public Boolean addIfAbsent(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        added(key, ttlMilliseconds);
+        return cachingService.addIfAbsent(key, value, ttlMilliseconds);
+    }
+
+    /**
+     * a counter which already exists keeps its TTL, so a counter in a namespace should always be incremented with
+     * the same TTL
+     */
+    @Override
+    public Long incrementBy(String key, long delta, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        added(key, ttlMilliseconds);
+        return cachingService.incrementBy(key, delta, ttlMilliseconds);
+    }
+
+    /**
+     * deleted keys stay in the filter until their generation is dropped
+     */
+    @Override
+    public void deleteEventually(String key) throws DataSizeException {
+        cachingService.deleteEventually(key);
+    }
+
+    /**
+     * add a key about to be set to its namespace's filter, before it's set so that no get can miss it
+     */
+    private void added(String key, long ttlMilliseconds) throws TTLTooBigException {
+        Namespace namespace = namespaceFor(key);
+        if(namespace != null) {
+            if(ttlMilliseconds <= 0 || ttlMilliseconds > namespace.maxTtlMilliseconds) {
+                throw new TTLTooBigException(ttlMilliseconds);
+            }
+            namespace.add(key, System.currentTimeMillis());
+        }
+    }
+
+    private Namespace namespaceFor(String key) {
+        Namespace found = null;
+        for(Namespace namespace : namespaces) {
+            if(key.startsWith(namespace.prefix) && (found == null || namespace.prefix.length() > found.prefix.length())) {
+                found = namespace;
+            }
+        }
+        return found;
+    }
+
+    private Namespace namespace(String prefix) {
+        for(Namespace namespace : namespaces) {
+            if(namespace.prefix.equals(prefix)) {
+                return namespace;
+            }
+        }
+        return null;
+    }
+
+    private Namespace checkedNamespace(String prefix) {
+        Namespace namespace = namespace(prefix);
+        if(namespace == null) {
+            throw new IllegalArgumentException("there is no namespace for " + prefix);
+        }
+        return namespace;
+    }
+
+    private static long hash(String key) {
+        // FNV-1a, then the murmur3 finalizer to spread it over all 64 bits
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53ec34bL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // the results of checking a key against its namespace's filters
+    private static final int MISSING = 0;
+    private static final int MAYBE = 1;
+    private static final int UNKNOWN = 2;
+
+    private final class Namespace {
+        final String prefix;
+        final int words;
+        final int hashes;
+        final long maxTtlMilliseconds;
+        final ConcurrentMap<Long, Filter> generations = new ConcurrentHashMap<Long, Filter>();
+        final ReentrantLock syncLock = new ReentrantLock();
+        volatile long lastSync;
+        // the reads of the shared copies for the sync in progress, by generation, or null if there isn't one
+        volatile Map<Long, Future<byte[]>> syncReads;
+        // whether any filter has a write of its shared copy which hasn't been checked yet
+        volatile boolean writesPending;
+        final AtomicLong localMisses = new AtomicLong();
+        final AtomicLong falsePositives = new AtomicLong();
+
+        Namespace(String prefix, int words, int hashes, long maxTtlMilliseconds) {
+            this.prefix = prefix;
+            this.words = words;
+            this.hashes = hashes;
+            this.maxTtlMilliseconds = maxTtlMilliseconds;
+        }
+
+        void add(String key, long now) {
+            filter(now / maxTtlMilliseconds).add(hash(key), hashes);
+            syncIfDue(now);
+        }
+
+        /**
+         * @return MISSING if the key can't have been set, MAYBE if it might have been, or UNKNOWN if the filters it
+         * would be in haven't been read from the cache yet
+         */
+        int check(String key, long now) {
+            syncIfDue(now);
+            long generation = now / maxTtlMilliseconds;
+            long h = hash(key);
+            // a node whose clock is a little ahead may already have set keys in the next generation
+            Filter next = generations.get(generation + 1);
+            if(next != null && next.mightContain(h, hashes)) {
+                return MAYBE;
+            }
+            boolean trusted = true;
+            for(long g = generation - 1; g <= generation; g++) {
+                Filter filter = generations.get(g);
+                if(filter == null || !filter.trusted) {
+                    trusted = false;
+                } else if(filter.mightContain(h, hashes)) {
+                    return MAYBE;
+                }
+            }
+            if(!trusted) {
+                return UNKNOWN;
+            }
+            localMisses.incrementAndGet();
+            return MISSING;
+        }
+
+        double expectedFalsePositiveRate(long now) {
+            long generation = now / maxTtlMilliseconds;
+            double passed = 1;
+            for(long g = generation - 1; g <= generation + 1; g++) {
+                Filter filter = generations.get(g);
+                if(filter != null) {
+                    passed *= 1 - Math.pow(filter.fill(), hashes);
+                }
+            }
+            return 1 - passed;
+        }
+
+        private Filter filter(long generation) {
+            Filter filter = generations.get(generation);
+            if(filter == null) {
+                Filter created = new Filter(words);
+                filter = generations.putIfAbsent(generation, created);
+                if(filter == null) {
+                    filter = created;
+                }
+            }
+            return filter;
+        }
+
+        /**
+         * start reading each current generation's copy in the cache when a sync is due, and merge the copies in once
+         * they've all been read, writing the merged filter back if the copy was missing anything. every node writes
+         * everything it has each time, so bits lost to two nodes writing at once come back at the next sync. the next
+         * sync waits for the reads, unless they're still outstanding after {@link #ABANDON_SYNC_INTERVALS} intervals
+         */
+        private void syncIfDue(long now) {
+            if((syncReads == null && !writesPending && now - lastSync < syncIntervalMilliseconds) || !syncLock.tryLock()) {
+                return;
+            }
+            try {
+                checkWrites();
+                Map<Long, Future<byte[]>> reads = syncReads;
+                if(reads != null) {
+                    if(!allDone(reads) && now - lastSync < ABANDON_SYNC_INTERVALS * syncIntervalMilliseconds) {
+                        return;
+                    }
+                    merge(reads, now);
+                    syncReads = null;
+                }
+                if(now - lastSync >= syncIntervalMilliseconds) {
+                    lastSync = now;
+                    long generation = now / maxTtlMilliseconds;
+                    for(Long g : generations.keySet()) {
+                        if(g < generation - 1) {
+                            generations.remove(g);
+                        }
+                    }
+                    reads = new HashMap<Long, Future<byte[]>>();
+                    for(long g = generation - 1; g <= generation + 1; g++) {
+                        reads.put(g, cachingService.getBytesAsync(sharedKey(g)));
+                    }
+                    if(allDone(reads)) {
+                        merge(reads, now);
+                        checkWrites();
+                    } else {
+                        syncReads = reads;
+                    }
+                }
+            } finally {
+                syncLock.unlock();
+            }
+        }
+
+        private boolean allDone(Map<Long, Future<byte[]>> reads) {
+            for(Future<byte[]> read : reads.values()) {
+                if(!read.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void merge(Map<Long, Future<byte[]>> reads, long now) {
+            for(Map.Entry<Long, Future<byte[]>> read : reads.entrySet()) {
+                long g = read.getKey();
+                if(!read.getValue().isDone() || g < now / maxTtlMilliseconds - 1) {
+                    read.getValue().cancel(false);
+                    continue;
+                }
+                byte[] bytes;
+                try {
+                    bytes = read.getValue().get();
+                } catch(Exception e) {
+                    // the next sync will try again
+                    continue;
+                }
+                if(bytes != null && bytes.length != words * 8) {
+                    // another node has a different configuration for this namespace
+                    continue;
+                }
+                Filter filter = filter(g);
+                boolean behind = filter.mergeFrom(bytes);
+                if(bytes != null) {
+                    filter.trusted = true;
+                }
+                if(behind || bytes == null) {
+                    // long enough to outlive every key set in the generation. only a generation a node with its clock
+                    // ahead has started can need longer than the cache allows, and its copy is written again if it expires
+                    long ttl = Math.min((g + 2) * maxTtlMilliseconds - now + syncIntervalMilliseconds, BloomFilterCachingService.this.maxTtlMilliseconds);
+                    filter.write = cachingService.setBytesAsync(sharedKey(g), filter.toBytes(), ttl);
+                    writesPending = true;
+                }
+            }
+        }
+
+        /**
+         * trust the filters whose shared copies have been written, since until a node has either read a copy or
+         * written one it can't know other nodes will see its keys, or that it has theirs
+         */
+        private void checkWrites() {
+            boolean pending = false;
+            for(Filter filter : generations.values()) {
+                Future<Boolean> write = filter.write;
+                if(write == null) {
+                    continue;
+                }
+                if(!write.isDone()) {
+                    pending = true;
+                    continue;
+                }
+                filter.write = null;
+                try {
+                    if(Boolean.TRUE.equals(write.get())) {
+                        filter.trusted = true;
+                    }
+                } catch(Exception e) {
+                    // the next sync will try again
+                }
+            }
+            writesPending = pending;
+        }
+
+        private String sharedKey(long generation) {
+            return keyPrefix + prefix + ":" + generation;
+        }
+    }
+
+    /**
+     * a Bloom filter whose bits can be set and read from many threads at once
+     */
+    private static final class Filter {
+        final AtomicLongArray bits;
+        // whether the filter has been merged with a copy in the cache, or its copy written, so that it has other
+        // nodes' keys too
+        volatile boolean trusted;
+        // the write of the filter's shared copy from the last sync, until it's checked
+        volatile Future<Boolean> write;
+
+        Filter(int words) {
+            this.bits = new AtomicLongArray(words);
+        }
+
+        void add(long hash, int hashes) {
+            long m = bits.length() * 64L;
+            for(int i = 0; i < hashes; i++) {
+                long bit = index(hash, i, m);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long current;
+                do {
+                    current = bits.get(word);
+                } while((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+            }
+        }
+
+        boolean mightContain(long hash, int hashes) {
+            long m = bits.length() * 64L;
+            for(int i = 0; i < hashes; i++) {
+                long bit = index(hash, i, m);
+                if((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * the i'th bit for a key, by double hashing with the two halves of its hash
+         */
+        private static long index(long hash, int i, long m) {
+            long combined = (int) hash + (long) i * (int) (hash >>> 32);
+            return (combined < 0 ? ~combined : combined) % m;
+        }
+
+        /**
+         * set every bit set in a serialized filter
+         * @return true if this filter has bits which the serialized one doesn't
+         */
+        boolean mergeFrom(byte[] serialized) {
+            if(serialized == null) {
+                return fill() > 0;
+            }
+            ByteBuffer in = ByteBuffer.wrap(serialized);
+            boolean behind = false;
+            for(int i = 0; i < bits.length(); i++) {
+                long other = in.getLong();
+                long current;
+                do {
+                    current = bits.get(i);
+                } while((current | other) != current && !bits.compareAndSet(i, current, current | other));
+                behind |= (current | other) != other;
+            }
+            return behind;
+        }
+
+        byte[] toBytes() {
+            ByteBuffer out = ByteBuffer.allocate(bits.length() * 8);
+            for(int i = 0; i < bits.length(); i++) {
+                out.putLong(bits.get(i));
+            }
+            return out.array();
+        }
+
+        double fill() {
+            long set = 0;
+            for(int i = 0; i < bits.length(); i++) {
+                set += Long.bitCount(bits.get(i));
+            }
+            return (double) set / (bits.length() * 64L);
+        }
+    }
+}
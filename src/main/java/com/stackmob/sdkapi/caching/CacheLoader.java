@@ -0,0 +1,32 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.caching;
+
+/**
+ * Loads the value for a key which isn't in the cache, for {@link CachingService#getOrLoad(String, long, CacheLoader)}
+ */
+public interface CacheLoader {
+
+    /**
+     * load the value for the given key, for example by running the datastore query it caches
+     * @param key the key which missed
+     * @return the value to cache and return, or null to return null without caching anything
+     * @throws Exception if the value couldn't be loaded. it's passed to every caller waiting on this load as the cause
+     * of a {@link com.stackmob.sdkapi.caching.exceptions.LoadException}
+     */
+    byte[] load(String key) throws Exception;
+}
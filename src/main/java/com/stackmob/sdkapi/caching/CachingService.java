@@ -15,7 +15,17 @@
  */
 package com.stackmob.sdkapi.caching;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import com.stackmob.sdkapi.caching.exceptions.*;
 
@@ -54,6 +64,12 @@ import com.stackmob.sdkapi.caching.exceptions.*;
 public abstract class CachingService {
     public static final Charset utf8Charset = Charset.forName("UTF-8");
 
+    // getOrLoad values start with a marker, the time they expire and how long they took to load
+    private static final byte LOADED_MARKER = 0x4c;
+    private static final int LOADED_HEADER_SIZE = 13;
+
+    private final ConcurrentMap<String, FutureTask<byte[]>> loads = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
     /**
      * get the value for the given key, in String format
      * @param key the key to get
@@ -94,6 +110,80 @@ public abstract class CachingService {
      */
     public abstract byte[] getBytes(String key) throws TimeoutException, RateLimitedException, DataSizeException;
 
+    /**
+     * copy the value for the given key into a buffer, saving the allocation of a new array. the value is put at the
+     * buffer's position, which it's moved past, as with {@link ByteBuffer#put(byte[])}
+     * @param key the key to get
+     * @param into the buffer to copy the value into
+     * @return the length of the value, or null if the key didn't exist. if the value is longer than
+     * <code>into.remaining()</code>, nothing is copied and the buffer is left as it is
+     * @throws com.stackmob.sdkapi.caching.exceptions.TimeoutException if there was a timeout communicating with the cache
+     * @throws com.stackmob.sdkapi.caching.exceptions.RateLimitedException if there was a rate limit imposed on the cache get request
+     * @throws com.stackmob.sdkapi.caching.exceptions.DataSizeException if the size of the key or its value in the cache was over the Stackmob-defined limit
+     */
+    public Integer getInto(String key, ByteBuffer into) throws TimeoutException, RateLimitedException, DataSizeException {
+        byte[] value = getBytes(key);
+        if(value == null) {
+            return null;
+        }
+        if(value.length <= into.remaining()) {
+            into.put(value);
+        }
+        return value.length;
+    }
+
+    /**
+     * get the value for the given key as a read-only buffer, which can be decoded in place
+     * @param key the key to get
+     * @return a read-only buffer holding the value for that key, or null if the key didn't exist
+     * @throws com.stackmob.sdkapi.caching.exceptions.TimeoutException if there was a timeout communicating with the cache
+     * @throws com.stackmob.sdkapi.caching.exceptions.RateLimitedException if there was a rate limit imposed on the cache get request
+     * @throws com.stackmob.sdkapi.caching.exceptions.DataSizeException if the size of the key or its value in the cache was over the Stackmob-defined limit
+     */
+    public ByteBuffer getBuffer(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        byte[] value = getBytes(key);
+        return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+
+    /**
+     * get the values for many keys at once. implementations may batch or pipeline the keys to save round trips; by
+     * default they're fetched one at a time
+     * @param keys the keys to get
+     * @return the byte array for each key which exists, and the exception for each key whose get failed. keys which
+     * don't exist are in neither
+     */
+    public MultiResult<byte[]> getBytesMulti(Collection<String> keys) {
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        Map<String, Exception> failures = new HashMap<String, Exception>();
+        for(String key : keys) {
+            try {
+                byte[] value = getBytes(key);
+                if(value != null) {
+                    values.put(key, value);
+                }
+            } catch(Exception e) {
+                failures.put(key, e);
+            }
+        }
+        return new MultiResult<byte[]>(values, failures);
+    }
+
+    /**
+     * get the value for the given key without waiting for the cache. implementations may pipeline calls over a shared
+     * connection; by default the get runs before this method returns
+     * @param key the key to get
+     * @return a Future holding the byte array for that key, or null if the key didn't exist. it fails with the
+     * exceptions {@link #getBytes(String)} throws
+     */
+    public Future<byte[]> getBytesAsync(final String key) {
+        return runNow(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return getBytes(key);
+            }
+        });
+    }
+
     /**
      * store the given key/value pair. convenience method for <code>setBytes(key, value.getBytes(charset), ttlMilliseconds)</code>
      * @param key the key to store
@@ -135,10 +225,255 @@ public abstract class CachingService {
      */
     public abstract Boolean setBytes(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException;
 
+    /**
+     * store the remaining bytes of a buffer as the value for the given key. the buffer's position isn't changed
+     * @param key the key to store
+     * @param value the buffer holding the value to store for <code>key</code>, from its position to its limit
+     * @param ttlMilliseconds the TTL for this key/value pair, in milliseconds. if ttlMillseconds <= 0, it's equivalent to passing the longest available TTL
+     * @throws com.stackmob.sdkapi.caching.exceptions.TimeoutException if there was a timeout communicating with the cache
+     * @throws com.stackmob.sdkapi.caching.exceptions.RateLimitedException if there was a rate limit imposed on this cache request
+     * @throws com.stackmob.sdkapi.caching.exceptions.DataSizeException if the size of the key or value was over the Stackmob-defined limit
+     * @throws com.stackmob.sdkapi.caching.exceptions.TTLTooBigException if the given TTL was too big for our caching system to handle
+     * @return true if the set succeeded, false otherwise
+     */
+    public Boolean setBuffer(String key, ByteBuffer value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        byte[] bytes = new byte[value.remaining()];
+        value.duplicate().get(bytes);
+        return setBytes(key, bytes, ttlMilliseconds);
+    }
+
+    /**
+     * store many key/value pairs at once, all with the same TTL. implementations may batch or pipeline the pairs to
+     * save round trips; by default they're stored one at a time
+     * @param values the key/value pairs to store
+     * @param ttlMilliseconds the TTL for these key/value pairs, in milliseconds. if ttlMillseconds <= 0, it's equivalent to passing the longest available TTL
+     * @return whether the set succeeded for each key which didn't fail, and the exception for each key whose set failed
+     */
+    public MultiResult<Boolean> setBytesMulti(Map<String, byte[]> values, long ttlMilliseconds) {
+        Map<String, Boolean> results = new HashMap<String, Boolean>();
+        Map<String, Exception> failures = new HashMap<String, Exception>();
+        for(Map.Entry<String, byte[]> value : values.entrySet()) {
+            try {
+                results.put(value.getKey(), setBytes(value.getKey(), value.getValue(), ttlMilliseconds));
+            } catch(Exception e) {
+                failures.put(value.getKey(), e);
+            }
+        }
+        return new MultiResult<Boolean>(results, failures);
+    }
+
+    /**
+     * store the given key/value pair without waiting for the cache. implementations may pipeline calls over a shared
+     * connection; by default the set runs before this method returns
+     * @param key the key to store
+     * @param value the value to store for <code>key</code>
+     * @param ttlMilliseconds the TTL for this key/value pair, in milliseconds. if ttlMillseconds <= 0, it's equivalent to passing the longest available TTL
+     * @return a Future holding true if the set succeeded, false otherwise. it fails with the exceptions
+     * {@link #setBytes(String, byte[], long)} throws
+     */
+    public Future<Boolean> setBytesAsync(final String key, final byte[] value, final long ttlMilliseconds) {
+        return runNow(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return setBytes(key, value, ttlMilliseconds);
+            }
+        });
+    }
+
+    /**
+     * store the given key/value pair in the background, the way {@link #deleteEventually(String)} deletes. nothing
+     * reports whether the set succeeded, so use it for writes nobody waits on, like filling the cache after a response
+     * has been built. by default the set runs before this method returns, and timeouts and rate limiting are ignored
+     * @param key the key to store
+     * @param value the value to store for <code>key</code>
+     * @param ttlMilliseconds the TTL for this key/value pair, in milliseconds. if ttlMillseconds <= 0, it's equivalent to passing the longest available TTL
+     * @throws DataSizeException if the given key or value is too big
+     * @throws TTLTooBigException if the given TTL was too big for our caching system to handle
+     */
+    public void setBytesEventually(String key, byte[] value, long ttlMilliseconds) throws DataSizeException, TTLTooBigException {
+        try {
+            setBytes(key, value, ttlMilliseconds);
+        } catch(TimeoutException e) {
+            // nobody is waiting for the result
+        } catch(RateLimitedException e) {
+            // nobody is waiting for the result
+        }
+    }
+
+    /**
+     * get the value for the given key along with its version, for use with
+     * {@link #compareAndSet(String, long, byte[], long)}
+     * @param key the key to get
+     * @return the value and version for that key, or null if the key didn't exist
+     * @throws com.stackmob.sdkapi.caching.exceptions.TimeoutException if there was a timeout communicating with the cache
+     * @throws com.stackmob.sdkapi.caching.exceptions.RateLimitedException if there was a rate limit imposed on the cache get request
+     * @throws com.stackmob.sdkapi.caching.exceptions.DataSizeException if the size of the key or its value in the cache was over the Stackmob-defined limit
+     */
+    public abstract VersionedValue getVersioned(String key) throws TimeoutException, RateLimitedException, DataSizeException;
+
+    /**
+     * atomically store the given key/value pair, but only if the key still has the given version. use it to update a
+     * value without losing updates made by someone else in between reading it and writing it back
+     * @param key the key to store
+     * @param expectedVersion the version from {@link #getVersioned(String)} which the key must still have
+     * @param value the value to store for <code>key</code>
+     * @param ttlMilliseconds the TTL for this key/value pair, in milliseconds. if ttlMillseconds <= 0, it's equivalent to passing the longest available TTL
+     * @return true if the set succeeded, false if the key no longer exists or has a different version
+     * @throws com.stackmob.sdkapi.caching.exceptions.TimeoutException if there was a timeout communicating with the cache
+     * @throws com.stackmob.sdkapi.caching.exceptions.RateLimitedException if there was a rate limit imposed on this cache request
+     * @throws com.stackmob.sdkapi.caching.exceptions.DataSizeException if the size of the key or value was over the Stackmob-defined limit
+     * @throws com.stackmob.sdkapi.caching.exceptions.TTLTooBigException if the given TTL was too big for our caching system to handle
+     */
+    public abstract Boolean compareAndSet(String key, long expectedVersion, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException;
+
+    /**
+     * atomically store the given key/value pair, but only if the key doesn't already exist. use it to take a lock or
+     * claim a piece of work that only one caller should get
+     * @param key the key to store
+     * @param value the value to store for <code>key</code>
+     * @param ttlMilliseconds the TTL for this key/value pair, in milliseconds. if ttlMillseconds <= 0, it's equivalent to passing the longest available TTL
+     * @return true if the key was stored, false if it already existed
+     * @throws com.stackmob.sdkapi.caching.exceptions.TimeoutException if there was a timeout communicating with the cache
+     * @throws com.stackmob.sdkapi.caching.exceptions.RateLimitedException if there was a rate limit imposed on this cache request
+     * @throws com.stackmob.sdkapi.caching.exceptions.DataSizeException if the size of the key or value was over the Stackmob-defined limit
+     * @throws com.stackmob.sdkapi.caching.exceptions.TTLTooBigException if the given TTL was too big for our caching system to handle
+     */
+    public abstract Boolean addIfAbsent(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException;
+
+    /**
+     * atomically add to a counter. counters are stored as decimal strings, so they can also be read with
+     * {@link #getString(String)}. a key which doesn't exist is created with the value <code>delta</code> and the given
+     * TTL; an existing key keeps its TTL
+     * @param key the key of the counter
+     * @param delta the amount to add, which may be negative
+     * @param ttlMilliseconds the TTL for the counter if it's created, in milliseconds. if ttlMillseconds <= 0, it's equivalent to passing the longest available TTL
+     * @return the value of the counter after adding delta, or null if the new value couldn't be stored
+     * @throws com.stackmob.sdkapi.caching.exceptions.TimeoutException if there was a timeout communicating with the cache
+     * @throws com.stackmob.sdkapi.caching.exceptions.RateLimitedException if there was a rate limit imposed on this cache request
+     * @throws com.stackmob.sdkapi.caching.exceptions.DataSizeException if the size of the key was over the Stackmob-defined limit
+     * @throws com.stackmob.sdkapi.caching.exceptions.TTLTooBigException if the given TTL was too big for our caching system to handle
+     * @throws NumberFormatException if the key holds something other than a decimal integer
+     */
+    public abstract Long incrementBy(String key, long delta, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException;
+
+    /**
+     * get the value for the given key, loading and caching it if it's missing. concurrent calls on this CachingService
+     * which miss on the same key share a single load, so a popular key expiring causes one load per node rather than
+     * one per request. equivalent to <code>getOrLoad(key, ttlMilliseconds, 0, loader)</code>
+     * @param key the key to get
+     * @param ttlMilliseconds the TTL for a loaded value, in milliseconds. if ttlMillseconds <= 0, it's equivalent to passing the longest available TTL
+     * @param loader loads the value if it's missing
+     * @return the cached or loaded value, or null if the loader returned null
+     * @throws LoadException if the loader threw an exception
+     */
+    public byte[] getOrLoad(String key, long ttlMilliseconds, CacheLoader loader) throws LoadException {
+        return getOrLoad(key, ttlMilliseconds, 0, loader);
+    }
+
+    /**
+     * get the value for the given key, loading and caching it if it's missing, and sometimes reloading it shortly
+     * before it expires so that callers don't all miss at once. the chance of reloading early rises as the value nears
+     * its expiry, faster for values which took longer to load, and while one caller reloads the rest get the current
+     * value. concurrent calls on this CachingService which miss on the same key share a single load.
+     *
+     * values are stored with a small header, so only read keys used with getOrLoad through getOrLoad. the loaded value
+     * is returned even if it couldn't be cached, and if the cache can't be read the value is loaded
+     * @param key the key to get
+     * @param ttlMilliseconds the TTL for a loaded value, in milliseconds. if ttlMillseconds <= 0, it's equivalent to
+     *                        passing the longest available TTL, and values aren't reloaded early
+     * @param earlyRefreshBeta how eagerly to reload before expiry. 0 turns early reloads off, 1 suits most keys, and
+     *                         bigger values reload earlier
+     * @param loader loads the value if it's missing
+     * @return the cached or loaded value, or null if the loader returned null
+     * @throws LoadException if the loader threw an exception
+     */
+    public byte[] getOrLoad(String key, long ttlMilliseconds, double earlyRefreshBeta, CacheLoader loader) throws LoadException {
+        byte[] stored;
+        try {
+            stored = getBytes(key);
+        } catch(Exception e) {
+            stored = null;
+        }
+        if(stored != null && stored.length >= LOADED_HEADER_SIZE && stored[0] == LOADED_MARKER) {
+            ByteBuffer header = ByteBuffer.wrap(stored);
+            header.get();
+            long expiresAt = header.getLong();
+            int loadMilliseconds = header.getInt();
+            byte[] value = new byte[stored.length - LOADED_HEADER_SIZE];
+            header.get(value);
+            // XFetch: reload early with a probability that grows exponentially as expiry gets closer
+            double headStart = -loadMilliseconds * earlyRefreshBeta * Math.log(1 - Math.random());
+            if(earlyRefreshBeta <= 0 || expiresAt == 0 || System.currentTimeMillis() + headStart < expiresAt) {
+                return value;
+            }
+            try {
+                byte[] reloaded = load(key, ttlMilliseconds, loader, true);
+                return reloaded == null ? value : reloaded;
+            } catch(LoadException e) {
+                // the current value hasn't expired yet
+                return value;
+            }
+        }
+        return load(key, ttlMilliseconds, loader, false);
+    }
+
+    /**
+     * run the loader for a key, or wait for the load another caller on this node is already running
+     * @param onlyIfIdle if true, return null rather than wait for another caller's load
+     */
+    private byte[] load(final String key, final long ttlMilliseconds, final CacheLoader loader, boolean onlyIfIdle) throws LoadException {
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                long start = System.currentTimeMillis();
+                byte[] value = loader.load(key);
+                if(value != null) {
+                    long now = System.currentTimeMillis();
+                    ByteBuffer stored = ByteBuffer.allocate(LOADED_HEADER_SIZE + value.length);
+                    stored.put(LOADED_MARKER);
+                    stored.putLong(ttlMilliseconds <= 0 ? 0 : now + ttlMilliseconds);
+                    stored.putInt((int) Math.min(Integer.MAX_VALUE, now - start));
+                    stored.put(value);
+                    try {
+                        setBytesEventually(key, stored.array(), ttlMilliseconds);
+                    } catch(Exception e) {
+                        // the value just won't be cached
+                    }
+                }
+                return value;
+            }
+        });
+        FutureTask<byte[]> running = loads.putIfAbsent(key, task);
+        if(running == null) {
+            try {
+                task.run();
+            } finally {
+                loads.remove(key, task);
+            }
+            running = task;
+        } else if(onlyIfIdle) {
+            return null;
+        }
+        try {
+            return running.get();
+        } catch(ExecutionException e) {
+            throw new LoadException(key, e.getCause());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LoadException(key, e);
+        }
+    }
+
     /**
      * delete the given key in the background. note that the key may not be deleted immediately after this method returns
      * @param key the key to delete
      * @throws DataSizeException if the given key is too big
      */
     public abstract void deleteEventually(String key) throws DataSizeException;
+
+    private static <T> Future<T> runNow(Callable<T> call) {
+        FutureTask<T> task = new FutureTask<T>(call);
+        task.run();
+        return task;
+    }
 }
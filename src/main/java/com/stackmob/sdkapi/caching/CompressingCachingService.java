@@ -0,0 +1,332 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.caching;
+
+import com.stackmob.sdkapi.caching.exceptions.DataSizeException;
+import com.stackmob.sdkapi.caching.exceptions.RateLimitedException;
+import com.stackmob.sdkapi.caching.exceptions.TTLTooBigException;
+import com.stackmob.sdkapi.caching.exceptions.TimeoutException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A CachingService which deflates values before storing them in another CachingService, so that large, repetitive
+ * values like JSON take less room and fit under the cache's value size limit. Values smaller than a threshold, and
+ * values which don't get smaller, are stored as they are.
+ *
+ * Compressed values start with a header beginning with the byte 0xFE, which never appears in UTF-8 text, and values
+ * without the header are returned as they are. So values stored before compression was turned on, or stored directly
+ * through the wrapped CachingService, still read correctly. Uncompressed values which happen to start with the header
+ * are given a header of their own, so they read back unchanged too.
+ */
+public class CompressingCachingService extends CachingService {
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+
+    private static final byte[] MAGIC = { (byte) 0xfe, 'S', 'M', 'Z' };
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+    // the magic, the format and the original length
+    private static final int HEADER_SIZE = MAGIC.length + 5;
+    // deflate can't shrink anything by more than this, so a bigger original length means a corrupt header
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    // the most idle Deflaters and Inflaters to keep. any more are ended as soon as they're done with, which frees their
+    // native memory rather than leaving it for the finalizer
+    private static final int POOL_SIZE = 16;
+
+    private final CachingService cachingService;
+    private final int thresholdBytes;
+    private final int level;
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+    private final AtomicLong originalBytes = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    /**
+     * create a new CompressingCachingService which compresses values of {@link #DEFAULT_THRESHOLD} bytes or more
+     * @param cachingService the caching service to store compressed values in
+     */
+    public CompressingCachingService(CachingService cachingService) {
+        this(cachingService, DEFAULT_THRESHOLD, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * create a new CompressingCachingService
+     * @param cachingService the caching service to store compressed values in
+     * @param thresholdBytes the smallest value to compress, in bytes
+     * @param level the deflate level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     */
+    public CompressingCachingService(CachingService cachingService, int thresholdBytes, int level) {
+        if(level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        }
+        this.cachingService = cachingService;
+        this.thresholdBytes = thresholdBytes;
+        this.level = level;
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        return decode(cachingService.getBytes(key));
+    }
+
+    @Override
+    public MultiResult<byte[]> getBytesMulti(Collection<String> keys) {
+        MultiResult<byte[]> stored = cachingService.getBytesMulti(keys);
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for(Map.Entry<String, byte[]> value : stored.getResults().entrySet()) {
+            values.put(value.getKey(), decode(value.getValue()));
+        }
+        return new MultiResult<byte[]>(values, stored.getFailures());
+    }
+
+    @Override
+    public Future<byte[]> getBytesAsync(String key) {
+        return new Decoding(cachingService.getBytesAsync(key));
+    }
+
+    @Override
+    public Boolean setBytes(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.setBytes(key, encode(value), ttlMilliseconds);
+    }
+
+    @Override
+    public MultiResult<Boolean> setBytesMulti(Map<String, byte[]> values, long ttlMilliseconds) {
+        Map<String, byte[]> encoded = new HashMap<String, byte[]>();
+        for(Map.Entry<String, byte[]> value : values.entrySet()) {
+            encoded.put(value.getKey(), encode(value.getValue()));
+        }
+        return cachingService.setBytesMulti(encoded, ttlMilliseconds);
+    }
+
+    @Override
+    public Future<Boolean> setBytesAsync(String key, byte[] value, long ttlMilliseconds) {
+        return cachingService.setBytesAsync(key, encode(value), ttlMilliseconds);
+    }
+
+    @Override
+    public void setBytesEventually(String key, byte[] value, long ttlMilliseconds) throws DataSizeException, TTLTooBigException {
+        cachingService.setBytesEventually(key, encode(value), ttlMilliseconds);
+    }
+
+    @Override
+    public VersionedValue getVersioned(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        VersionedValue stored = cachingService.getVersioned(key);
+        return stored == null ? null : new VersionedValue(decode(stored.getValue()), stored.getVersion());
+    }
+
+    @Override
+    public Boolean compareAndSet(String key, long expectedVersion, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.compareAndSet(key, expectedVersion, encode(value), ttlMilliseconds);
+    }
+
+    @Override
+    public Boolean addIfAbsent(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.addIfAbsent(key, encode(value), ttlMilliseconds);
+    }
+
+    /**
+     * counters are small, so they're never compressed
+     */
+    @Override
+    public Long incrementBy(String key, long delta, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.incrementBy(key, delta, ttlMilliseconds);
+    }
+
+    @Override
+    public void deleteEventually(String key) throws DataSizeException {
+        cachingService.deleteEventually(key);
+    }
+
+    /**
+     * @return the total size of the values set through this service, in bytes
+     */
+    public long getOriginalBytes() {
+        return originalBytes.get();
+    }
+
+    /**
+     * @return the total size those values were stored in, headers included, in bytes
+     */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+
+    /**
+     * @return the original size of the values set through this service divided by the size they were stored in, or 1
+     * if nothing has been set
+     */
+    public double getCompressionRatio() {
+        long stored = storedBytes.get();
+        return stored == 0 ? 1 : (double) originalBytes.get() / stored;
+    }
+
+    private byte[] encode(byte[] value) {
+        byte[] encoded = value.length >= thresholdBytes && value.length > HEADER_SIZE ? deflate(value) : null;
+        if(encoded == null) {
+            encoded = hasHeader(value) ? withHeader(STORED, value, value.length) : value;
+        }
+        originalBytes.addAndGet(value.length);
+        storedBytes.addAndGet(encoded.length);
+        return encoded;
+    }
+
+    /**
+     * @return the deflated value with its header, or null if it didn't get any smaller
+     */
+    private byte[] deflate(byte[] value) {
+        Deflater deflater = deflaters.poll();
+        if(deflater == null) {
+            deflater = new Deflater(level);
+        }
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+            byte[] out = new byte[value.length];
+            System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+            out[MAGIC.length] = DEFLATED;
+            writeInt(out, MAGIC.length + 1, value.length);
+            int length = HEADER_SIZE;
+            while(!deflater.finished() && length < out.length) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return deflater.finished() ? Arrays.copyOf(out, length) : null;
+        } finally {
+            deflater.reset();
+            if(!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    private static byte[] withHeader(byte format, byte[] value, int originalLength) {
+        byte[] out = new byte[HEADER_SIZE + value.length];
+        System.arraycopy(MAGIC, 0, out, 0, MAGIC.length);
+        out[MAGIC.length] = format;
+        writeInt(out, MAGIC.length + 1, originalLength);
+        System.arraycopy(value, 0, out, HEADER_SIZE, value.length);
+        return out;
+    }
+
+    /**
+     * @return the original value, or the stored value as it is if it has no header or its header doesn't check out
+     */
+    private byte[] decode(byte[] stored) {
+        if(stored == null || !hasHeader(stored)) {
+            return stored;
+        }
+        int originalLength = readInt(stored, MAGIC.length + 1);
+        int bodyLength = stored.length - HEADER_SIZE;
+        if(stored[MAGIC.length] == STORED && originalLength == bodyLength) {
+            return Arrays.copyOfRange(stored, HEADER_SIZE, stored.length);
+        }
+        if(stored[MAGIC.length] != DEFLATED || originalLength < 0 || originalLength > (long) bodyLength * MAX_DEFLATE_RATIO) {
+            return stored;
+        }
+        Inflater inflater = inflaters.poll();
+        if(inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(stored, HEADER_SIZE, bodyLength);
+            byte[] value = new byte[originalLength];
+            int length = 0;
+            while(length < originalLength && !inflater.finished() && !inflater.needsInput()) {
+                length += inflater.inflate(value, length, originalLength - length);
+            }
+            return length == originalLength && inflater.finished() ? value : stored;
+        } catch(DataFormatException e) {
+            return stored;
+        } finally {
+            inflater.reset();
+            if(!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static boolean hasHeader(byte[] value) {
+        if(value.length < HEADER_SIZE) {
+            return false;
+        }
+        for(int i = 0; i < MAGIC.length; i++) {
+            if(value[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * decodes the result of an async get when it's asked for
+     */
+    private final class Decoding implements Future<byte[]> {
+        private final Future<byte[]> stored;
+
+        Decoding(Future<byte[]> stored) {
+            this.stored = stored;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return stored.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return stored.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return stored.isDone();
+        }
+
+        @Override
+        public byte[] get() throws InterruptedException, ExecutionException {
+            return decode(stored.get());
+        }
+
+        @Override
+        public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, java.util.concurrent.TimeoutException {
+            return decode(stored.get(timeout, unit));
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.caching;
+
+import com.stackmob.sdkapi.caching.exceptions.DataSizeException;
+import com.stackmob.sdkapi.caching.exceptions.RateLimitedException;
+import com.stackmob.sdkapi.caching.exceptions.TTLTooBigException;
+import com.stackmob.sdkapi.caching.exceptions.TimeoutException;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A CachingService which runs the async and background calls of a blocking CachingService on an ExecutorService, so
+ * that they don't hold up the caller. Blocking calls go straight to the wrapped CachingService.
+ *
+ * With a single threaded executor, async and background calls reach the cache in the order they were made, like
+ * requests pipelined over one connection, so a <code>setBytesEventually</code> followed by a
+ * <code>deleteEventually</code> of the same key leaves it deleted. A blocking call doesn't wait for them though, so a
+ * <code>getBytes</code> right after a <code>setBytesAsync</code> may not see the new value until its Future is done.
+ */
+public class ExecutorCachingService extends CachingService {
+
+    private final CachingService cachingService;
+    private final ExecutorService executor;
+
+    /**
+     * create a new ExecutorCachingService
+     * @param cachingService the caching service to make calls on
+     * @param executor the executor to make async and background calls in. it isn't shut down by this class
+     */
+    public ExecutorCachingService(CachingService cachingService, ExecutorService executor) {
+        this.cachingService = cachingService;
+        this.executor = executor;
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        return cachingService.getBytes(key);
+    }
+
+    @Override
+    public Integer getInto(String key, ByteBuffer into) throws TimeoutException, RateLimitedException, DataSizeException {
+        return cachingService.getInto(key, into);
+    }
+
+    @Override
+    public ByteBuffer getBuffer(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        return cachingService.getBuffer(key);
+    }
+
+    @Override
+    public MultiResult<byte[]> getBytesMulti(Collection<String> keys) {
+        return cachingService.getBytesMulti(keys);
+    }
+
+    @Override
+    public Future<byte[]> getBytesAsync(final String key) {
+        return executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return cachingService.getBytes(key);
+            }
+        });
+    }
+
+    @Override
+    public Boolean setBytes(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.setBytes(key, value, ttlMilliseconds);
+    }
+
+    @Override
+    public Boolean setBuffer(String key, ByteBuffer value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.setBuffer(key, value, ttlMilliseconds);
+    }
+
+    @Override
+    public MultiResult<Boolean> setBytesMulti(Map<String, byte[]> values, long ttlMilliseconds) {
+        return cachingService.setBytesMulti(values, ttlMilliseconds);
+    }
+
+    @Override
+    public Future<Boolean> setBytesAsync(final String key, final byte[] value, final long ttlMilliseconds) {
+        return executor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return cachingService.setBytes(key, value, ttlMilliseconds);
+            }
+        });
+    }
+
+    /**
+     * store the given key/value pair on the executor. since the set happens after this method returns, a key, value
+     * or TTL which is too big is dropped along with timeouts and rate limiting rather than thrown
+     */
+    @Override
+    public void setBytesEventually(final String key, final byte[] value, final long ttlMilliseconds) {
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                cachingService.setBytes(key, value, ttlMilliseconds);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public VersionedValue getVersioned(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        return cachingService.getVersioned(key);
+    }
+
+    @Override
+    public Boolean compareAndSet(String key, long expectedVersion, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.compareAndSet(key, expectedVersion, value, ttlMilliseconds);
+    }
+
+    @Override
+    public Boolean addIfAbsent(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.addIfAbsent(key, value, ttlMilliseconds);
+    }
+
+    @Override
+    public Long incrementBy(String key, long delta, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.incrementBy(key, delta, ttlMilliseconds);
+    }
+
+    /**
+     * delete the given key on the executor, after any async and background calls made before it on a single threaded
+     * executor. a key which is too big is dropped rather than thrown
+     */
+    @Override
+    public void deleteEventually(final String key) {
+        executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                cachingService.deleteEventually(key);
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.caching;
+
+import java.util.Map;
+
+/**
+ * The outcome of a CachingService operation on many keys at once. Each key either has a result or failed on its own
+ * with the exception the corresponding single key operation would have thrown, such as a
+ * {@link com.stackmob.sdkapi.caching.exceptions.DataSizeException} for a key that's too big.
+ * @param <T> the type of result for each key
+ */
+public class MultiResult<T> {
+
+    private final Map<String, T> results;
+    private final Map<String, Exception> failures;
+
+    public MultiResult(Map<String, T> results, Map<String, Exception> failures) {
+        this.results = results;
+        this.failures = failures;
+    }
+
+    /**
+     * @return the result for each key which didn't fail
+     */
+    public Map<String, T> getResults() {
+        return results;
+    }
+
+    /**
+     * @return the exception for each key which failed
+     */
+    public Map<String, Exception> getFailures() {
+        return failures;
+    }
+}
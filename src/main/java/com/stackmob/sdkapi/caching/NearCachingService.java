@@ -0,0 +1,358 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.caching;
+
+import com.stackmob.sdkapi.caching.exceptions.DataSizeException;
+import com.stackmob.sdkapi.caching.exceptions.RateLimitedException;
+import com.stackmob.sdkapi.caching.exceptions.TTLTooBigException;
+import com.stackmob.sdkapi.caching.exceptions.TimeoutException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A CachingService which keeps recently read values in the JVM in front of another CachingService, so that hot keys
+ * like app config don't need a trip to the cache on every request. Local copies last for a short local TTL, or the
+ * TTL they were set with if that's shorter, and the least recently used ones are dropped to stay under a size bound.
+ *
+ * Sets and deletes through this NearCachingService update or drop the local copy, so this node always sees its own
+ * writes. Writes from other nodes aren't seen until the local copy expires, so pick a local TTL you can live with
+ * serving stale values for.
+ *
+ * Local copies are split into segments by key, each with its own lock and least recently used order, so gets of
+ * different keys rarely wait on each other. Each segment holds an equal share of maxBytes.
+ */
+public class NearCachingService extends CachingService {
+
+    // a rough allowance for the map entry, key and value array headers
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int SEGMENTS = 16;
+    private static final int STAMPS = 1024;
+
+    private final CachingService cachingService;
+    private final long localTtlMilliseconds;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    // bumped by every write to a key with the same hash, so that a get doesn't keep a value a write raced past
+    private final AtomicLongArray writes = new AtomicLongArray(STAMPS);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * create a new NearCachingService
+     * @param cachingService the caching service to read through and write through to
+     * @param maxBytes the most memory to use for local copies, in bytes, roughly counting keys and bookkeeping as well
+     *                 as values
+     * @param localTtlMilliseconds the longest a local copy is kept, in milliseconds
+     */
+    public NearCachingService(CachingService cachingService, long maxBytes, long localTtlMilliseconds) {
+        if(maxBytes <= 0 || localTtlMilliseconds <= 0) {
+            throw new IllegalArgumentException("maxBytes and localTtlMilliseconds must be positive");
+        }
+        this.cachingService = cachingService;
+        this.localTtlMilliseconds = localTtlMilliseconds;
+        for(int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(Math.max(maxBytes / SEGMENTS, 1));
+        }
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        byte[] value = getLocal(key);
+        if(value != null) {
+            hits.incrementAndGet();
+            return value;
+        }
+        misses.incrementAndGet();
+        long stamp = writes.get(stampIndex(key));
+        value = cachingService.getBytes(key);
+        if(value != null) {
+            putLocal(key, value, localTtlMilliseconds, stamp);
+        }
+        return value;
+    }
+
+    @Override
+    public MultiResult<byte[]> getBytesMulti(Collection<String> keys) {
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        List<String> remote = new ArrayList<String>();
+        for(String key : keys) {
+            byte[] value = getLocal(key);
+            if(value != null) {
+                values.put(key, value);
+            } else {
+                remote.add(key);
+            }
+        }
+        hits.addAndGet(values.size());
+        misses.addAndGet(remote.size());
+        if(remote.isEmpty()) {
+            return new MultiResult<byte[]>(values, new HashMap<String, Exception>());
+        }
+        Map<String, Long> stamps = new HashMap<String, Long>();
+        for(String key : remote) {
+            stamps.put(key, writes.get(stampIndex(key)));
+        }
+        MultiResult<byte[]> fetched = cachingService.getBytesMulti(remote);
+        for(Map.Entry<String, byte[]> value : fetched.getResults().entrySet()) {
+            putLocal(value.getKey(), value.getValue(), localTtlMilliseconds, stamps.get(value.getKey()));
+            values.put(value.getKey(), value.getValue());
+        }
+        return new MultiResult<byte[]>(values, fetched.getFailures());
+    }
+
+    /**
+     * get the value for the given key from its local copy, or without waiting for the wrapped caching service. values
+     * read this way aren't kept locally
+     */
+    @Override
+    public Future<byte[]> getBytesAsync(String key) {
+        final byte[] value = getLocal(key);
+        if(value == null) {
+            misses.incrementAndGet();
+            return cachingService.getBytesAsync(key);
+        }
+        hits.incrementAndGet();
+        FutureTask<byte[]> done = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return value;
+            }
+        });
+        done.run();
+        return done;
+    }
+
+    @Override
+    public Boolean setBytes(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        long stamp = invalidate(key);
+        Boolean set = cachingService.setBytes(key, value, ttlMilliseconds);
+        if(Boolean.TRUE.equals(set)) {
+            putLocal(key, value, ttlMilliseconds, stamp);
+        }
+        return set;
+    }
+
+    @Override
+    public MultiResult<Boolean> setBytesMulti(Map<String, byte[]> values, long ttlMilliseconds) {
+        for(String key : values.keySet()) {
+            invalidate(key);
+        }
+        return cachingService.setBytesMulti(values, ttlMilliseconds);
+    }
+
+    @Override
+    public Future<Boolean> setBytesAsync(String key, byte[] value, long ttlMilliseconds) {
+        invalidate(key);
+        return cachingService.setBytesAsync(key, value, ttlMilliseconds);
+    }
+
+    @Override
+    public void setBytesEventually(String key, byte[] value, long ttlMilliseconds) throws DataSizeException, TTLTooBigException {
+        invalidate(key);
+        cachingService.setBytesEventually(key, value, ttlMilliseconds);
+    }
+
+    @Override
+    public VersionedValue getVersioned(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        return cachingService.getVersioned(key);
+    }
+
+    @Override
+    public Boolean compareAndSet(String key, long expectedVersion, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        invalidate(key);
+        return cachingService.compareAndSet(key, expectedVersion, value, ttlMilliseconds);
+    }
+
+    @Override
+    public Boolean addIfAbsent(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        invalidate(key);
+        return cachingService.addIfAbsent(key, value, ttlMilliseconds);
+    }
+
+    @Override
+    public Long incrementBy(String key, long delta, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        invalidate(key);
+        return cachingService.incrementBy(key, delta, ttlMilliseconds);
+    }
+
+    @Override
+    public void deleteEventually(String key) throws DataSizeException {
+        invalidate(key);
+        cachingService.deleteEventually(key);
+    }
+
+    /**
+     * @return the number of gets answered from a local copy
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of gets which had to go to the wrapped caching service
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the fraction of gets answered from a local copy, or 0 if there haven't been any gets
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return the memory used by local copies, in bytes, counted the same way as maxBytes
+     */
+    public long getLocalBytes() {
+        long bytes = 0;
+        for(Segment segment : segments) {
+            synchronized(segment) {
+                bytes += segment.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * drop every local copy, so the next get of each key goes to the wrapped caching service
+     */
+    public void clearLocal() {
+        for(int i = 0; i < STAMPS; i++) {
+            writes.incrementAndGet(i);
+        }
+        for(Segment segment : segments) {
+            synchronized(segment) {
+                segment.local.clear();
+                segment.bytes = 0;
+            }
+        }
+    }
+
+    private byte[] getLocal(String key) {
+        Segment segment = segmentFor(key);
+        synchronized(segment) {
+            Local copy = segment.local.get(key);
+            if(copy == null) {
+                return null;
+            }
+            if(copy.expiresAt <= System.currentTimeMillis()) {
+                segment.remove(key);
+                return null;
+            }
+            // callers may modify the arrays they're given
+            return copy.value.clone();
+        }
+    }
+
+    private void putLocal(String key, byte[] value, long ttlMilliseconds, long stamp) {
+        long ttl = ttlMilliseconds <= 0 ? localTtlMilliseconds : Math.min(ttlMilliseconds, localTtlMilliseconds);
+        Segment segment = segmentFor(key);
+        Local copy = new Local(value.clone(), System.currentTimeMillis() + ttl, sizeOf(key, value));
+        if(copy.size > segment.maxBytes) {
+            return;
+        }
+        synchronized(segment) {
+            // a write since the value was read may have changed it
+            if(writes.get(stampIndex(key)) != stamp) {
+                return;
+            }
+            segment.remove(key);
+            segment.local.put(key, copy);
+            segment.bytes += copy.size;
+            Iterator<Local> oldest = segment.local.values().iterator();
+            while(segment.bytes > segment.maxBytes) {
+                segment.bytes -= oldest.next().size;
+                oldest.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the write stamp, which a set can keep its value locally under if no other write comes along
+     */
+    private long invalidate(String key) {
+        long stamp = writes.incrementAndGet(stampIndex(key));
+        Segment segment = segmentFor(key);
+        synchronized(segment) {
+            segment.remove(key);
+        }
+        return stamp;
+    }
+
+    private Segment segmentFor(String key) {
+        return segments[spread(key) & (SEGMENTS - 1)];
+    }
+
+    private static int stampIndex(String key) {
+        return spread(key) & (STAMPS - 1);
+    }
+
+    private static int spread(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static long sizeOf(String key, byte[] value) {
+        return ENTRY_OVERHEAD + 2L * key.length() + value.length;
+    }
+
+    /**
+     * the local copies of some of the keys, in least recently used order. guarded by its own monitor
+     */
+    private static final class Segment {
+        final LinkedHashMap<String, Local> local = new LinkedHashMap<String, Local>(16, 0.75f, true);
+        final long maxBytes;
+        long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        void remove(String key) {
+            Local copy = local.remove(key);
+            if(copy != null) {
+                bytes -= copy.size;
+            }
+        }
+    }
+
+    private static final class Local {
+        final byte[] value;
+        final long expiresAt;
+        final long size;
+
+        Local(byte[] value, long expiresAt, long size) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.size = size;
+        }
+    }
+}
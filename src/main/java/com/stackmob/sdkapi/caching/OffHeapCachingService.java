@@ -0,0 +1,872 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.caching;
+
+import com.stackmob.sdkapi.caching.exceptions.DataSizeException;
+import com.stackmob.sdkapi.caching.exceptions.TTLTooBigException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A CachingService which runs inside the current JVM, for running and load testing cache-heavy custom code locally.
+ * Values are stored outside the Java heap, in direct ByteBuffer pages, so that millions of cached values don't add to
+ * garbage collection pauses. It enforces key size, value size and TTL limits in the same way as StackMob's cache.
+ *
+ * Memory is managed like memcached's slab allocator: each page is split into equal sized chunks, and a value goes in
+ * the smallest chunk size it fits in. Values bigger than a page take whole pages of their own. When the cache is full,
+ * the least recently used value of the same chunk size is evicted, or if there are none, a page is taken back from
+ * another chunk size. Expired values are dropped as a hierarchical timing wheel reaches them, and are never returned
+ * even before that.
+ *
+ * Keys are spread across independently locked segments, so operations on different keys rarely wait for each other.
+ * Pages which become empty go back to a pool shared by all segments.
+ */
+public class OffHeapCachingService extends CachingService {
+
+    public static final int DEFAULT_MAX_KEY_SIZE = 250;
+    public static final int DEFAULT_MAX_VALUE_SIZE = 1024 * 1024;
+    public static final long DEFAULT_MAX_TTL_MILLISECONDS = TimeUnit.DAYS.toMillis(30);
+    public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+
+    private static final int SEGMENTS = 16;
+    private static final int PAGE_SIZE = 64 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final double CHUNK_GROWTH_FACTOR = 1.25;
+
+    private static final long TICK_MILLISECONDS = 100;
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int WHEEL_LEVELS = 5;
+
+    private final int maxKeySize;
+    private final int maxValueSize;
+    private final long maxTtlMilliseconds;
+    private final int[] chunkSizes;
+    private final AtomicInteger unallocatedPages;
+    private final ConcurrentLinkedQueue<ByteBuffer> freePages = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * create a new OffHeapCachingService with the default capacity and limits
+     */
+    public OffHeapCachingService() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * create a new OffHeapCachingService with the default limits
+     * @param capacityBytes the most memory to use for values, in bytes
+     */
+    public OffHeapCachingService(long capacityBytes) {
+        this(capacityBytes, DEFAULT_MAX_KEY_SIZE, DEFAULT_MAX_VALUE_SIZE, DEFAULT_MAX_TTL_MILLISECONDS);
+    }
+
+    /**
+     * create a new OffHeapCachingService
+     * @param capacityBytes the most memory to use for values, in bytes. memory is allocated in 64KB pages as it's
+     *                      needed, and enough for at least one value of maxValueSize is always allowed
+     * @param maxKeySize the largest key allowed, in UTF-8 bytes
+     * @param maxValueSize the largest value allowed, in bytes
+     * @param maxTtlMilliseconds the longest TTL allowed, in milliseconds. this is the TTL used when a TTL <= 0 is given
+     */
+    public OffHeapCachingService(long capacityBytes, int maxKeySize, int maxValueSize, long maxTtlMilliseconds) {
+        if(maxKeySize <= 0 || maxValueSize <= 0 || maxTtlMilliseconds <= 0) {
+            throw new IllegalArgumentException("limits must be positive");
+        }
+        this.maxKeySize = maxKeySize;
+        this.maxValueSize = maxValueSize;
+        this.maxTtlMilliseconds = maxTtlMilliseconds;
+        long pages = Math.max(capacityBytes / PAGE_SIZE, pagesFor(maxValueSize));
+        this.unallocatedPages = new AtomicInteger((int) Math.min(Integer.MAX_VALUE, pages));
+
+        List<Integer> sizes = new ArrayList<Integer>();
+        int largest = Math.min(maxValueSize, PAGE_SIZE);
+        int size = Math.min(MIN_CHUNK_SIZE, largest);
+        while(size < largest) {
+            sizes.add(size);
+            // keep chunks 8 byte aligned
+            size = Math.max(size + 8, ((int) (size * CHUNK_GROWTH_FACTOR) + 7) & ~7);
+        }
+        sizes.add(largest);
+        chunkSizes = new int[sizes.size()];
+        for(int i = 0; i < chunkSizes.length; i++) {
+            chunkSizes[i] = sizes.get(i);
+        }
+
+        for(int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(System.currentTimeMillis() / TICK_MILLISECONDS);
+        }
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws DataSizeException {
+        checkKey(key, Operation.GET);
+        return segmentFor(key).get(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public Boolean setBytes(String key, byte[] value, long ttlMilliseconds) throws DataSizeException, TTLTooBigException {
+        checkKey(key, Operation.SET);
+        if(value.length > maxValueSize) {
+            throw new DataSizeException(Operation.SET);
+        }
+        if(ttlMilliseconds > maxTtlMilliseconds) {
+            throw new TTLTooBigException(ttlMilliseconds);
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + (ttlMilliseconds <= 0 ? maxTtlMilliseconds : ttlMilliseconds);
+        return segmentFor(key).put(key, ByteBuffer.wrap(value), expiresAt, now);
+    }
+
+    /**
+     * copy the value for the given key straight from off heap memory into a buffer, without allocating an array
+     */
+    @Override
+    public Integer getInto(String key, ByteBuffer into) throws DataSizeException {
+        checkKey(key, Operation.GET);
+        return segmentFor(key).getInto(key, into, System.currentTimeMillis());
+    }
+
+    /**
+     * store the remaining bytes of a buffer straight into off heap memory, without copying them to an array first
+     */
+    @Override
+    public Boolean setBuffer(String key, ByteBuffer value, long ttlMilliseconds) throws DataSizeException, TTLTooBigException {
+        checkKey(key, Operation.SET);
+        if(value.remaining() > maxValueSize) {
+            throw new DataSizeException(Operation.SET);
+        }
+        if(ttlMilliseconds > maxTtlMilliseconds) {
+            throw new TTLTooBigException(ttlMilliseconds);
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + (ttlMilliseconds <= 0 ? maxTtlMilliseconds : ttlMilliseconds);
+        return segmentFor(key).put(key, value.duplicate(), expiresAt, now);
+    }
+
+    @Override
+    public VersionedValue getVersioned(String key) throws DataSizeException {
+        checkKey(key, Operation.GET);
+        return segmentFor(key).getVersioned(key, System.currentTimeMillis());
+    }
+
+    @Override
+    public Boolean compareAndSet(String key, long expectedVersion, byte[] value, long ttlMilliseconds) throws DataSizeException, TTLTooBigException {
+        checkKey(key, Operation.COMPARE_AND_SET);
+        if(value.length > maxValueSize) {
+            throw new DataSizeException(Operation.COMPARE_AND_SET);
+        }
+        if(ttlMilliseconds > maxTtlMilliseconds) {
+            throw new TTLTooBigException(ttlMilliseconds);
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + (ttlMilliseconds <= 0 ? maxTtlMilliseconds : ttlMilliseconds);
+        return segmentFor(key).compareAndSet(key, expectedVersion, value, expiresAt, now);
+    }
+
+    @Override
+    public Boolean addIfAbsent(String key, byte[] value, long ttlMilliseconds) throws DataSizeException, TTLTooBigException {
+        checkKey(key, Operation.ADD);
+        if(value.length > maxValueSize) {
+            throw new DataSizeException(Operation.ADD);
+        }
+        if(ttlMilliseconds > maxTtlMilliseconds) {
+            throw new TTLTooBigException(ttlMilliseconds);
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + (ttlMilliseconds <= 0 ? maxTtlMilliseconds : ttlMilliseconds);
+        return segmentFor(key).addIfAbsent(key, value, expiresAt, now);
+    }
+
+    @Override
+    public Long incrementBy(String key, long delta, long ttlMilliseconds) throws DataSizeException, TTLTooBigException {
+        checkKey(key, Operation.INCREMENT);
+        if(ttlMilliseconds > maxTtlMilliseconds) {
+            throw new TTLTooBigException(ttlMilliseconds);
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + (ttlMilliseconds <= 0 ? maxTtlMilliseconds : ttlMilliseconds);
+        return segmentFor(key).increment(key, delta, expiresAt, now);
+    }
+
+    /**
+     * get the values for many keys, visiting each segment once for all of its keys
+     */
+    @Override
+    public MultiResult<byte[]> getBytesMulti(Collection<String> keys) {
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        Map<String, Exception> failures = new HashMap<String, Exception>();
+        List<List<String>> bySegment = new ArrayList<List<String>>(SEGMENTS);
+        for(int i = 0; i < SEGMENTS; i++) {
+            bySegment.add(new ArrayList<String>());
+        }
+        for(String key : keys) {
+            try {
+                checkKey(key, Operation.GET);
+                bySegment.get(segmentIndex(key)).add(key);
+            } catch(DataSizeException e) {
+                failures.put(key, e);
+            }
+        }
+        long now = System.currentTimeMillis();
+        for(int i = 0; i < SEGMENTS; i++) {
+            if(!bySegment.get(i).isEmpty()) {
+                segments[i].getAll(bySegment.get(i), now, values);
+            }
+        }
+        return new MultiResult<byte[]>(values, failures);
+    }
+
+    /**
+     * store many key/value pairs, visiting each segment once for all of its keys
+     */
+    @Override
+    public MultiResult<Boolean> setBytesMulti(Map<String, byte[]> values, long ttlMilliseconds) {
+        Map<String, Boolean> results = new HashMap<String, Boolean>();
+        Map<String, Exception> failures = new HashMap<String, Exception>();
+        List<List<Map.Entry<String, byte[]>>> bySegment = new ArrayList<List<Map.Entry<String, byte[]>>>(SEGMENTS);
+        for(int i = 0; i < SEGMENTS; i++) {
+            bySegment.add(new ArrayList<Map.Entry<String, byte[]>>());
+        }
+        for(Map.Entry<String, byte[]> value : values.entrySet()) {
+            try {
+                checkKey(value.getKey(), Operation.SET);
+                if(value.getValue().length > maxValueSize) {
+                    throw new DataSizeException(Operation.SET);
+                }
+                if(ttlMilliseconds > maxTtlMilliseconds) {
+                    throw new TTLTooBigException(ttlMilliseconds);
+                }
+                bySegment.get(segmentIndex(value.getKey())).add(value);
+            } catch(DataSizeException e) {
+                failures.put(value.getKey(), e);
+            } catch(TTLTooBigException e) {
+                failures.put(value.getKey(), e);
+            }
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + (ttlMilliseconds <= 0 ? maxTtlMilliseconds : ttlMilliseconds);
+        for(int i = 0; i < SEGMENTS; i++) {
+            if(!bySegment.get(i).isEmpty()) {
+                segments[i].putAll(bySegment.get(i), expiresAt, now, results);
+            }
+        }
+        return new MultiResult<Boolean>(results, failures);
+    }
+
+    /**
+     * delete the given key. it's deleted immediately, before this method returns
+     * @param key the key to delete
+     * @throws DataSizeException if the given key is too big
+     */
+    @Override
+    public void deleteEventually(String key) throws DataSizeException {
+        checkKey(key, Operation.DELETE);
+        segmentFor(key).remove(key, System.currentTimeMillis());
+    }
+
+    private void checkKey(String key, Operation op) throws DataSizeException {
+        if(Utf8.length(key, maxKeySize) > maxKeySize) {
+            throw new DataSizeException(op);
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        return segments[segmentIndex(key)];
+    }
+
+    private static int segmentIndex(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (SEGMENTS - 1);
+    }
+
+    private int chunkClassFor(int length) {
+        int index = Arrays.binarySearch(chunkSizes, length);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static int pagesFor(int length) {
+        return Math.max(1, (length + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    /**
+     * take a page from the free pages, or allocate a new one if the capacity allows
+     * @return the page, or null if the cache is at capacity
+     */
+    private ByteBuffer takePage() {
+        ByteBuffer page = freePages.poll();
+        if(page != null) {
+            return page;
+        }
+        if(unallocatedPages.getAndDecrement() > 0) {
+            return ByteBuffer.allocateDirect(PAGE_SIZE);
+        }
+        unallocatedPages.incrementAndGet();
+        return null;
+    }
+
+    private static final class Entry {
+        final String key;
+        final ChunkClass chunkClass;
+        // a single page for values stored in a chunk, or every page of a value bigger than a page
+        final Page[] pages;
+        final int slot;
+        final int length;
+        final long expiresAt;
+        final long expiresTick;
+        long lastAccess;
+        // changes every time the key is stored, for compareAndSet
+        long version;
+        // the chunk size's LRU list, most recently used first
+        Entry newer;
+        Entry older;
+        // the timing wheel slot's list
+        Entry wheelPrev;
+        Entry wheelNext;
+        int wheelLevel = -1;
+        int wheelIndex;
+
+        Entry(String key, ChunkClass chunkClass, Page[] pages, int slot, int length, long expiresAt, long now) {
+            this.key = key;
+            this.chunkClass = chunkClass;
+            this.pages = pages;
+            this.slot = slot;
+            this.length = length;
+            this.expiresAt = expiresAt;
+            this.expiresTick = (expiresAt + TICK_MILLISECONDS - 1) / TICK_MILLISECONDS;
+            this.lastAccess = now;
+        }
+
+        /**
+         * copy the remaining bytes of a buffer into the pages, leaving the buffer's position at its limit
+         */
+        void write(ByteBuffer value) {
+            int limit = value.limit();
+            for(int i = 0, offset = 0; offset < length; i++, offset += PAGE_SIZE) {
+                value.limit(value.position() + Math.min(PAGE_SIZE, length - offset));
+                ByteBuffer buffer = pages[i].buffer;
+                buffer.position(slot * chunkClass.chunkSize);
+                buffer.put(value);
+            }
+            value.limit(limit);
+        }
+
+        void read(byte[] value) {
+            for(int i = 0, offset = 0; offset < length; i++, offset += PAGE_SIZE) {
+                ByteBuffer buffer = pages[i].buffer;
+                buffer.position(slot * chunkClass.chunkSize);
+                buffer.get(value, offset, Math.min(PAGE_SIZE, length - offset));
+            }
+        }
+
+        /**
+         * copy the value into a buffer with room for it, moving the buffer's position past it
+         */
+        void read(ByteBuffer into) {
+            for(int i = 0, offset = 0; offset < length; i++, offset += PAGE_SIZE) {
+                ByteBuffer buffer = pages[i].buffer;
+                int start = slot * chunkClass.chunkSize;
+                buffer.limit(start + Math.min(PAGE_SIZE, length - offset));
+                buffer.position(start);
+                into.put(buffer);
+                buffer.limit(buffer.capacity());
+            }
+        }
+    }
+
+    /**
+     * a page of memory split into chunks of a single size, and the entries occupying them
+     */
+    private static final class Page {
+        final ByteBuffer buffer;
+        final Entry[] owners;
+        final int[] free;
+        int freeCount;
+
+        Page(ByteBuffer buffer, ChunkClass chunkClass) {
+            this.buffer = buffer;
+            this.owners = new Entry[chunkClass.chunksPerPage];
+            this.free = new int[chunkClass.chunksPerPage];
+            for(int i = 0; i < free.length; i++) {
+                free[i] = free.length - 1 - i;
+            }
+            this.freeCount = free.length;
+        }
+
+        boolean isEmpty() {
+            return freeCount == free.length;
+        }
+    }
+
+    /**
+     * one chunk size within a segment: its pages and an LRU list of its entries
+     */
+    private static final class ChunkClass {
+        final int chunkSize;
+        final int chunksPerPage;
+        final List<Page> pages = new ArrayList<Page>();
+        Entry newest;
+        Entry oldest;
+
+        ChunkClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunksPerPage = PAGE_SIZE / chunkSize;
+        }
+
+        void addNewest(Entry entry) {
+            entry.older = newest;
+            entry.newer = null;
+            if(newest != null) {
+                newest.newer = entry;
+            } else {
+                oldest = entry;
+            }
+            newest = entry;
+        }
+
+        void unlink(Entry entry) {
+            if(entry.newer != null) {
+                entry.newer.older = entry.older;
+            } else {
+                newest = entry.older;
+            }
+            if(entry.older != null) {
+                entry.older.newer = entry.newer;
+            } else {
+                oldest = entry.newer;
+            }
+            entry.newer = null;
+            entry.older = null;
+        }
+
+        Page pageWithRoom() {
+            for(Page page : pages) {
+                if(page.freeCount > 0) {
+                    return page;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Map<String, Entry> entries = new HashMap<String, Entry>();
+        private final ChunkClass[] chunkClasses = new ChunkClass[chunkSizes.length];
+        // values bigger than a page, each of which has whole pages to itself
+        private final ChunkClass wholePages = new ChunkClass(PAGE_SIZE);
+        private final Entry[][] wheel = new Entry[WHEEL_LEVELS][WHEEL_SIZE];
+        private long currentTick;
+        private long lastVersion;
+
+        Segment(long currentTick) {
+            this.currentTick = currentTick;
+            for(int i = 0; i < chunkClasses.length; i++) {
+                chunkClasses[i] = new ChunkClass(chunkSizes[i]);
+            }
+        }
+
+        byte[] get(String key, long now) {
+            lock.lock();
+            try {
+                advance(now);
+                return read(key, now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void getAll(List<String> keys, long now, Map<String, byte[]> into) {
+            lock.lock();
+            try {
+                advance(now);
+                for(String key : keys) {
+                    byte[] value = read(key, now);
+                    if(value != null) {
+                        into.put(key, value);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        VersionedValue getVersioned(String key, long now) {
+            lock.lock();
+            try {
+                advance(now);
+                Entry entry = live(key, now);
+                return entry == null ? null : new VersionedValue(read(entry, now), entry.version);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private byte[] read(String key, long now) {
+            Entry entry = live(key, now);
+            return entry == null ? null : read(entry, now);
+        }
+
+        private byte[] read(Entry entry, long now) {
+            touch(entry, now);
+            byte[] value = new byte[entry.length];
+            entry.read(value);
+            return value;
+        }
+
+        Integer getInto(String key, ByteBuffer into, long now) {
+            lock.lock();
+            try {
+                advance(now);
+                Entry entry = live(key, now);
+                if(entry == null) {
+                    return null;
+                }
+                touch(entry, now);
+                if(entry.length <= into.remaining()) {
+                    entry.read(into);
+                }
+                return entry.length;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void touch(Entry entry, long now) {
+            entry.chunkClass.unlink(entry);
+            entry.chunkClass.addNewest(entry);
+            entry.lastAccess = now;
+        }
+
+        /**
+         * @return the entry for the key, or null if there isn't one or it has expired
+         */
+        private Entry live(String key, long now) {
+            Entry entry = entries.get(key);
+            if(entry != null && entry.expiresAt <= now) {
+                remove(entry);
+                return null;
+            }
+            return entry;
+        }
+
+        boolean put(String key, ByteBuffer value, long expiresAt, long now) {
+            lock.lock();
+            try {
+                advance(now);
+                return store(key, value, expiresAt, now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void putAll(List<Map.Entry<String, byte[]>> values, long expiresAt, long now, Map<String, Boolean> into) {
+            lock.lock();
+            try {
+                advance(now);
+                for(Map.Entry<String, byte[]> value : values) {
+                    into.put(value.getKey(), store(value.getKey(), ByteBuffer.wrap(value.getValue()), expiresAt, now));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean compareAndSet(String key, long expectedVersion, byte[] value, long expiresAt, long now) {
+            lock.lock();
+            try {
+                advance(now);
+                Entry entry = live(key, now);
+                return entry != null && entry.version == expectedVersion && store(key, ByteBuffer.wrap(value), expiresAt, now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean addIfAbsent(String key, byte[] value, long expiresAt, long now) {
+            lock.lock();
+            try {
+                advance(now);
+                return live(key, now) == null && store(key, ByteBuffer.wrap(value), expiresAt, now);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * add to the counter stored as a decimal string under the key, creating it if it doesn't exist. an existing
+         * counter keeps its expiry time
+         */
+        Long increment(String key, long delta, long expiresAt, long now) {
+            lock.lock();
+            try {
+                advance(now);
+                Entry entry = live(key, now);
+                long result = delta;
+                if(entry != null) {
+                    byte[] current = new byte[entry.length];
+                    entry.read(current);
+                    result += Long.parseLong(new String(current, utf8Charset));
+                    expiresAt = entry.expiresAt;
+                }
+                if(!store(key, ByteBuffer.wrap(Long.toString(result).getBytes(utf8Charset)), expiresAt, now)) {
+                    // the same as a failed set: the counter is gone rather than stale
+                    return null;
+                }
+                return result;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * store the remaining bytes of a buffer as the value for a key
+         */
+        private boolean store(String key, ByteBuffer value, long expiresAt, long now) {
+            Entry old = entries.get(key);
+            if(old != null) {
+                remove(old);
+            }
+            int length = value.remaining();
+            Entry entry = length <= PAGE_SIZE ? allocateChunk(key, length, expiresAt, now)
+                    : allocatePages(key, length, expiresAt, now);
+            if(entry == null) {
+                return false;
+            }
+            entry.write(value);
+            entry.version = ++lastVersion;
+            entries.put(key, entry);
+            entry.chunkClass.addNewest(entry);
+            schedule(entry);
+            return true;
+        }
+
+        void remove(String key, long now) {
+            lock.lock();
+            try {
+                advance(now);
+                Entry entry = entries.get(key);
+                if(entry != null) {
+                    remove(entry);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void remove(Entry entry) {
+            entries.remove(entry.key);
+            unschedule(entry);
+            ChunkClass chunkClass = entry.chunkClass;
+            chunkClass.unlink(entry);
+            if(chunkClass == wholePages) {
+                for(Page page : entry.pages) {
+                    freePages.offer(page.buffer);
+                }
+                return;
+            }
+            Page page = entry.pages[0];
+            page.owners[entry.slot] = null;
+            page.free[page.freeCount++] = entry.slot;
+            if(page.isEmpty()) {
+                // let any segment and chunk size have the page
+                chunkClass.pages.remove(page);
+                freePages.offer(page.buffer);
+            }
+        }
+
+        /**
+         * find a chunk for a value, evicting other values if the cache is full
+         * @return the new entry, or null if no memory can be freed up in this segment
+         */
+        private Entry allocateChunk(String key, int length, long expiresAt, long now) {
+            ChunkClass chunkClass = chunkClasses[chunkClassFor(length)];
+            while(true) {
+                Page page = chunkClass.pageWithRoom();
+                if(page == null) {
+                    ByteBuffer buffer = takePage();
+                    if(buffer != null) {
+                        page = new Page(buffer, chunkClass);
+                        chunkClass.pages.add(page);
+                    }
+                }
+                if(page != null) {
+                    int slot = page.free[--page.freeCount];
+                    Entry entry = new Entry(key, chunkClass, new Page[] { page }, slot, length, expiresAt, now);
+                    page.owners[slot] = entry;
+                    return entry;
+                }
+                if(chunkClass.oldest != null) {
+                    remove(chunkClass.oldest);
+                } else if(!freePageFromOtherClass(chunkClass)) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * take whole pages for a value bigger than a page, evicting other values if the cache is full
+         * @return the new entry, or null if no memory can be freed up in this segment
+         */
+        private Entry allocatePages(String key, int length, long expiresAt, long now) {
+            Page[] pages = new Page[pagesFor(length)];
+            int taken = 0;
+            while(taken < pages.length) {
+                ByteBuffer buffer = takePage();
+                if(buffer != null) {
+                    pages[taken++] = new Page(buffer, wholePages);
+                } else if(wholePages.oldest != null) {
+                    remove(wholePages.oldest);
+                } else if(!freePageFromOtherClass(wholePages)) {
+                    for(int i = 0; i < taken; i++) {
+                        freePages.offer(pages[i].buffer);
+                    }
+                    return null;
+                }
+            }
+            Entry entry = new Entry(key, wholePages, pages, 0, length, expiresAt, now);
+            for(Page page : pages) {
+                page.owners[0] = entry;
+            }
+            return entry;
+        }
+
+        /**
+         * return a page to the free pages by evicting everything on the page of the least recently used value of
+         * another chunk size
+         * @return false if there's nothing else in this segment to evict
+         */
+        private boolean freePageFromOtherClass(ChunkClass exclude) {
+            Entry victim = wholePages == exclude ? null : wholePages.oldest;
+            for(ChunkClass other : chunkClasses) {
+                if(other != exclude && other.oldest != null && (victim == null || other.oldest.lastAccess < victim.lastAccess)) {
+                    victim = other.oldest;
+                }
+            }
+            if(victim == null) {
+                return false;
+            }
+            for(Entry owner : victim.pages[0].owners) {
+                if(owner != null) {
+                    remove(owner);
+                }
+            }
+            return true;
+        }
+
+        private void schedule(Entry entry) {
+            long tick = Math.max(entry.expiresTick, currentTick + 1);
+            long delta = tick - currentTick;
+            int level = 0;
+            while(level < WHEEL_LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+                level++;
+            }
+            if(delta >= 1L << (WHEEL_BITS * WHEEL_LEVELS)) {
+                // beyond the wheel's range; the entry is rescheduled when its slot cascades
+                tick = currentTick + (1L << (WHEEL_BITS * WHEEL_LEVELS)) - 1;
+            }
+            int index = (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+            Entry head = wheel[level][index];
+            entry.wheelPrev = null;
+            entry.wheelNext = head;
+            if(head != null) {
+                head.wheelPrev = entry;
+            }
+            wheel[level][index] = entry;
+            entry.wheelLevel = level;
+            entry.wheelIndex = index;
+        }
+
+        private void unschedule(Entry entry) {
+            if(entry.wheelLevel < 0) {
+                return;
+            }
+            if(entry.wheelPrev != null) {
+                entry.wheelPrev.wheelNext = entry.wheelNext;
+            } else {
+                wheel[entry.wheelLevel][entry.wheelIndex] = entry.wheelNext;
+            }
+            if(entry.wheelNext != null) {
+                entry.wheelNext.wheelPrev = entry.wheelPrev;
+            }
+            entry.wheelPrev = null;
+            entry.wheelNext = null;
+            entry.wheelLevel = -1;
+        }
+
+        /**
+         * move the timing wheel up to the given time, expiring entries on the way. at each tick the lowest level's slot
+         * expires, and whenever a level wraps around, the next slot of the level above cascades down
+         */
+        private void advance(long now) {
+            long target = now / TICK_MILLISECONDS;
+            if(entries.isEmpty()) {
+                currentTick = Math.max(currentTick, target);
+                return;
+            }
+            while(currentTick < target) {
+                currentTick++;
+                for(int level = 1; level < WHEEL_LEVELS; level++) {
+                    if((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) {
+                        break;
+                    }
+                    for(Entry entry : takeSlot(level, (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK))) {
+                        schedule(entry);
+                    }
+                }
+                for(Entry entry : takeSlot(0, (int) (currentTick & WHEEL_MASK))) {
+                    if(entry.expiresTick <= currentTick) {
+                        remove(entry);
+                    } else {
+                        schedule(entry);
+                    }
+                }
+            }
+        }
+
+        private List<Entry> takeSlot(int level, int index) {
+            Entry entry = wheel[level][index];
+            if(entry == null) {
+                return Collections.emptyList();
+            }
+            wheel[level][index] = null;
+            List<Entry> taken = new ArrayList<Entry>();
+            while(entry != null) {
+                Entry next = entry.wheelNext;
+                entry.wheelPrev = null;
+                entry.wheelNext = null;
+                entry.wheelLevel = -1;
+                taken.add(entry);
+                entry = next;
+            }
+            return taken;
+        }
+    }
+}
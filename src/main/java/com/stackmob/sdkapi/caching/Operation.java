@@ -1,5 +1,5 @@
 package com.stackmob.sdkapi.caching;
 
 public enum Operation {
-    GET, SET, DELETE
+    GET, SET, DELETE, INCREMENT, ADD, COMPARE_AND_SET
 }
@@ -0,0 +1,404 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.caching;
+
+import com.stackmob.sdkapi.caching.exceptions.DataSizeException;
+import com.stackmob.sdkapi.caching.exceptions.RateLimitedException;
+import com.stackmob.sdkapi.caching.exceptions.TTLTooBigException;
+import com.stackmob.sdkapi.caching.exceptions.TimeoutException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A CachingService which lets values be tagged when they're set, so that every value with a tag can be invalidated
+ * at once, like everything cached for one user or one schema. Invalidating a tag costs two cache operations no matter
+ * how many values have it.
+ *
+ * Each tag has a generation kept in the cache, and tagged values are stored with the generations of their tags when
+ * they were set. Invalidating a tag increments its generation with a compare-and-set, so the values stored with the
+ * old one read as missing from then on, and they're left to expire. If a generation is evicted from the cache, every
+ * value with that tag reads as missing too, and the generation is started again at a random number rather than
+ * counted up from the start. Reading a tagged value takes one more cache round trip, to get its tags' generations.
+ *
+ * Tagged values start with a header beginning with the byte 0xFE, which never appears in UTF-8 text. Untagged values
+ * are stored as they are, unless they happen to start with the header, so values stored directly through the wrapped
+ * CachingService still read correctly.
+ */
+public class TaggingCachingService extends CachingService {
+
+    public static final String DEFAULT_KEY_PREFIX = "tag:";
+
+    private static final byte[] MAGIC = { (byte) 0xfe, 'S', 'M', 'T' };
+
+    private final CachingService cachingService;
+    private final String keyPrefix;
+    private final Random random = new Random();
+
+    /**
+     * create a new TaggingCachingService which keeps tag generations under {@link #DEFAULT_KEY_PREFIX}
+     * @param cachingService the caching service to store values and generations in
+     */
+    public TaggingCachingService(CachingService cachingService) {
+        this(cachingService, DEFAULT_KEY_PREFIX);
+    }
+
+    /**
+     * create a new TaggingCachingService
+     * @param cachingService the caching service to store values and generations in
+     * @param keyPrefix the prefix of the keys tag generations are kept under
+     */
+    public TaggingCachingService(CachingService cachingService, String keyPrefix) {
+        this.cachingService = cachingService;
+        this.keyPrefix = keyPrefix;
+    }
+
+    /**
+     * store the given key/value pair with tags, so that it can be invalidated along with every other value with one
+     * of those tags by {@link #invalidateTag(String)}
+     * @param key the key to store
+     * @param value the value to store for <code>key</code>
+     * @param ttlMilliseconds the TTL for this key/value pair, in milliseconds. if ttlMillseconds <= 0, it's equivalent to passing the longest available TTL
+     * @param tags the tags of the value
+     * @throws com.stackmob.sdkapi.caching.exceptions.TimeoutException if there was a timeout communicating with the cache
+     * @throws com.stackmob.sdkapi.caching.exceptions.RateLimitedException if there was a rate limit imposed on this cache request
+     * @throws com.stackmob.sdkapi.caching.exceptions.DataSizeException if the size of the key or value was over the Stackmob-defined limit
+     * @throws com.stackmob.sdkapi.caching.exceptions.TTLTooBigException if the given TTL was too big for our caching system to handle
+     * @return true if the set succeeded, false otherwise
+     */
+    public Boolean setBytes(String key, byte[] value, long ttlMilliseconds, Collection<String> tags) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        if(tags.isEmpty()) {
+            return setBytes(key, value, ttlMilliseconds);
+        }
+        Map<String, Long> generations = currentGenerations(tags);
+        if(generations == null) {
+            return false;
+        }
+        return cachingService.setBytes(key, encode(value, generations), ttlMilliseconds);
+    }
+
+    /**
+     * invalidate every value stored with the given tag
+     * @param tag the tag to invalidate
+     * @throws com.stackmob.sdkapi.caching.exceptions.TimeoutException if there was a timeout communicating with the cache
+     * @throws com.stackmob.sdkapi.caching.exceptions.RateLimitedException if there was a rate limit imposed on this cache request
+     * @throws com.stackmob.sdkapi.caching.exceptions.DataSizeException if the tag was too long to make a key of
+     */
+    public void invalidateTag(String tag) throws TimeoutException, RateLimitedException, DataSizeException {
+        String key = generationKey(tag);
+        try {
+            // only an existing generation is incremented. one that's missing is started at a random number, since
+            // counting up from 1 again could bring back values stored with an earlier, evicted generation
+            while(true) {
+                VersionedValue current = cachingService.getVersioned(key);
+                if(current == null) {
+                    byte[] started = Long.toString(newGeneration()).getBytes(utf8Charset);
+                    if(Boolean.TRUE.equals(cachingService.addIfAbsent(key, started, 0))) {
+                        return;
+                    }
+                } else {
+                    Long generation = parse(current.getValue());
+                    if(generation == null) {
+                        replaceGeneration(tag);
+                        return;
+                    }
+                    byte[] next = Long.toString(generation + 1).getBytes(utf8Charset);
+                    if(Boolean.TRUE.equals(cachingService.compareAndSet(key, current.getVersion(), next, 0))) {
+                        return;
+                    }
+                }
+            }
+        } catch(TTLTooBigException e) {
+            // a TTL of 0 is never too big
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        byte[] stored = cachingService.getBytes(key);
+        if(stored == null) {
+            return null;
+        }
+        Tagged decoded = decode(stored);
+        if(decoded == null) {
+            return stored;
+        }
+        return decoded.isCurrent(readGenerations(Collections.singletonList(decoded))) ? decoded.value : null;
+    }
+
+    /**
+     * get the values for many keys, reading the generations of all of their tags in one go
+     */
+    @Override
+    public MultiResult<byte[]> getBytesMulti(Collection<String> keys) {
+        MultiResult<byte[]> stored = cachingService.getBytesMulti(keys);
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        Map<String, Tagged> tagged = new HashMap<String, Tagged>();
+        for(Map.Entry<String, byte[]> value : stored.getResults().entrySet()) {
+            Tagged decoded = decode(value.getValue());
+            if(decoded == null) {
+                values.put(value.getKey(), value.getValue());
+            } else {
+                tagged.put(value.getKey(), decoded);
+            }
+        }
+        if(!tagged.isEmpty()) {
+            Map<String, Long> generations = readGenerations(tagged.values());
+            for(Map.Entry<String, Tagged> value : tagged.entrySet()) {
+                if(value.getValue().isCurrent(generations)) {
+                    values.put(value.getKey(), value.getValue().value);
+                }
+            }
+        }
+        return new MultiResult<byte[]>(values, stored.getFailures());
+    }
+
+    @Override
+    public Boolean setBytes(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.setBytes(key, encodeUntagged(value), ttlMilliseconds);
+    }
+
+    @Override
+    public MultiResult<Boolean> setBytesMulti(Map<String, byte[]> values, long ttlMilliseconds) {
+        Map<String, byte[]> encoded = new HashMap<String, byte[]>();
+        for(Map.Entry<String, byte[]> value : values.entrySet()) {
+            encoded.put(value.getKey(), encodeUntagged(value.getValue()));
+        }
+        return cachingService.setBytesMulti(encoded, ttlMilliseconds);
+    }
+
+    @Override
+    public void setBytesEventually(String key, byte[] value, long ttlMilliseconds) throws DataSizeException, TTLTooBigException {
+        cachingService.setBytesEventually(key, encodeUntagged(value), ttlMilliseconds);
+    }
+
+    @Override
+    public VersionedValue getVersioned(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        VersionedValue stored = cachingService.getVersioned(key);
+        if(stored == null) {
+            return null;
+        }
+        Tagged decoded = decode(stored.getValue());
+        if(decoded == null) {
+            return stored;
+        }
+        return decoded.isCurrent(readGenerations(Collections.singletonList(decoded))) ? new VersionedValue(decoded.value, stored.getVersion()) : null;
+    }
+
+    @Override
+    public Boolean compareAndSet(String key, long expectedVersion, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.compareAndSet(key, expectedVersion, encodeUntagged(value), ttlMilliseconds);
+    }
+
+    @Override
+    public Boolean addIfAbsent(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.addIfAbsent(key, encodeUntagged(value), ttlMilliseconds);
+    }
+
+    @Override
+    public Long incrementBy(String key, long delta, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        return cachingService.incrementBy(key, delta, ttlMilliseconds);
+    }
+
+    @Override
+    public void deleteEventually(String key) throws DataSizeException {
+        cachingService.deleteEventually(key);
+    }
+
+    /**
+     * read the generations of some tags, starting a generation for any tag which doesn't have one yet
+     * @return the generations, or null if they couldn't all be read or started
+     */
+    private Map<String, Long> currentGenerations(Collection<String> tags) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        List<String> keys = new ArrayList<String>();
+        for(String tag : tags) {
+            keys.add(generationKey(tag));
+        }
+        MultiResult<byte[]> stored = cachingService.getBytesMulti(keys);
+        Map<String, Long> generations = new LinkedHashMap<String, Long>();
+        for(String tag : tags) {
+            String key = generationKey(tag);
+            if(stored.getFailures().containsKey(key)) {
+                return null;
+            }
+            Long generation = parse(stored.getResults().get(key));
+            if(generation == null) {
+                generation = startGeneration(tag);
+                if(generation == null) {
+                    return null;
+                }
+            }
+            generations.put(tag, generation);
+        }
+        return generations;
+    }
+
+    /**
+     * start a tag's generation at a random number, so that values stored with an evicted generation don't become
+     * current again when it's started over
+     */
+    private Long startGeneration(String tag) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        String key = generationKey(tag);
+        long generation = newGeneration();
+        byte[] bytes = Long.toString(generation).getBytes(utf8Charset);
+        if(Boolean.TRUE.equals(cachingService.addIfAbsent(key, bytes, 0))) {
+            return generation;
+        }
+        // another node started it first
+        return parse(cachingService.getBytes(key));
+    }
+
+    private void replaceGeneration(String tag) throws TimeoutException, RateLimitedException, DataSizeException {
+        try {
+            cachingService.setBytes(generationKey(tag), Long.toString(newGeneration()).getBytes(utf8Charset), 0);
+        } catch(TTLTooBigException e) {
+            // a TTL of 0 is never too big
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the generations of every tag of the given values which could be read. tags whose generations are
+     * missing or couldn't be read are left out, so values with them aren't current
+     */
+    private Map<String, Long> readGenerations(Collection<Tagged> values) {
+        Map<String, String> keys = new HashMap<String, String>();
+        for(Tagged value : values) {
+            for(String tag : value.generations.keySet()) {
+                keys.put(generationKey(tag), tag);
+            }
+        }
+        MultiResult<byte[]> stored = cachingService.getBytesMulti(keys.keySet());
+        Map<String, Long> generations = new HashMap<String, Long>();
+        for(Map.Entry<String, byte[]> generation : stored.getResults().entrySet()) {
+            Long parsed = parse(generation.getValue());
+            if(parsed != null) {
+                generations.put(keys.get(generation.getKey()), parsed);
+            }
+        }
+        return generations;
+    }
+
+    private synchronized long newGeneration() {
+        return random.nextLong();
+    }
+
+    private String generationKey(String tag) {
+        return keyPrefix + tag;
+    }
+
+    private static Long parse(byte[] generation) {
+        if(generation == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(new String(generation, utf8Charset));
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encode(byte[] value, Map<String, Long> generations) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(MAGIC);
+            out.writeShort(generations.size());
+            for(Map.Entry<String, Long> generation : generations.entrySet()) {
+                out.writeUTF(generation.getKey());
+                out.writeLong(generation.getValue());
+            }
+            out.write(value);
+        } catch(IOException e) {
+            // a ByteArrayOutputStream never throws
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * untagged values are stored as they are, unless they'd be mistaken for a tagged value
+     */
+    private static byte[] encodeUntagged(byte[] value) {
+        return hasMagic(value) ? encode(value, Collections.<String, Long>emptyMap()) : value;
+    }
+
+    /**
+     * @return the tagged value, or null if the stored value isn't tagged
+     */
+    private static Tagged decode(byte[] stored) {
+        if(!hasMagic(stored)) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(stored, MAGIC.length, stored.length - MAGIC.length));
+            int count = in.readUnsignedShort();
+            Map<String, Long> generations = new HashMap<String, Long>();
+            for(int i = 0; i < count; i++) {
+                generations.put(in.readUTF(), in.readLong());
+            }
+            byte[] value = new byte[in.available()];
+            in.readFully(value);
+            return new Tagged(value, generations);
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasMagic(byte[] value) {
+        if(value.length < MAGIC.length) {
+            return false;
+        }
+        for(int i = 0; i < MAGIC.length; i++) {
+            if(value[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Tagged {
+        final byte[] value;
+        final Map<String, Long> generations;
+
+        Tagged(byte[] value, Map<String, Long> generations) {
+            this.value = value;
+            this.generations = generations;
+        }
+
+        boolean isCurrent(Map<String, Long> current) {
+            for(Map.Entry<String, Long> generation : generations.entrySet()) {
+                if(!generation.getValue().equals(current.get(generation.getKey()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.caching;
+
+/**
+ * Measures strings in UTF-8 without encoding them, for checking keys against size limits
+ */
+final class Utf8 {
+
+    private Utf8() {}
+
+    /**
+     * count the UTF-8 bytes in a string, stopping early once the count goes over a limit
+     * @param string the string to measure
+     * @param limit the count beyond which the exact length doesn't matter
+     * @return the number of bytes, or some number greater than limit if the string is longer than limit
+     */
+    static int length(String string, int limit) {
+        int bytes = 0;
+        for(int i = 0; i < string.length() && bytes <= limit; i++) {
+            char c = string.charAt(i);
+            if(c < 0x80) {
+                bytes += 1;
+            } else if(c < 0x800) {
+                bytes += 2;
+            } else if(Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * cut a string down to at most the given number of UTF-8 bytes, without splitting a character
+     * @param string the string to cut
+     * @param maxBytes the most bytes to keep
+     * @return the longest prefix of string which is at most maxBytes long
+     */
+    static String truncate(String string, int maxBytes) {
+        int bytes = 0;
+        for(int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            int width;
+            if(c < 0x80) {
+                width = 1;
+            } else if(c < 0x800) {
+                width = 2;
+            } else if(Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                width = 4;
+            } else {
+                width = 3;
+            }
+            if(bytes + width > maxBytes) {
+                return string.substring(0, i);
+            }
+            bytes += width;
+            if(width == 4) {
+                i++;
+            }
+        }
+        return string;
+    }
+}
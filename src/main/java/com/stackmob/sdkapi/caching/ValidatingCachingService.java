@@ -0,0 +1,330 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.caching;
+
+import com.stackmob.sdkapi.caching.exceptions.DataSizeException;
+import com.stackmob.sdkapi.caching.exceptions.RateLimitedException;
+import com.stackmob.sdkapi.caching.exceptions.TTLTooBigException;
+import com.stackmob.sdkapi.caching.exceptions.TimeoutException;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A CachingService which checks keys, values and TTLs against the cache's limits before sending them, so that a
+ * DataSizeException or TTLTooBigException is thrown straight away rather than after a round trip.
+ *
+ * It can also hash keys which are too long, so that long composite keys can be used without tracking their lengths.
+ * A hashed key is as much of the original key as fits, followed by <code>#</code> and the hex SHA-1 of the whole key,
+ * so it's the same on every node and keys still group by prefix. Values stored under a hashed key start with the
+ * original key, and a get whose key doesn't match reads as a miss, so two keys with the same hash can never read each
+ * other's values. Counters under hashed keys have to stay decimal strings, so they're stored without the original key
+ * and read back as they are: a counter is the one kind of value whose collisions aren't detected.
+ */
+public class ValidatingCachingService extends CachingService {
+
+    private static final byte[] MAGIC = { (byte) 0xfe, 'S', 'M', 'K' };
+    // the # and the hex SHA-1
+    private static final int HASH_SUFFIX_SIZE = 41;
+
+    private final CachingService cachingService;
+    private final int maxKeySize;
+    private final int maxValueSize;
+    private final long maxTtlMilliseconds;
+    private final boolean hashLongKeys;
+
+    /**
+     * create a new ValidatingCachingService which checks against StackMob's limits: the defaults of
+     * {@link OffHeapCachingService}
+     * @param cachingService the caching service to send checked calls to
+     * @param hashLongKeys whether to hash keys which are too long rather than throw a DataSizeException
+     */
+    public ValidatingCachingService(CachingService cachingService, boolean hashLongKeys) {
+        this(cachingService, OffHeapCachingService.DEFAULT_MAX_KEY_SIZE, OffHeapCachingService.DEFAULT_MAX_VALUE_SIZE,
+                OffHeapCachingService.DEFAULT_MAX_TTL_MILLISECONDS, hashLongKeys);
+    }
+
+    /**
+     * create a new ValidatingCachingService
+     * @param cachingService the caching service to send checked calls to
+     * @param maxKeySize the largest key allowed, in UTF-8 bytes
+     * @param maxValueSize the largest value allowed, in bytes
+     * @param maxTtlMilliseconds the longest TTL allowed, in milliseconds
+     * @param hashLongKeys whether to hash keys which are too long rather than throw a DataSizeException
+     */
+    public ValidatingCachingService(CachingService cachingService, int maxKeySize, int maxValueSize, long maxTtlMilliseconds, boolean hashLongKeys) {
+        if(maxKeySize <= 0 || maxValueSize <= 0 || maxTtlMilliseconds <= 0) {
+            throw new IllegalArgumentException("limits must be positive");
+        }
+        if(hashLongKeys && maxKeySize < HASH_SUFFIX_SIZE) {
+            throw new IllegalArgumentException("maxKeySize must be at least " + HASH_SUFFIX_SIZE + " to hash long keys");
+        }
+        this.cachingService = cachingService;
+        this.maxKeySize = maxKeySize;
+        this.maxValueSize = maxValueSize;
+        this.maxTtlMilliseconds = maxTtlMilliseconds;
+        this.hashLongKeys = hashLongKeys;
+    }
+
+    @Override
+    public byte[] getBytes(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        String sent = checkKey(key, Operation.GET);
+        byte[] stored = cachingService.getBytes(sent);
+        return sent == key ? stored : unwrap(key, stored);
+    }
+
+    @Override
+    public MultiResult<byte[]> getBytesMulti(Collection<String> keys) {
+        Map<String, String> sent = new HashMap<String, String>();
+        Map<String, Exception> failures = new HashMap<String, Exception>();
+        for(String key : keys) {
+            try {
+                sent.put(checkKey(key, Operation.GET), key);
+            } catch(DataSizeException e) {
+                failures.put(key, e);
+            }
+        }
+        MultiResult<byte[]> stored = cachingService.getBytesMulti(sent.keySet());
+        Map<String, byte[]> values = new HashMap<String, byte[]>();
+        for(Map.Entry<String, byte[]> value : stored.getResults().entrySet()) {
+            String key = sent.get(value.getKey());
+            byte[] unwrapped = key.equals(value.getKey()) ? value.getValue() : unwrap(key, value.getValue());
+            if(unwrapped != null) {
+                values.put(key, unwrapped);
+            }
+        }
+        for(Map.Entry<String, Exception> failure : stored.getFailures().entrySet()) {
+            failures.put(sent.get(failure.getKey()), failure.getValue());
+        }
+        return new MultiResult<byte[]>(values, failures);
+    }
+
+    @Override
+    public Boolean setBytes(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        String sent = checkKey(key, Operation.SET);
+        byte[] stored = checkValue(key, sent, value, ttlMilliseconds, Operation.SET);
+        return cachingService.setBytes(sent, stored, ttlMilliseconds);
+    }
+
+    @Override
+    public Boolean setBuffer(String key, ByteBuffer value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        String sent = checkKey(key, Operation.SET);
+        if(sent != key) {
+            return super.setBuffer(key, value, ttlMilliseconds);
+        }
+        if(value.remaining() > maxValueSize) {
+            throw new DataSizeException(Operation.SET);
+        }
+        checkTtl(ttlMilliseconds);
+        return cachingService.setBuffer(key, value, ttlMilliseconds);
+    }
+
+    @Override
+    public MultiResult<Boolean> setBytesMulti(Map<String, byte[]> values, long ttlMilliseconds) {
+        Map<String, byte[]> checked = new HashMap<String, byte[]>();
+        Map<String, String> sent = new HashMap<String, String>();
+        Map<String, Exception> failures = new HashMap<String, Exception>();
+        for(Map.Entry<String, byte[]> value : values.entrySet()) {
+            try {
+                String key = checkKey(value.getKey(), Operation.SET);
+                checked.put(key, checkValue(value.getKey(), key, value.getValue(), ttlMilliseconds, Operation.SET));
+                sent.put(key, value.getKey());
+            } catch(DataSizeException e) {
+                failures.put(value.getKey(), e);
+            } catch(TTLTooBigException e) {
+                failures.put(value.getKey(), e);
+            }
+        }
+        MultiResult<Boolean> stored = cachingService.setBytesMulti(checked, ttlMilliseconds);
+        Map<String, Boolean> results = new HashMap<String, Boolean>();
+        for(Map.Entry<String, Boolean> result : stored.getResults().entrySet()) {
+            results.put(sent.get(result.getKey()), result.getValue());
+        }
+        for(Map.Entry<String, Exception> failure : stored.getFailures().entrySet()) {
+            failures.put(sent.get(failure.getKey()), failure.getValue());
+        }
+        return new MultiResult<Boolean>(results, failures);
+    }
+
+    @Override
+    public Future<Boolean> setBytesAsync(String key, byte[] value, long ttlMilliseconds) {
+        String sent;
+        byte[] stored;
+        try {
+            sent = checkKey(key, Operation.SET);
+            stored = checkValue(key, sent, value, ttlMilliseconds, Operation.SET);
+        } catch(Exception e) {
+            // fail the Future the same way the set would have
+            return super.setBytesAsync(key, value, ttlMilliseconds);
+        }
+        return cachingService.setBytesAsync(sent, stored, ttlMilliseconds);
+    }
+
+    @Override
+    public void setBytesEventually(String key, byte[] value, long ttlMilliseconds) throws DataSizeException, TTLTooBigException {
+        String sent = checkKey(key, Operation.SET);
+        cachingService.setBytesEventually(sent, checkValue(key, sent, value, ttlMilliseconds, Operation.SET), ttlMilliseconds);
+    }
+
+    @Override
+    public VersionedValue getVersioned(String key) throws TimeoutException, RateLimitedException, DataSizeException {
+        String sent = checkKey(key, Operation.GET);
+        VersionedValue stored = cachingService.getVersioned(sent);
+        if(stored == null || sent == key) {
+            return stored;
+        }
+        byte[] value = unwrap(key, stored.getValue());
+        return value == null ? null : new VersionedValue(value, stored.getVersion());
+    }
+
+    @Override
+    public Boolean compareAndSet(String key, long expectedVersion, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        String sent = checkKey(key, Operation.COMPARE_AND_SET);
+        byte[] stored = checkValue(key, sent, value, ttlMilliseconds, Operation.COMPARE_AND_SET);
+        return cachingService.compareAndSet(sent, expectedVersion, stored, ttlMilliseconds);
+    }
+
+    @Override
+    public Boolean addIfAbsent(String key, byte[] value, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        String sent = checkKey(key, Operation.ADD);
+        byte[] stored = checkValue(key, sent, value, ttlMilliseconds, Operation.ADD);
+        return cachingService.addIfAbsent(sent, stored, ttlMilliseconds);
+    }
+
+    /**
+     * increment a counter. under a hashed key the counter is stored as a bare decimal string, without the original
+     * key, so gets return it as it is and can't tell it apart from a counter of another key with the same hash
+     */
+    @Override
+    public Long incrementBy(String key, long delta, long ttlMilliseconds) throws TimeoutException, RateLimitedException, DataSizeException, TTLTooBigException {
+        String sent = checkKey(key, Operation.INCREMENT);
+        checkTtl(ttlMilliseconds);
+        return cachingService.incrementBy(sent, delta, ttlMilliseconds);
+    }
+
+    @Override
+    public void deleteEventually(String key) throws DataSizeException {
+        cachingService.deleteEventually(checkKey(key, Operation.DELETE));
+    }
+
+    /**
+     * @return the key to send: the key itself if it's short enough, or its hashed form
+     * @throws DataSizeException if the key is too long and long keys aren't hashed
+     */
+    private String checkKey(String key, Operation op) throws DataSizeException {
+        if(Utf8.length(key, maxKeySize) <= maxKeySize) {
+            return key;
+        }
+        if(!hashLongKeys) {
+            throw new DataSizeException(op);
+        }
+        StringBuilder hashed = new StringBuilder(Utf8.truncate(key, maxKeySize - HASH_SUFFIX_SIZE)).append('#');
+        for(byte b : sha1().digest(key.getBytes(utf8Charset))) {
+            hashed.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hashed.toString();
+    }
+
+    /**
+     * @return the value to send, which starts with the original key if the key was hashed
+     */
+    private byte[] checkValue(String key, String sent, byte[] value, long ttlMilliseconds, Operation op) throws DataSizeException, TTLTooBigException {
+        byte[] stored = sent == key ? value : wrap(key, value);
+        if(stored.length > maxValueSize) {
+            throw new DataSizeException(op);
+        }
+        checkTtl(ttlMilliseconds);
+        return stored;
+    }
+
+    private void checkTtl(long ttlMilliseconds) throws TTLTooBigException {
+        if(ttlMilliseconds > maxTtlMilliseconds) {
+            throw new TTLTooBigException(ttlMilliseconds);
+        }
+    }
+
+    private static byte[] wrap(String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(utf8Charset);
+        ByteBuffer stored = ByteBuffer.allocate(MAGIC.length + 4 + keyBytes.length + value.length);
+        stored.put(MAGIC).putInt(keyBytes.length).put(keyBytes).put(value);
+        return stored.array();
+    }
+
+    /**
+     * @return the value stored under a hashed key, or null if it was stored for a different key
+     */
+    private static byte[] unwrap(String key, byte[] stored) {
+        if(stored == null) {
+            return null;
+        }
+        if(isCounter(stored)) {
+            // counters are stored without the original key, see incrementBy
+            return stored;
+        }
+        if(stored.length < MAGIC.length + 4) {
+            return null;
+        }
+        ByteBuffer in = ByteBuffer.wrap(stored);
+        for(byte b : MAGIC) {
+            if(in.get() != b) {
+                return null;
+            }
+        }
+        int keyLength = in.getInt();
+        if(keyLength < 0 || keyLength > in.remaining()) {
+            return null;
+        }
+        byte[] keyBytes = new byte[keyLength];
+        in.get(keyBytes);
+        if(!key.equals(new String(keyBytes, utf8Charset))) {
+            return null;
+        }
+        byte[] value = new byte[in.remaining()];
+        in.get(value);
+        return value;
+    }
+
+    /**
+     * @return true if the value is a decimal integer, as incrementBy stores
+     */
+    private static boolean isCounter(byte[] stored) {
+        int start = stored.length > 1 && stored[0] == '-' ? 1 : 0;
+        if(stored.length == start || stored.length > 20) {
+            return false;
+        }
+        for(int i = start; i < stored.length; i++) {
+            if(stored[i] < '0' || stored[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            // every JVM is required to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
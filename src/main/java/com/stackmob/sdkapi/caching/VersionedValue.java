@@ -0,0 +1,40 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.caching;
+
+/**
+ * A cached value along with its version. The version changes every time the key is set, so passing it to
+ * {@link CachingService#compareAndSet(String, long, byte[], long)} only succeeds if nobody else has set the key since.
+ */
+public class VersionedValue {
+
+    private final byte[] value;
+    private final long version;
+
+    public VersionedValue(byte[] value, long version) {
+        this.value = value;
+        this.version = version;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,624 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.core.DatastoreException;
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.sdkapi.*;
+import com.stackmob.sdkapi.caching.CacheLoader;
+import com.stackmob.sdkapi.caching.CachingService;
+import com.stackmob.sdkapi.caching.MultiResult;
+import com.stackmob.sdkapi.caching.exceptions.LoadException;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A DataService which caches the results of readObjects in a CachingService, so that repeated queries on read-mostly
+ * schemas don't go to the datastore. Every other call goes straight to the wrapped DataService.
+ *
+ * Results are cached under a hash of the query's canonical form: its schema, conditions, expand depth, fields and
+ * ResultFilters, with top level conditions in any order treated as the same query. Writes don't need to know which
+ * queries they affect. Instead each cache key includes a generation for the schema it reads, which is kept in the
+ * cache itself and replaced by every write made through a CachingDataService, on any machine. Reads which expand
+ * relationships use a generation which every write replaces, and the rare writes which reach into another schema,
+ * such as createRelatedObjects and cascading removeRelatedObjects, replace the generations of all schemas. Writes
+ * made directly through another DataService aren't seen, so cached results may be up to the TTL old after them.
+ * Concurrent reads of the same query which miss share a single datastore read on each machine.
+ *
+ * If the cache times out, is rate limited or otherwise fails, reads fall back to the datastore.
+ */
+public class CachingDataService implements DataService {
+
+  public static final String DEFAULT_KEY_PREFIX = "dataservice:";
+
+  // codecs keep their buffer for reuse, so a thread's codec is dropped after encoding anything bigger than this
+  private static final int MAX_RETAINED_CODEC_BUFFER = 64 * 1024;
+  private static final ThreadLocal<SMBinaryCodec> CODECS = new ThreadLocal<SMBinaryCodec>() {
+    @Override
+    protected SMBinaryCodec initialValue() {
+      return new SMBinaryCodec();
+    }
+  };
+
+  private final DataService dataService;
+  private final CachingService cachingService;
+  private final long ttlMilliseconds;
+  private final String keyPrefix;
+  private final Random random = new Random();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  // entries loaded on this node. arrays compare by identity, so a read which gets one of these back without loading it
+  // shared another read's load rather than hitting the cache. held weakly, so entries go once every read is done
+  private final Set<byte[]> loadedEntries = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<byte[], Boolean>()));
+
+  /**
+   * create a new CachingDataService which keys its entries with {@link #DEFAULT_KEY_PREFIX}
+   * @param dataService the data service to read from and write to
+   * @param cachingService the cache to keep results in
+   * @param ttlMilliseconds how long to cache results for, in milliseconds
+   */
+  public CachingDataService(DataService dataService, CachingService cachingService, long ttlMilliseconds) {
+    this(dataService, cachingService, ttlMilliseconds, DEFAULT_KEY_PREFIX);
+  }
+
+  /**
+   * create a new CachingDataService
+   * @param dataService the data service to read from and write to
+   * @param cachingService the cache to keep results in
+   * @param ttlMilliseconds how long to cache results for, in milliseconds
+   * @param keyPrefix the prefix of every cache key this service uses, to keep them apart from other keys in the cache
+   */
+  public CachingDataService(DataService dataService, CachingService cachingService, long ttlMilliseconds, String keyPrefix) {
+    this.dataService = dataService;
+    this.cachingService = cachingService;
+    this.ttlMilliseconds = ttlMilliseconds;
+    this.keyPrefix = keyPrefix;
+  }
+
+  /**
+   * @return the number of reads answered from the cache. reads which shared another read's datastore read on this
+   * machine are neither hits nor misses
+   */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of reads which went to the datastore
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public String getUserSchema() {
+    return dataService.getUserSchema();
+  }
+
+  @Override
+  public SMObject createObject(String schema, SMObject toCreate) throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.createObject(schema, toCreate);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public BulkResult createObjects(String schema, List<SMObject> objectsToCreate) throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.createObjects(schema, objectsToCreate);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public BulkResult createRelatedObjects(String schema, SMValue objectId, String relatedField, List<SMObject> relatedObjectsToCreate)
+          throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.createRelatedObjects(schema, objectId, relatedField, relatedObjectsToCreate);
+    } finally {
+      invalidate(schema, true);
+    }
+  }
+
+  @Override
+  public List<SMObject> readObjects(final String schema, final List<SMCondition> conditions) throws InvalidSchemaException, DatastoreException {
+    return read(schema, conditions, 0, null, null, new Query() {
+      @Override
+      public List<SMObject> run() throws InvalidSchemaException, DatastoreException {
+        return dataService.readObjects(schema, conditions);
+      }
+    });
+  }
+
+  @Override
+  public List<SMObject> readObjects(final String schema, final List<SMCondition> conditions, final List<String> fields)
+          throws InvalidSchemaException, DatastoreException {
+    return read(schema, conditions, 0, null, fields, new Query() {
+      @Override
+      public List<SMObject> run() throws InvalidSchemaException, DatastoreException {
+        return dataService.readObjects(schema, conditions, fields);
+      }
+    });
+  }
+
+  @Override
+  public List<SMObject> readObjects(final String schema, final List<SMCondition> conditions, final int expandDepth)
+          throws InvalidSchemaException, DatastoreException {
+    return read(schema, conditions, expandDepth, null, null, new Query() {
+      @Override
+      public List<SMObject> run() throws InvalidSchemaException, DatastoreException {
+        return dataService.readObjects(schema, conditions, expandDepth);
+      }
+    });
+  }
+
+  @Override
+  public List<SMObject> readObjects(final String schema, final List<SMCondition> conditions, final int expandDepth, final ResultFilters resultFilters)
+          throws InvalidSchemaException, DatastoreException {
+    return read(schema, conditions, expandDepth, resultFilters, null, new Query() {
+      @Override
+      public List<SMObject> run() throws InvalidSchemaException, DatastoreException {
+        return dataService.readObjects(schema, conditions, expandDepth, resultFilters);
+      }
+    });
+  }
+
+  /**
+   * cursors read straight from the wrapped DataService, since walking a large result set would only fill the cache
+   * with pages nobody reads twice
+   */
+  @Override
+  public ObjectCursor readObjectsCursor(String schema, List<SMCondition> conditions, int expandDepth, ResultFilters resultFilters, int pageSize)
+          throws InvalidSchemaException, DatastoreException {
+    return dataService.readObjectsCursor(schema, conditions, expandDepth, resultFilters, pageSize);
+  }
+
+  @Override
+  public SMObject updateObject(String schema, String id, List<SMUpdate> updateActions) throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.updateObject(schema, id, updateActions);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public SMObject updateObject(String schema, SMValue id, List<SMUpdate> updateActions) throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.updateObject(schema, id, updateActions);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public SMObject updateObject(String schema, SMValue id, List<SMCondition> conditions, List<SMUpdate> updateActions)
+          throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.updateObject(schema, id, conditions, updateActions);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public void updateObjects(String schema, List<SMCondition> conditions, List<SMUpdate> updateActions)
+          throws InvalidSchemaException, DatastoreException {
+    try {
+      dataService.updateObjects(schema, conditions, updateActions);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public BulkResult updateObjects(String schema, Map<SMValue, List<SMUpdate>> updateActions)
+          throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.updateObjects(schema, updateActions);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public SMObject addRelatedObjects(String schema, SMValue objectId, String relation, List<? extends SMValue> relatedIds)
+          throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.addRelatedObjects(schema, objectId, relation, relatedIds);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public SMObject addRelatedObjects(String schema, SMValue objectId, String relation, SMList relatedIds)
+          throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.addRelatedObjects(schema, objectId, relation, relatedIds);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public Boolean deleteObject(String schema, String id) throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.deleteObject(schema, id);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public Boolean deleteObject(String schema, SMValue id) throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.deleteObject(schema, id);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public BulkResult deleteObjects(String schema, List<SMValue> ids) throws InvalidSchemaException, DatastoreException {
+    try {
+      return dataService.deleteObjects(schema, ids);
+    } finally {
+      invalidate(schema, false);
+    }
+  }
+
+  @Override
+  public void removeRelatedObjects(String schema, SMValue objectId, String relation, List<? extends SMValue> relatedIds, boolean cascadeDelete)
+          throws InvalidSchemaException, DatastoreException {
+    try {
+      dataService.removeRelatedObjects(schema, objectId, relation, relatedIds, cascadeDelete);
+    } finally {
+      invalidate(schema, cascadeDelete);
+    }
+  }
+
+  @Override
+  public void removeRelatedObjects(String schema, SMValue objectId, String relation, SMList relatedIds, boolean cascadeDelete)
+          throws InvalidSchemaException, DatastoreException {
+    try {
+      dataService.removeRelatedObjects(schema, objectId, relation, relatedIds, cascadeDelete);
+    } finally {
+      invalidate(schema, cascadeDelete);
+    }
+  }
+
+  @Override
+  public long countObjects(String schema) throws InvalidSchemaException, DatastoreException {
+    return dataService.countObjects(schema);
+  }
+
+  @Override
+  public Set<String> getObjectModelNames() throws ConnectException {
+    return dataService.getObjectModelNames();
+  }
+
+  private interface Query {
+    List<SMObject> run() throws InvalidSchemaException, DatastoreException;
+  }
+
+  /**
+   * read through the cache with getOrLoad, so that concurrent misses on the same query on this node share one
+   * datastore read
+   */
+  private List<SMObject> read(String schema, List<SMCondition> conditions, int expandDepth, ResultFilters resultFilters,
+                              List<String> fields, final Query query) throws InvalidSchemaException, DatastoreException {
+    final byte[] canonical = canonicalQuery(schema, conditions, expandDepth, resultFilters, fields);
+    String key = canonical == null ? null : cacheKey(schema, expandDepth, canonical);
+    if(key != null) {
+      final boolean[] loaded = new boolean[1];
+      byte[] entry;
+      try {
+        entry = cachingService.getOrLoad(key, ttlMilliseconds, new CacheLoader() {
+          @Override
+          public byte[] load(String key) throws Exception {
+            loaded[0] = true;
+            misses.incrementAndGet();
+            byte[] entry = encodeEntry(canonical, query.run());
+            loadedEntries.add(entry);
+            return entry;
+          }
+        });
+      } catch(LoadException e) {
+        if(e.getCause() instanceof InvalidSchemaException) {
+          throw (InvalidSchemaException) e.getCause();
+        } else if(e.getCause() instanceof DatastoreException) {
+          throw (DatastoreException) e.getCause();
+        } else if(e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new DatastoreException(e.getCause());
+      }
+      List<SMObject> cached = decodeEntry(entry, canonical);
+      if(cached != null) {
+        if(!loaded[0] && !loadedEntries.contains(entry)) {
+          hits.incrementAndGet();
+        }
+        return cached;
+      }
+    }
+    misses.incrementAndGet();
+    return query.run();
+  }
+
+  /**
+   * entries start with the canonical query they answer, so that a hash collision reads as a miss rather than as
+   * another query's results
+   */
+  private static List<SMObject> decodeEntry(byte[] entry, byte[] canonical) {
+    if(entry == null || entry.length < 4 + canonical.length) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+      if(in.readInt() != canonical.length) {
+        return null;
+      }
+      for(int i = 0; i < canonical.length; i++) {
+        if(entry[4 + i] != canonical[i]) {
+          return null;
+        }
+      }
+      int offset = 4 + canonical.length;
+      return CODECS.get().decodeObjects(entry, offset, entry.length - offset);
+    } catch(IOException e) {
+      return null;
+    } catch(RuntimeException e) {
+      return null;
+    }
+  }
+
+  private static byte[] encodeEntry(byte[] canonical, List<SMObject> results) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(canonical.length);
+    out.write(canonical);
+    out.flush();
+    CODECS.get().encodeObjects(results, bytes);
+    if(bytes.size() > MAX_RETAINED_CODEC_BUFFER) {
+      // don't keep an oversized buffer for the life of the thread
+      CODECS.remove();
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * build the cache key for a query from its canonical form and the current generations it depends on
+   * @return the key, or null if the generations couldn't be read from the cache
+   */
+  private String cacheKey(String schema, int expandDepth, byte[] canonical) {
+    List<String> generationKeys = expandDepth > 0 ? Arrays.asList(keyPrefix + "generation:all")
+            : Arrays.asList(keyPrefix + "generation:schema:" + schema, keyPrefix + "generation:related");
+    List<byte[]> generations = generations(generationKeys);
+    if(generations == null) {
+      // without the generations there's no safe key, so read from the datastore
+      return null;
+    }
+    MessageDigest digest = sha1();
+    for(byte[] generation : generations) {
+      digest.update(generation);
+    }
+    digest.update(canonical);
+    StringBuilder key = new StringBuilder(keyPrefix).append(schema).append(':');
+    for(byte b : digest.digest()) {
+      key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return key.toString();
+  }
+
+  /**
+   * get generations in one round trip, starting new ones for any the cache doesn't have. a generation which has been
+   * evicted is replaced with a random one rather than restarted, so entries from before the eviction can't become
+   * visible again
+   * @return the generations in the order of their keys, or null if the cache failed
+   */
+  private List<byte[]> generations(List<String> keys) {
+    MultiResult<byte[]> current = cachingService.getBytesMulti(keys);
+    if(!current.getFailures().isEmpty()) {
+      return null;
+    }
+    List<byte[]> generations = new ArrayList<byte[]>(keys.size());
+    for(String key : keys) {
+      byte[] generation = current.getResults().get(key);
+      if(generation == null) {
+        generation = newGeneration();
+        try {
+          cachingService.setBytes(key, generation, 0);
+        } catch(Exception e) {
+          return null;
+        }
+      }
+      generations.add(generation);
+    }
+    return generations;
+  }
+
+  private byte[] newGeneration() {
+    return Long.toHexString(random.nextLong()).getBytes(CachingService.utf8Charset);
+  }
+
+  private void invalidate(String schema, boolean acrossSchemas) {
+    replaceGeneration(keyPrefix + "generation:schema:" + schema);
+    replaceGeneration(keyPrefix + "generation:all");
+    if(acrossSchemas) {
+      replaceGeneration(keyPrefix + "generation:related");
+    }
+  }
+
+  private void replaceGeneration(String key) {
+    try {
+      if(Boolean.TRUE.equals(cachingService.setBytes(key, newGeneration(), 0))) {
+        return;
+      }
+    } catch(Exception e) {
+      // fall through and try to delete it instead
+    }
+    try {
+      cachingService.deleteEventually(key);
+    } catch(Exception e) {
+      // nothing more can be done; entries under the old generation will expire with their TTL
+    }
+  }
+
+  private static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch(NoSuchAlgorithmException e) {
+      // every JVM is required to provide SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the canonical form of a query, or null if it has a condition or value this class doesn't know about
+   */
+  private static byte[] canonicalQuery(String schema, List<SMCondition> conditions, int expandDepth, ResultFilters resultFilters,
+                                       List<String> fields) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      SMValueCodec.writeString(out, schema);
+      out.writeInt(expandDepth);
+      writeFields(out, fields);
+      if(resultFilters == null) {
+        out.writeBoolean(false);
+      } else {
+        out.writeBoolean(true);
+        out.writeLong(resultFilters.getStart());
+        out.writeLong(resultFilters.getEnd());
+        List<SMOrdering> orderings = resultFilters.getOrderings();
+        out.writeInt(orderings == null ? -1 : orderings.size());
+        if(orderings != null) {
+          for(SMOrdering ordering : orderings) {
+            SMValueCodec.writeString(out, ordering.getField());
+            out.writeBoolean(ordering.getDirection() == OrderingDirection.DESCENDING);
+          }
+        }
+        writeFields(out, resultFilters.getFields());
+        SMValueCodec.writeValue(out, new SMString(resultFilters.getContinuation()));
+      }
+      // the top level conditions are and-ed together, so their order doesn't matter
+      List<byte[]> clauses = new ArrayList<byte[]>();
+      for(SMCondition condition : conditions == null ? Collections.<SMCondition>emptyList() : conditions) {
+        ByteArrayOutputStream clause = new ByteArrayOutputStream();
+        if(!writeCondition(new DataOutputStream(clause), condition)) {
+          return null;
+        }
+        clauses.add(clause.toByteArray());
+      }
+      Collections.sort(clauses, UNSIGNED_ORDER);
+      out.writeInt(clauses.size());
+      for(byte[] clause : clauses) {
+        out.write(clause);
+      }
+    } catch(IOException e) {
+      throw new IllegalStateException(e);
+    } catch(IllegalArgumentException e) {
+      // a value of a type the codec doesn't know
+      return null;
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeFields(DataOutputStream out, List<String> fields) throws IOException {
+    out.writeInt(fields == null ? -1 : fields.size());
+    if(fields != null) {
+      for(String field : fields) {
+        SMValueCodec.writeString(out, field);
+      }
+    }
+  }
+
+  private static boolean writeCondition(DataOutputStream out, SMCondition condition) throws IOException {
+    if(condition == null) {
+      return false;
+    }
+    SMValueCodec.writeString(out, condition.getClass().getName());
+    if(condition instanceof SMAnd || condition instanceof SMOr) {
+      List<SMCondition> clauses = condition instanceof SMAnd ? ((SMAnd) condition).getClauses() : ((SMOr) condition).getClauses();
+      out.writeInt(clauses.size());
+      for(SMCondition clause : clauses) {
+        if(!writeCondition(out, clause)) {
+          return false;
+        }
+      }
+    } else if(condition instanceof SMEquals) {
+      writeFieldAndValues(out, ((SMEquals) condition).getField(), ((SMEquals) condition).getValue());
+    } else if(condition instanceof SMNotEqual) {
+      writeFieldAndValues(out, ((SMNotEqual) condition).getField(), ((SMNotEqual) condition).getValue());
+    } else if(condition instanceof SMLess) {
+      writeFieldAndValues(out, ((SMLess) condition).getField(), ((SMLess) condition).getValue());
+    } else if(condition instanceof SMLessOrEqual) {
+      writeFieldAndValues(out, ((SMLessOrEqual) condition).getField(), ((SMLessOrEqual) condition).getValue());
+    } else if(condition instanceof SMGreater) {
+      writeFieldAndValues(out, ((SMGreater) condition).getField(), ((SMGreater) condition).getValue());
+    } else if(condition instanceof SMGreaterOrEqual) {
+      writeFieldAndValues(out, ((SMGreaterOrEqual) condition).getField(), ((SMGreaterOrEqual) condition).getValue());
+    } else if(condition instanceof SMIsNull) {
+      writeFieldAndValues(out, ((SMIsNull) condition).getField(), ((SMIsNull) condition).getValue());
+    } else if(condition instanceof SMIn) {
+      SMIn in = (SMIn) condition;
+      List<? extends SMValue> values = in.getValues();
+      writeFieldAndValues(out, in.getField(), values.toArray(new SMValue[values.size()]));
+    } else if(condition instanceof SMNear) {
+      SMNear near = (SMNear) condition;
+      writeFieldAndValues(out, near.getField(), near.getLat(), near.getLon(), near.getDist());
+    } else if(condition instanceof SMWithin) {
+      SMWithin within = (SMWithin) condition;
+      writeFieldAndValues(out, within.getField(), within.getLat(), within.getLon(), within.getDist());
+    } else if(condition instanceof SMWithinBox) {
+      SMWithinBox box = (SMWithinBox) condition;
+      writeFieldAndValues(out, box.getField(), box.getLatLL(), box.getLonLL(), box.getLatUR(), box.getLonUR());
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private static void writeFieldAndValues(DataOutputStream out, String field, SMValue... values) throws IOException {
+    SMValueCodec.writeValue(out, new SMString(field));
+    out.writeInt(values.length);
+    for(SMValue value : values) {
+      SMValueCodec.writeValue(out, value);
+    }
+  }
+
+  private static final Comparator<byte[]> UNSIGNED_ORDER = new Comparator<byte[]>() {
+    @Override
+    public int compare(byte[] a, byte[] b) {
+      for(int i = 0; i < Math.min(a.length, b.length); i++) {
+        int result = (a[i] & 0xff) - (b[i] & 0xff);
+        if(result != 0) {
+          return result;
+        }
+      }
+      return a.length - b.length;
+    }
+  };
+}
@@ -0,0 +1,538 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.sdkapi.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles SMConditions into {@link ObjectPredicate}s. Compile a query once and then run the predicate against as
+ * many objects as you like; predicates are immutable, safe to share between threads, and don't allocate while
+ * matching.
+ *
+ * A list of conditions is joined with "and", as it is in {@link DataService#readObjects(String, List)}, and SMAnd and
+ * SMOr stop evaluating as soon as their result is known. Comparisons against SMInt, SMDouble and SMString values are
+ * specialised for the type of the value in the condition. An equality or "in" condition on a list field matches if any
+ * element of the list matches.
+ */
+public final class ConditionCompiler {
+
+  private static final int LESS = 0;
+  private static final int LESS_OR_EQUAL = 1;
+  private static final int GREATER = 2;
+  private static final int GREATER_OR_EQUAL = 3;
+
+  private ConditionCompiler() {}
+
+  /**
+   * compile a list of conditions, joined with "and"
+   * @param conditions the conditions to compile; null or empty matches everything
+   * @return the compiled predicate
+   * @throws InvalidSchemaException if one of the conditions is of an unknown type
+   */
+  public static ObjectPredicate compile(List<SMCondition> conditions) throws InvalidSchemaException {
+    if(conditions == null || conditions.isEmpty()) {
+      return ALWAYS;
+    }
+    if(conditions.size() == 1) {
+      return compile(conditions.get(0));
+    }
+    ObjectPredicate[] clauses = new ObjectPredicate[conditions.size()];
+    for(int i = 0; i < clauses.length; i++) {
+      clauses[i] = compile(conditions.get(i));
+    }
+    return new And(clauses);
+  }
+
+  /**
+   * compile a single condition
+   * @param condition the condition to compile
+   * @return the compiled predicate
+   * @throws InvalidSchemaException if the condition is of an unknown type
+   */
+  public static ObjectPredicate compile(SMCondition condition) throws InvalidSchemaException {
+    if(condition instanceof SMAnd) {
+      return compile(((SMAnd) condition).getClauses());
+    } else if(condition instanceof SMOr) {
+      List<SMCondition> conditions = ((SMOr) condition).getClauses();
+      if(conditions.size() == 1) {
+        return compile(conditions.get(0));
+      }
+      ObjectPredicate[] clauses = new ObjectPredicate[conditions.size()];
+      for(int i = 0; i < clauses.length; i++) {
+        clauses[i] = compile(conditions.get(i));
+      }
+      return new Or(clauses);
+    } else if(condition instanceof SMEquals) {
+      SMEquals c = (SMEquals) condition;
+      return equalTo(c.getField(), c.getValue());
+    } else if(condition instanceof SMNotEqual) {
+      SMNotEqual c = (SMNotEqual) condition;
+      return new Not(equalTo(c.getField(), c.getValue()));
+    } else if(condition instanceof SMIn) {
+      SMIn c = (SMIn) condition;
+      return in(c.getField(), c.getValues());
+    } else if(condition instanceof SMLess) {
+      SMLess c = (SMLess) condition;
+      return range(c.getField(), LESS, c.getValue());
+    } else if(condition instanceof SMLessOrEqual) {
+      SMLessOrEqual c = (SMLessOrEqual) condition;
+      return range(c.getField(), LESS_OR_EQUAL, c.getValue());
+    } else if(condition instanceof SMGreater) {
+      SMGreater c = (SMGreater) condition;
+      return range(c.getField(), GREATER, c.getValue());
+    } else if(condition instanceof SMGreaterOrEqual) {
+      SMGreaterOrEqual c = (SMGreaterOrEqual) condition;
+      return range(c.getField(), GREATER_OR_EQUAL, c.getValue());
+    } else if(condition instanceof SMIsNull) {
+      SMIsNull c = (SMIsNull) condition;
+      return new IsNull(c.getField(), c.getValue().getValue());
+    } else if(condition instanceof SMNear) {
+      SMNear c = (SMNear) condition;
+      return new WithinDistance(c.getField(), c.getLat().getValue(), c.getLon().getValue(),
+              c.getDist() == null || c.getDist().getValue() == null ? Double.NaN : c.getDist().getValue());
+    } else if(condition instanceof SMWithin) {
+      SMWithin c = (SMWithin) condition;
+      return new WithinDistance(c.getField(), c.getLat().getValue(), c.getLon().getValue(), c.getDist().getValue());
+    } else if(condition instanceof SMWithinBox) {
+      SMWithinBox c = (SMWithinBox) condition;
+      return new WithinBox(c.getField(), c.getLatLL().getValue(), c.getLonLL().getValue(), c.getLatUR().getValue(), c.getLonUR().getValue());
+    }
+    throw new InvalidSchemaException("unsupported condition " + condition);
+  }
+
+  private static EqualsPredicate equalTo(String field, SMValue value) {
+    if(SMValues.isIntegral(value)) {
+      return new LongEquals(field, SMValues.longValue(value));
+    } else if(SMValues.isNumber(value)) {
+      return new DoubleEquals(field, SMValues.doubleValue(value));
+    } else if(value instanceof SMString && value.getValue() != null) {
+      return new StringEquals(field, (String) value.getValue());
+    }
+    return new GenericEquals(field, value);
+  }
+
+  private static ObjectPredicate in(String field, List<? extends SMValue> values) {
+    if(values.isEmpty()) {
+      return NEVER;
+    }
+    boolean allIntegral = true;
+    boolean allStrings = true;
+    for(SMValue value : values) {
+      allIntegral &= SMValues.isIntegral(value);
+      allStrings &= value instanceof SMString && value.getValue() != null;
+    }
+    if(allIntegral) {
+      long[] longs = new long[values.size()];
+      for(int i = 0; i < longs.length; i++) {
+        longs[i] = SMValues.longValue(values.get(i));
+      }
+      Arrays.sort(longs);
+      return new LongIn(field, longs);
+    } else if(allStrings) {
+      Set<String> strings = new HashSet<String>();
+      for(SMValue value : values) {
+        strings.add((String) value.getValue());
+      }
+      return new StringIn(field, strings);
+    }
+    return new GenericIn(field, values.toArray(new SMValue[values.size()]));
+  }
+
+  private static ObjectPredicate range(String field, int op, SMValue bound) {
+    if(SMValues.isIntegral(bound)) {
+      return new LongRange(field, op, SMValues.longValue(bound));
+    } else if(SMValues.isNumber(bound)) {
+      return new DoubleRange(field, op, SMValues.doubleValue(bound));
+    } else if(bound instanceof SMString && bound.getValue() != null) {
+      return new StringRange(field, op, (String) bound.getValue());
+    }
+    return new GenericRange(field, op, bound);
+  }
+
+  private static boolean holds(int op, int comparison) {
+    switch(op) {
+      case LESS: return comparison < 0;
+      case LESS_OR_EQUAL: return comparison <= 0;
+      case GREATER: return comparison > 0;
+      default: return comparison >= 0;
+    }
+  }
+
+  private static int compareLongs(long a, long b) {
+    return a < b ? -1 : (a == b ? 0 : 1);
+  }
+
+  private static final ObjectPredicate ALWAYS = new ObjectPredicate() {
+    @Override
+    public boolean matches(SMObject object) {
+      return true;
+    }
+  };
+
+  private static final ObjectPredicate NEVER = new ObjectPredicate() {
+    @Override
+    public boolean matches(SMObject object) {
+      return false;
+    }
+  };
+
+  private static final class And implements ObjectPredicate {
+    private final ObjectPredicate[] clauses;
+
+    And(ObjectPredicate[] clauses) {
+      this.clauses = clauses;
+    }
+
+    @Override
+    public boolean matches(SMObject object) {
+      for(ObjectPredicate clause : clauses) {
+        if(!clause.matches(object)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static final class Or implements ObjectPredicate {
+    private final ObjectPredicate[] clauses;
+
+    Or(ObjectPredicate[] clauses) {
+      this.clauses = clauses;
+    }
+
+    @Override
+    public boolean matches(SMObject object) {
+      for(ObjectPredicate clause : clauses) {
+        if(clause.matches(object)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final class Not implements ObjectPredicate {
+    private final ObjectPredicate predicate;
+
+    Not(ObjectPredicate predicate) {
+      this.predicate = predicate;
+    }
+
+    @Override
+    public boolean matches(SMObject object) {
+      return !predicate.matches(object);
+    }
+  }
+
+  private abstract static class FieldPredicate implements ObjectPredicate {
+    protected final String field;
+
+    FieldPredicate(String field) {
+      this.field = field;
+    }
+
+    @Override
+    public boolean matches(SMObject object) {
+      return test(object.getValue().get(field));
+    }
+
+    abstract boolean test(SMValue value);
+  }
+
+  /**
+   * an equality test which also matches list fields containing a matching element
+   */
+  private abstract static class EqualsPredicate extends FieldPredicate {
+    EqualsPredicate(String field) {
+      super(field);
+    }
+
+    @Override
+    boolean test(SMValue value) {
+      if(value instanceof SMList && value.getValue() != null) {
+        for(Object element : ((SMList<?>) value).getValue()) {
+          if(equalTo((SMValue) element)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      return equalTo(value);
+    }
+
+    abstract boolean equalTo(SMValue value);
+  }
+
+  private static final class LongEquals extends EqualsPredicate {
+    private final long expected;
+
+    LongEquals(String field, long expected) {
+      super(field);
+      this.expected = expected;
+    }
+
+    @Override
+    boolean equalTo(SMValue value) {
+      if(SMValues.isIntegral(value)) {
+        return SMValues.longValue(value) == expected;
+      }
+      return SMValues.isNumber(value) && Double.compare(SMValues.doubleValue(value), (double) expected) == 0;
+    }
+  }
+
+  private static final class DoubleEquals extends EqualsPredicate {
+    private final double expected;
+
+    DoubleEquals(String field, double expected) {
+      super(field);
+      this.expected = expected;
+    }
+
+    @Override
+    boolean equalTo(SMValue value) {
+      return SMValues.isNumber(value) && Double.compare(SMValues.doubleValue(value), expected) == 0;
+    }
+  }
+
+  private static final class StringEquals extends EqualsPredicate {
+    private final String expected;
+
+    StringEquals(String field, String expected) {
+      super(field);
+      this.expected = expected;
+    }
+
+    @Override
+    boolean equalTo(SMValue value) {
+      return value instanceof SMString && expected.equals(value.getValue());
+    }
+  }
+
+  private static final class GenericEquals extends EqualsPredicate {
+    private final SMValue expected;
+
+    GenericEquals(String field, SMValue expected) {
+      super(field);
+      this.expected = expected;
+    }
+
+    @Override
+    boolean test(SMValue value) {
+      return expected instanceof SMList ? SMValues.equal(value, expected) : super.test(value);
+    }
+
+    @Override
+    boolean equalTo(SMValue value) {
+      return SMValues.equal(value, expected);
+    }
+  }
+
+  private static final class LongIn extends EqualsPredicate {
+    private final long[] sorted;
+
+    LongIn(String field, long[] sorted) {
+      super(field);
+      this.sorted = sorted;
+    }
+
+    @Override
+    boolean equalTo(SMValue value) {
+      if(SMValues.isIntegral(value)) {
+        return Arrays.binarySearch(sorted, SMValues.longValue(value)) >= 0;
+      }
+      if(SMValues.isNumber(value)) {
+        double d = SMValues.doubleValue(value);
+        return (double) (long) d == d && Arrays.binarySearch(sorted, (long) d) >= 0;
+      }
+      return false;
+    }
+  }
+
+  private static final class StringIn extends EqualsPredicate {
+    private final Set<String> strings;
+
+    StringIn(String field, Set<String> strings) {
+      super(field);
+      this.strings = strings;
+    }
+
+    @Override
+    boolean equalTo(SMValue value) {
+      return value instanceof SMString && value.getValue() != null && strings.contains(value.getValue());
+    }
+  }
+
+  private static final class GenericIn extends EqualsPredicate {
+    private final SMValue[] values;
+
+    GenericIn(String field, SMValue[] values) {
+      super(field);
+      this.values = values;
+    }
+
+    @Override
+    boolean equalTo(SMValue value) {
+      for(SMValue candidate : values) {
+        if(SMValues.equal(value, candidate)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static final class LongRange extends FieldPredicate {
+    private final int op;
+    private final long bound;
+
+    LongRange(String field, int op, long bound) {
+      super(field);
+      this.op = op;
+      this.bound = bound;
+    }
+
+    @Override
+    boolean test(SMValue value) {
+      if(SMValues.isIntegral(value)) {
+        return holds(op, compareLongs(SMValues.longValue(value), bound));
+      }
+      return SMValues.isNumber(value) && holds(op, Double.compare(SMValues.doubleValue(value), (double) bound));
+    }
+  }
+
+  private static final class DoubleRange extends FieldPredicate {
+    private final int op;
+    private final double bound;
+
+    DoubleRange(String field, int op, double bound) {
+      super(field);
+      this.op = op;
+      this.bound = bound;
+    }
+
+    @Override
+    boolean test(SMValue value) {
+      return SMValues.isNumber(value) && holds(op, Double.compare(SMValues.doubleValue(value), bound));
+    }
+  }
+
+  private static final class StringRange extends FieldPredicate {
+    private final int op;
+    private final String bound;
+
+    StringRange(String field, int op, String bound) {
+      super(field);
+      this.op = op;
+      this.bound = bound;
+    }
+
+    @Override
+    boolean test(SMValue value) {
+      return value instanceof SMString && value.getValue() != null && holds(op, ((String) value.getValue()).compareTo(bound));
+    }
+  }
+
+  private static final class GenericRange extends FieldPredicate {
+    private final int op;
+    private final SMValue bound;
+
+    GenericRange(String field, int op, SMValue bound) {
+      super(field);
+      this.op = op;
+      this.bound = bound;
+    }
+
+    @Override
+    boolean test(SMValue value) {
+      return SMValues.comparable(value, bound) && holds(op, SMValues.compare(value, bound));
+    }
+  }
+
+  private static final class IsNull extends FieldPredicate {
+    private final boolean wantNull;
+
+    IsNull(String field, boolean wantNull) {
+      super(field);
+      this.wantNull = wantNull;
+    }
+
+    @Override
+    boolean test(SMValue value) {
+      return SMValues.isNull(value) == wantNull;
+    }
+  }
+
+  /**
+   * matches points within a distance of a center, or all points if the distance is NaN
+   */
+  private static final class WithinDistance extends FieldPredicate {
+    private final double lat;
+    private final double lon;
+    private final double dist;
+    private final double maxLatDegrees;
+
+    WithinDistance(String field, double lat, double lon, double dist) {
+      super(field);
+      this.lat = lat;
+      this.lon = lon;
+      this.dist = dist;
+      this.maxLatDegrees = Math.toDegrees(dist);
+    }
+
+    @Override
+    boolean test(SMValue value) {
+      if(!GeoPoints.isPoint(value)) {
+        return false;
+      }
+      if(Double.isNaN(dist)) {
+        return true;
+      }
+      double pointLat = GeoPoints.lat(value);
+      // a point further away in latitude alone can't be close enough, so skip the trigonometry
+      if(Math.abs(pointLat - lat) > maxLatDegrees) {
+        return false;
+      }
+      return GeoPoints.distance(pointLat, GeoPoints.lon(value), lat, lon) <= dist;
+    }
+  }
+
+  private static final class WithinBox extends FieldPredicate {
+    private final double latLL;
+    private final double lonLL;
+    private final double latUR;
+    private final double lonUR;
+
+    WithinBox(String field, double latLL, double lonLL, double latUR, double lonUR) {
+      super(field);
+      this.latLL = latLL;
+      this.lonLL = lonLL;
+      this.latUR = latUR;
+      this.lonUR = lonUR;
+    }
+
+    @Override
+    boolean test(SMValue value) {
+      return GeoPoints.isPoint(value) && GeoPoints.inBox(GeoPoints.lat(value), GeoPoints.lon(value), latLL, lonLL, latUR, lonUR);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.sdkapi.SMCondition;
+import com.stackmob.sdkapi.SMValue;
+
+import java.util.Collection;
+
+/**
+ * A secondary index over a single field of a schema in an {@link InMemoryDataService}. The service keeps each index
+ * up to date as objects are created, updated and deleted, and asks its indexes to narrow down the objects a query has
+ * to look at.
+ *
+ * The service never calls <code>add</code> or <code>remove</code> concurrently with any other method, but
+ * <code>lookup</code> may be called from several threads at once.
+ */
+public interface FieldIndex {
+
+  /**
+   * get the field this index covers
+   * @return the field name
+   */
+  String getField();
+
+  /**
+   * index an object
+   * @param id the id of the object
+   * @param value the value of the indexed field in the object, or null if the object doesn't have the field
+   */
+  void add(SMValue id, SMValue value);
+
+  /**
+   * remove an object from the index
+   * @param id the id of the object
+   * @param value the value of the indexed field at the time the object was added
+   */
+  void remove(SMValue id, SMValue value);
+
+  /**
+   * find the ids of the objects which might meet the given condition. the result may include ids of objects which
+   * don't meet the condition, since the service will check each object against the full query anyway, but it must
+   * include every object which does.
+   * @param condition a condition from a query
+   * @return the candidate ids, or null if this index can't help with the condition
+   */
+  Collection<SMValue> lookup(SMCondition condition);
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.sdkapi.SMNear;
+import com.stackmob.sdkapi.SMValue;
+
+/**
+ * A {@link FieldIndex} over a geo field which can also list objects in order of their distance from a point. When a
+ * query has an SMNear condition on a field with such an index and no orderings of its own, {@link InMemoryDataService}
+ * reads the nearest objects first and stops as soon as it has filled the requested ResultFilters window.
+ */
+public interface GeoFieldIndex extends FieldIndex {
+
+  /**
+   * list the ids of the objects near the center of an SMNear condition, nearest first, stopping at the condition's
+   * distance if it has one. the ids may be produced lazily, so callers must finish with them before the index is
+   * modified.
+   * @param near the condition
+   * @return the ids, nearest first
+   */
+  Iterable<SMValue> nearest(SMNear near);
+}
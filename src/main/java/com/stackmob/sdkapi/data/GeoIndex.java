@@ -0,0 +1,335 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.sdkapi.*;
+
+import java.util.*;
+
+/**
+ * A spatial index over a geo field, backed by a quadtree of latitude/longitude boxes. It answers SMWithin, SMWithinBox
+ * and SMNear conditions with a distance by visiting only the boxes which overlap the search area, and lists objects
+ * for SMNear queries nearest first with a best-first search, so reading the closest few objects doesn't depend on how
+ * many objects are further away.
+ */
+public class GeoIndex implements GeoFieldIndex {
+
+  private static final int DEFAULT_BUCKET_SIZE = 64;
+  private static final int MAX_DEPTH = 24;
+  // slack for rounding when comparing a box's lower bound distance with a search radius
+  private static final double EPSILON = 1e-12;
+
+  private final String field;
+  private final int bucketSize;
+  private final Node root = new Node(-90, 90, -180, 180, 0);
+
+  /**
+   * create a new, empty GeoIndex
+   * @param field the geo field to index
+   */
+  public GeoIndex(String field) {
+    this(field, DEFAULT_BUCKET_SIZE);
+  }
+
+  /**
+   * create a new, empty GeoIndex
+   * @param field the geo field to index
+   * @param bucketSize the number of points a box holds before it's split into four
+   */
+  public GeoIndex(String field, int bucketSize) {
+    this.field = field;
+    this.bucketSize = bucketSize;
+  }
+
+  @Override
+  public String getField() {
+    return field;
+  }
+
+  @Override
+  public void add(SMValue id, SMValue value) {
+    if(GeoPoints.isPoint(value)) {
+      root.insert(new Entry(id, GeoPoints.lat(value), GeoPoints.lon(value)), bucketSize);
+    }
+  }
+
+  @Override
+  public void remove(SMValue id, SMValue value) {
+    if(GeoPoints.isPoint(value)) {
+      root.remove(id, GeoPoints.lat(value), GeoPoints.lon(value));
+    }
+  }
+
+  @Override
+  public Collection<SMValue> lookup(SMCondition condition) {
+    List<SMValue> ids = new ArrayList<SMValue>();
+    if(condition instanceof SMWithin) {
+      SMWithin c = (SMWithin) condition;
+      if(!field.equals(c.getField())) {
+        return null;
+      }
+      root.withinDistance(c.getLat().getValue(), c.getLon().getValue(), c.getDist().getValue(), ids);
+    } else if(condition instanceof SMNear) {
+      SMNear c = (SMNear) condition;
+      if(!field.equals(c.getField()) || c.getDist() == null || c.getDist().getValue() == null) {
+        return null;
+      }
+      root.withinDistance(c.getLat().getValue(), c.getLon().getValue(), c.getDist().getValue(), ids);
+    } else if(condition instanceof SMWithinBox) {
+      SMWithinBox c = (SMWithinBox) condition;
+      if(!field.equals(c.getField())) {
+        return null;
+      }
+      double latLL = c.getLatLL().getValue();
+      double latUR = c.getLatUR().getValue();
+      double lonLL = c.getLonLL().getValue();
+      double lonUR = c.getLonUR().getValue();
+      if(lonLL <= lonUR) {
+        root.withinBox(latLL, latUR, lonLL, lonUR, ids);
+      } else {
+        root.withinBox(latLL, latUR, lonLL, 180, ids);
+        root.withinBox(latLL, latUR, -180, lonUR, ids);
+      }
+    } else {
+      return null;
+    }
+    return ids;
+  }
+
+  @Override
+  public Iterable<SMValue> nearest(SMNear near) {
+    final double lat = near.getLat().getValue();
+    final double lon = near.getLon().getValue();
+    final double maxDist = near.getDist() == null || near.getDist().getValue() == null ? Double.POSITIVE_INFINITY : near.getDist().getValue();
+    return new Iterable<SMValue>() {
+      @Override
+      public Iterator<SMValue> iterator() {
+        return new Nearest(root, lat, lon, maxDist);
+      }
+    };
+  }
+
+  private static double normalizeLon(double lon) {
+    double normalized = Math.IEEEremainder(lon, 360);
+    return normalized == -180 ? 180 : normalized;
+  }
+
+  private static double clampLat(double lat) {
+    return Math.max(-90, Math.min(90, lat));
+  }
+
+  private static final class Entry {
+    final SMValue id;
+    final double lat;
+    final double lon;
+
+    Entry(SMValue id, double lat, double lon) {
+      this.id = id;
+      this.lat = lat;
+      this.lon = lon;
+    }
+  }
+
+  /**
+   * a box in the quadtree. leaves hold entries; split boxes hold four children and no entries
+   */
+  private static final class Node {
+    final double minLat;
+    final double maxLat;
+    final double minLon;
+    final double maxLon;
+    final int depth;
+    List<Entry> entries = new ArrayList<Entry>();
+    Node[] children;
+
+    Node(double minLat, double maxLat, double minLon, double maxLon, int depth) {
+      this.minLat = minLat;
+      this.maxLat = maxLat;
+      this.minLon = minLon;
+      this.maxLon = maxLon;
+      this.depth = depth;
+    }
+
+    void insert(Entry entry, int bucketSize) {
+      Node node = leafFor(clampLat(entry.lat), normalizeLon(entry.lon));
+      node.entries.add(entry);
+      if(node.entries.size() > bucketSize && node.depth < MAX_DEPTH) {
+        node.split();
+      }
+    }
+
+    void remove(SMValue id, double lat, double lon) {
+      List<Entry> bucket = leafFor(clampLat(lat), normalizeLon(lon)).entries;
+      for(int i = 0; i < bucket.size(); i++) {
+        if(bucket.get(i).id.equals(id)) {
+          bucket.remove(i);
+          return;
+        }
+      }
+    }
+
+    private Node leafFor(double lat, double lon) {
+      Node node = this;
+      while(node.children != null) {
+        node = node.children[node.quadrant(lat, lon)];
+      }
+      return node;
+    }
+
+    private int quadrant(double lat, double lon) {
+      return (lat >= (minLat + maxLat) / 2 ? 2 : 0) + (lon >= (minLon + maxLon) / 2 ? 1 : 0);
+    }
+
+    private void split() {
+      double midLat = (minLat + maxLat) / 2;
+      double midLon = (minLon + maxLon) / 2;
+      children = new Node[] {
+        new Node(minLat, midLat, minLon, midLon, depth + 1),
+        new Node(minLat, midLat, midLon, maxLon, depth + 1),
+        new Node(midLat, maxLat, minLon, midLon, depth + 1),
+        new Node(midLat, maxLat, midLon, maxLon, depth + 1)
+      };
+      for(Entry entry : entries) {
+        children[quadrant(clampLat(entry.lat), normalizeLon(entry.lon))].entries.add(entry);
+      }
+      entries = null;
+    }
+
+    double distanceFrom(double lat, double lon) {
+      return GeoPoints.distanceToBox(lat, normalizeLon(lon), minLat, maxLat, minLon, maxLon);
+    }
+
+    void withinDistance(double lat, double lon, double dist, List<SMValue> into) {
+      if(distanceFrom(lat, lon) > dist + EPSILON) {
+        return;
+      }
+      if(children != null) {
+        for(Node child : children) {
+          child.withinDistance(lat, lon, dist, into);
+        }
+        return;
+      }
+      for(Entry entry : entries) {
+        if(GeoPoints.distance(entry.lat, entry.lon, lat, lon) <= dist) {
+          into.add(entry.id);
+        }
+      }
+    }
+
+    void withinBox(double latLL, double latUR, double lonLL, double lonUR, List<SMValue> into) {
+      if(maxLat < latLL || minLat > latUR || maxLon < lonLL || minLon > lonUR) {
+        return;
+      }
+      if(children != null) {
+        for(Node child : children) {
+          child.withinBox(latLL, latUR, lonLL, lonUR, into);
+        }
+        return;
+      }
+      for(Entry entry : entries) {
+        double entryLon = normalizeLon(entry.lon);
+        if(entry.lat >= latLL && entry.lat <= latUR && entryLon >= lonLL && entryLon <= lonUR) {
+          into.add(entry.id);
+        }
+      }
+    }
+  }
+
+  /**
+   * a box or an entry waiting in the best-first search, with the least distance anything in it could be from the center
+   */
+  private static final class Candidate implements Comparable<Candidate> {
+    final double distance;
+    final Node node;
+    final Entry entry;
+
+    Candidate(double distance, Node node, Entry entry) {
+      this.distance = distance;
+      this.node = node;
+      this.entry = entry;
+    }
+
+    @Override
+    public int compareTo(Candidate other) {
+      int result = Double.compare(distance, other.distance);
+      if(result == 0) {
+        // at equal distances hand out entries before opening more boxes
+        return (entry == null ? 1 : 0) - (other.entry == null ? 1 : 0);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * incremental nearest neighbour search: an entry comes off the queue only once every box that could hold something
+   * closer has been opened
+   */
+  private static final class Nearest implements Iterator<SMValue> {
+    private final PriorityQueue<Candidate> queue = new PriorityQueue<Candidate>();
+    private final double lat;
+    private final double lon;
+    private final double maxDist;
+    private Entry next;
+
+    Nearest(Node root, double lat, double lon, double maxDist) {
+      this.lat = lat;
+      this.lon = lon;
+      this.maxDist = maxDist;
+      queue.add(new Candidate(root.distanceFrom(lat, lon), root, null));
+    }
+
+    @Override
+    public boolean hasNext() {
+      while(next == null && !queue.isEmpty()) {
+        Candidate candidate = queue.poll();
+        if(candidate.entry != null) {
+          next = candidate.entry;
+        } else if(candidate.node.children != null) {
+          for(Node child : candidate.node.children) {
+            offer(new Candidate(child.distanceFrom(lat, lon), child, null));
+          }
+        } else {
+          for(Entry entry : candidate.node.entries) {
+            offer(new Candidate(GeoPoints.distance(entry.lat, entry.lon, lat, lon), null, entry));
+          }
+        }
+      }
+      return next != null;
+    }
+
+    private void offer(Candidate candidate) {
+      double limit = candidate.entry == null ? maxDist + EPSILON : maxDist;
+      if(candidate.distance <= limit) {
+        queue.add(candidate);
+      }
+    }
+
+    @Override
+    public SMValue next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      SMValue id = next.id;
+      next = null;
+      return id;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.sdkapi.SMObject;
+import com.stackmob.sdkapi.SMValue;
+
+/**
+ * Helpers for geo fields. A geo field is stored as an SMObject with numeric <code>lat</code> and <code>lon</code>
+ * fields, in degrees. Distances are measured in radians along a great circle, as in SMNear and SMWithin.
+ */
+final class GeoPoints {
+
+  static final String LAT = "lat";
+  static final String LON = "lon";
+  static final String DISTANCE = "distance";
+
+  private GeoPoints() {}
+
+  /**
+   * determine whether the given value is a geo point
+   * @param value the value to check
+   * @return true if the value is an SMObject with numeric lat and lon fields
+   */
+  static boolean isPoint(SMValue value) {
+    if(!(value instanceof SMObject) || value.getValue() == null) {
+      return false;
+    }
+    SMObject point = (SMObject) value;
+    return SMValues.isNumber(point.getValue().get(LAT)) && SMValues.isNumber(point.getValue().get(LON));
+  }
+
+  /**
+   * get the latitude of a point for which {@link #isPoint(SMValue)} is true
+   * @param point the point
+   * @return the latitude, in degrees
+   */
+  static double lat(SMValue point) {
+    return SMValues.doubleValue(((SMObject) point).getValue().get(LAT));
+  }
+
+  /**
+   * get the longitude of a point for which {@link #isPoint(SMValue)} is true
+   * @param point the point
+   * @return the longitude, in degrees
+   */
+  static double lon(SMValue point) {
+    return SMValues.doubleValue(((SMObject) point).getValue().get(LON));
+  }
+
+  /**
+   * the great circle distance between two points
+   * @param lat1 the latitude of the first point, in degrees
+   * @param lon1 the longitude of the first point, in degrees
+   * @param lat2 the latitude of the second point, in degrees
+   * @param lon2 the longitude of the second point, in degrees
+   * @return the distance, in radians
+   */
+  static double distance(double lat1, double lon1, double lat2, double lon2) {
+    double phi1 = Math.toRadians(lat1);
+    double phi2 = Math.toRadians(lat2);
+    double sinDPhi = Math.sin((phi2 - phi1) / 2);
+    double sinDLambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+    double h = sinDPhi * sinDPhi + Math.cos(phi1) * Math.cos(phi2) * sinDLambda * sinDLambda;
+    return 2 * Math.asin(Math.min(1.0, Math.sqrt(h)));
+  }
+
+  /**
+   * the shortest great circle distance from a point to any point in a box which doesn't cross the antimeridian
+   * @param lat the latitude of the point, in degrees
+   * @param lon the longitude of the point, in degrees
+   * @return the distance, in radians, or 0 if the point is inside the box
+   */
+  static double distanceToBox(double lat, double lon, double minLat, double maxLat, double minLon, double maxLon) {
+    if(lon >= minLon && lon <= maxLon) {
+      if(lat < minLat) {
+        return Math.toRadians(minLat - lat);
+      }
+      return lat > maxLat ? Math.toRadians(lat - maxLat) : 0;
+    }
+    // outside the box's longitudes the nearest point is on one of its two meridian edges
+    return Math.min(distanceToMeridian(lat, lon, minLat, maxLat, minLon), distanceToMeridian(lat, lon, minLat, maxLat, maxLon));
+  }
+
+  private static double distanceToMeridian(double lat, double lon, double minLat, double maxLat, double meridian) {
+    double dLon = Math.IEEEremainder(Math.toRadians(meridian - lon), 2 * Math.PI);
+    if(Math.abs(dLon) >= Math.PI / 2) {
+      return Math.min(distance(lat, lon, minLat, meridian), distance(lat, lon, maxLat, meridian));
+    }
+    double closest = Math.toDegrees(Math.atan(Math.tan(Math.toRadians(lat)) / Math.cos(dLon)));
+    return distance(lat, lon, Math.max(minLat, Math.min(maxLat, closest)), meridian);
+  }
+
+  /**
+   * determine whether a point lies within a box. if lonLL is greater than lonUR the box crosses the antimeridian
+   * @return true if the point is inside the box or on its edge
+   */
+  static boolean inBox(double lat, double lon, double latLL, double lonLL, double latUR, double lonUR) {
+    if(lat < latLL || lat > latUR) {
+      return false;
+    }
+    if(lonLL <= lonUR) {
+      return lon >= lonLL && lon <= lonUR;
+    }
+    return lon >= lonLL || lon <= lonUR;
+  }
+}
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.sdkapi.*;
+
+import java.util.*;
+
+/**
+ * A hash index for equality queries. It answers SMEquals with a single probe, SMIn with one probe per value merged
+ * into a single candidate set, and SMNotEqual by subtracting the matching objects from every object in the index.
+ *
+ * Integer values, and doubles with an integral value, are kept in a map keyed on primitive longs so they're never
+ * boxed. List fields are indexed under each of their elements, so they're found by any element they contain, just
+ * like the equality conditions themselves.
+ */
+public class HashIndex implements FieldIndex {
+
+  private final String field;
+  private final LongObjectMap<Set<SMValue>> longKeys = new LongObjectMap<Set<SMValue>>();
+  private final Map<Object, Set<SMValue>> otherKeys = new HashMap<Object, Set<SMValue>>();
+  private final Set<SMValue> nullIds = new HashSet<SMValue>();
+  private final Set<SMValue> allIds = new HashSet<SMValue>();
+
+  /**
+   * create a new, empty HashIndex
+   * @param field the field to index
+   */
+  public HashIndex(String field) {
+    this.field = field;
+  }
+
+  @Override
+  public String getField() {
+    return field;
+  }
+
+  @Override
+  public void add(SMValue id, SMValue value) {
+    allIds.add(id);
+    if(value instanceof SMList && value.getValue() != null) {
+      for(Object element : ((SMList<?>) value).getValue()) {
+        postingsFor((SMValue) element, true).add(id);
+      }
+    } else {
+      postingsFor(value, true).add(id);
+    }
+  }
+
+  @Override
+  public void remove(SMValue id, SMValue value) {
+    allIds.remove(id);
+    if(value instanceof SMList && value.getValue() != null) {
+      for(Object element : ((SMList<?>) value).getValue()) {
+        removePosting((SMValue) element, id);
+      }
+    } else {
+      removePosting(value, id);
+    }
+  }
+
+  @Override
+  public Collection<SMValue> lookup(SMCondition condition) {
+    if(condition instanceof SMEquals) {
+      SMEquals c = (SMEquals) condition;
+      if(!field.equals(c.getField()) || c.getValue() instanceof SMList) {
+        return null;
+      }
+      return postingsOrEmpty(c.getValue());
+    } else if(condition instanceof SMIn) {
+      SMIn c = (SMIn) condition;
+      if(!field.equals(c.getField())) {
+        return null;
+      }
+      return probeAll(c.getValues());
+    } else if(condition instanceof SMNotEqual) {
+      SMNotEqual c = (SMNotEqual) condition;
+      if(!field.equals(c.getField()) || c.getValue() instanceof SMList) {
+        return null;
+      }
+      Set<SMValue> excluded = postingsOrEmpty(c.getValue());
+      List<SMValue> ids = new ArrayList<SMValue>(Math.max(allIds.size() - excluded.size(), 0));
+      for(SMValue id : allIds) {
+        if(!excluded.contains(id)) {
+          ids.add(id);
+        }
+      }
+      return ids;
+    }
+    return null;
+  }
+
+  private Collection<SMValue> probeAll(List<? extends SMValue> values) {
+    for(SMValue value : values) {
+      if(value instanceof SMList) {
+        return null;
+      }
+    }
+    if(values.size() == 1) {
+      return postingsOrEmpty(values.get(0));
+    }
+    // a list field can be filed under several of the values, so collect into a set to return each id once
+    Set<SMValue> ids = new HashSet<SMValue>();
+    for(SMValue value : values) {
+      ids.addAll(postingsOrEmpty(value));
+    }
+    return ids;
+  }
+
+  private Set<SMValue> postingsOrEmpty(SMValue value) {
+    Set<SMValue> postings = postingsFor(value, false);
+    return postings == null ? Collections.<SMValue>emptySet() : Collections.unmodifiableSet(postings);
+  }
+
+  private Set<SMValue> postingsFor(SMValue value, boolean create) {
+    if(SMValues.isNull(value)) {
+      return nullIds;
+    }
+    if(hasLongKey(value)) {
+      long key = longKey(value);
+      Set<SMValue> postings = longKeys.get(key);
+      if(postings == null && create) {
+        postings = new HashSet<SMValue>();
+        longKeys.put(key, postings);
+      }
+      return postings;
+    }
+    Object key = otherKey(value);
+    Set<SMValue> postings = otherKeys.get(key);
+    if(postings == null && create) {
+      postings = new HashSet<SMValue>();
+      otherKeys.put(key, postings);
+    }
+    return postings;
+  }
+
+  private void removePosting(SMValue value, SMValue id) {
+    if(SMValues.isNull(value)) {
+      nullIds.remove(id);
+    } else if(hasLongKey(value)) {
+      long key = longKey(value);
+      Set<SMValue> postings = longKeys.get(key);
+      if(postings != null && postings.remove(id) && postings.isEmpty()) {
+        longKeys.remove(key);
+      }
+    } else {
+      Object key = otherKey(value);
+      Set<SMValue> postings = otherKeys.get(key);
+      if(postings != null && postings.remove(id) && postings.isEmpty()) {
+        otherKeys.remove(key);
+      }
+    }
+  }
+
+  private static boolean hasLongKey(SMValue value) {
+    if(SMValues.isIntegral(value)) {
+      return true;
+    }
+    if(SMValues.isNumber(value)) {
+      double d = SMValues.doubleValue(value);
+      return (double) (long) d == d;
+    }
+    return false;
+  }
+
+  private static long longKey(SMValue value) {
+    return SMValues.isIntegral(value) ? SMValues.longValue(value) : (long) SMValues.doubleValue(value);
+  }
+
+  /**
+   * non-integral numbers are keyed on their double value so that SMDouble and SMInt compare numerically; strings and
+   * everything else are keyed on the value itself
+   */
+  private static Object otherKey(SMValue value) {
+    if(SMValues.isNumber(value)) {
+      return SMValues.doubleValue(value);
+    }
+    if(value instanceof SMString) {
+      return value.getValue();
+    }
+    return value;
+  }
+}
@@ -0,0 +1,921 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.core.DatastoreException;
+import com.stackmob.core.InvalidSchemaException;
+import com.stackmob.sdkapi.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A thread safe DataService which keeps all of its data in memory. Use it to run and load test custom code without
+ * talking to the StackMob datastore.
+ *
+ * Schemas are created the first time an object is created in them, or explicitly with {@link #defineSchema(String)}.
+ * The id field of a schema is <code>&lt;schema&gt;_id</code>, except for the user schema whose id field is
+ * <code>username</code>. Relationships must be declared with {@link #defineRelationship(String, String, String)}
+ * before they can be expanded or added to. Geo fields are SMObjects with <code>lat</code> and <code>lon</code> fields.
+ *
+ * Queries scan every object in a schema unless one of the schema's {@link FieldIndex}es can narrow them down. A query
+ * sorted on a single field with a {@link SortedFieldIndex} reads that index in order and stops once its ResultFilters
+ * window is full, and likewise an SMNear query with a {@link GeoFieldIndex} on its field reads the nearest objects
+ * first. Results are sorted by the query's orderings and then by id, or nearest first for SMNear queries. Queries with
+ * neither are returned in no particular order unless they ask for a window, in which case they're sorted by id. A
+ * continuation in the ResultFilters resumes a sorted read just past the object it was created from, seeking a sorted
+ * index straight to that point where there is one.
+ */
+public class InMemoryDataService implements DataService {
+
+  public static final String DEFAULT_USER_SCHEMA = "user";
+  public static final String USER_ID_FIELD = "username";
+  public static final String CREATED_DATE_FIELD = "createddate";
+  public static final String LAST_MOD_DATE_FIELD = "lastmoddate";
+
+  private final String userSchema;
+  private final ConcurrentMap<String, Schema> schemas = new ConcurrentHashMap<String, Schema>();
+
+  /**
+   * create a new, empty InMemoryDataService whose user schema is called <code>user</code>
+   */
+  public InMemoryDataService() {
+    this(DEFAULT_USER_SCHEMA);
+  }
+
+  /**
+   * create a new, empty InMemoryDataService
+   * @param userSchema the name of the primary user schema
+   */
+  public InMemoryDataService(String userSchema) {
+    this.userSchema = userSchema;
+    defineSchema(userSchema);
+  }
+
+  /**
+   * create a schema if it doesn't already exist
+   * @param schema the name of the schema
+   */
+  public void defineSchema(String schema) {
+    schemaFor(schema);
+  }
+
+  /**
+   * declare a relationship from one schema to another. the relationship field holds either a single id or a list of
+   * ids of objects in the related schema
+   * @param schema the name of the schema which holds the relationship field
+   * @param field the relationship field
+   * @param relatedSchema the name of the schema the relationship points to
+   */
+  public void defineRelationship(String schema, String field, String relatedSchema) {
+    schemaFor(relatedSchema);
+    schemaFor(schema).relations.put(field, relatedSchema);
+  }
+
+  /**
+   * add a secondary index to a schema. all objects already in the schema are added to the index
+   * @param schema the name of the schema to index
+   * @param index the index
+   */
+  public void addIndex(String schema, FieldIndex index) {
+    Schema s = schemaFor(schema);
+    s.lock.writeLock().lock();
+    try {
+      for(Map.Entry<SMValue, SMObject> entry : s.objects.entrySet()) {
+        index.add(entry.getKey(), entry.getValue().getValue().get(index.getField()));
+      }
+      s.indexes.add(index);
+    } finally {
+      s.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * get the name of the id field for the given schema
+   * @param schema the name of the schema
+   * @return the id field
+   */
+  public String getIdField(String schema) {
+    return schema.equals(userSchema) ? USER_ID_FIELD : schema + "_id";
+  }
+
+  @Override
+  public String getUserSchema() {
+    return userSchema;
+  }
+
+  @Override
+  public SMObject createObject(String schema, SMObject toCreate) throws InvalidSchemaException, DatastoreException {
+    if(toCreate == null || toCreate.getValue() == null) {
+      throw new InvalidSchemaException("cannot create a null object in " + schema);
+    }
+    Schema s = schemaFor(schema);
+    SMObject created = prepareForCreate(s, toCreate, System.currentTimeMillis());
+    SMValue id = created.getValue().get(s.idField);
+    s.lock.writeLock().lock();
+    try {
+      if(s.objects.containsKey(id)) {
+        throw new DatastoreException(String.format("an object with id %s already exists in %s", id, schema));
+      }
+      s.insert(id, created);
+    } finally {
+      s.lock.writeLock().unlock();
+    }
+    return SMValues.copy(created);
+  }
+
+  @Override
+  public BulkResult createObjects(String schema, List<SMObject> objectsToCreate) throws InvalidSchemaException, DatastoreException {
+    Schema s = schemaFor(schema);
+    long now = System.currentTimeMillis();
+    List<SMObject> prepared = new ArrayList<SMObject>(objectsToCreate.size());
+    List<SMValue> successIds = new ArrayList<SMValue>();
+    List<SMValue> failedIds = new ArrayList<SMValue>();
+    for(SMObject toCreate : objectsToCreate) {
+      if(toCreate == null || toCreate.getValue() == null) {
+        failedIds.add(null);
+      } else {
+        prepared.add(prepareForCreate(s, toCreate, now));
+      }
+    }
+    // copying and assigning ids happens above, so the whole batch goes in under a single acquisition of the lock
+    s.lock.writeLock().lock();
+    try {
+      for(SMObject created : prepared) {
+        SMValue id = created.getValue().get(s.idField);
+        if(s.objects.containsKey(id)) {
+          failedIds.add(id);
+        } else {
+          s.insert(id, created);
+          successIds.add(id);
+        }
+      }
+    } finally {
+      s.lock.writeLock().unlock();
+    }
+    return new BulkResult(successIds, failedIds);
+  }
+
+  @Override
+  public BulkResult createRelatedObjects(String schema, SMValue objectId, String relatedField, List<SMObject> relatedObjectsToCreate)
+          throws InvalidSchemaException, DatastoreException {
+    Schema s = existingSchema(schema);
+    String relatedSchema = relatedSchema(s, relatedField);
+    if(readById(s, objectId) == null) {
+      throw new DatastoreException(String.format("no object with id %s exists in %s", objectId, schema));
+    }
+
+    String relatedIdField = getIdField(relatedSchema);
+    List<SMValue> successIds = new ArrayList<SMValue>();
+    List<SMValue> failedIds = new ArrayList<SMValue>();
+    for(SMObject toCreate : relatedObjectsToCreate) {
+      try {
+        successIds.add(createObject(relatedSchema, toCreate).getValue().get(relatedIdField));
+      } catch(DatastoreException e) {
+        failedIds.add(toCreate.getValue().get(relatedIdField));
+      } catch(InvalidSchemaException e) {
+        failedIds.add(toCreate == null || toCreate.getValue() == null ? null : toCreate.getValue().get(relatedIdField));
+      }
+    }
+    addRelatedObjects(schema, objectId, relatedField, successIds);
+    return new BulkResult(successIds, failedIds);
+  }
+
+  @Override
+  public List<SMObject> readObjects(String schema, List<SMCondition> conditions) throws InvalidSchemaException, DatastoreException {
+    return read(schema, conditions, 0, null, null);
+  }
+
+  @Override
+  public List<SMObject> readObjects(String schema, List<SMCondition> conditions, List<String> fields)
+          throws InvalidSchemaException, DatastoreException {
+    return read(schema, conditions, 0, null, fields);
+  }
+
+  @Override
+  public List<SMObject> readObjects(String schema, List<SMCondition> conditions, int expandDepth)
+          throws InvalidSchemaException, DatastoreException {
+    return read(schema, conditions, expandDepth, null, null);
+  }
+
+  @Override
+  public List<SMObject> readObjects(String schema, List<SMCondition> conditions, int expandDepth, ResultFilters resultFilters)
+          throws InvalidSchemaException, DatastoreException {
+    return read(schema, conditions, expandDepth, resultFilters, resultFilters == null ? null : resultFilters.getFields());
+  }
+
+  @Override
+  public ObjectCursor readObjectsCursor(String schema, List<SMCondition> conditions, int expandDepth, ResultFilters resultFilters, int pageSize)
+          throws InvalidSchemaException, DatastoreException {
+    existingSchema(schema);
+    return new ObjectCursor(this, schema, getIdField(schema), conditions, expandDepth, resultFilters, pageSize);
+  }
+
+  @Override
+  public SMObject updateObject(String schema, String id, List<SMUpdate> updateActions) throws InvalidSchemaException, DatastoreException {
+    return updateObject(schema, new SMString(id), updateActions);
+  }
+
+  @Override
+  public SMObject updateObject(String schema, SMValue id, List<SMUpdate> updateActions) throws InvalidSchemaException, DatastoreException {
+    SMObject updated = update(existingSchema(schema), id, null, updateActions);
+    if(updated == null) {
+      throw new DatastoreException(String.format("no object with id %s exists in %s", id, schema));
+    }
+    return updated;
+  }
+
+  @Override
+  public SMObject updateObject(String schema, SMValue id, List<SMCondition> conditions, List<SMUpdate> updateActions)
+          throws InvalidSchemaException, DatastoreException {
+    return update(existingSchema(schema), id, conditions, updateActions);
+  }
+
+  @Override
+  public void updateObjects(String schema, List<SMCondition> conditions, List<SMUpdate> updateActions)
+          throws InvalidSchemaException, DatastoreException {
+    Schema s = existingSchema(schema);
+    List<SMCondition> query = conditionsOrEmpty(conditions);
+    ObjectPredicate predicate = ConditionCompiler.compile(query);
+    s.lock.writeLock().lock();
+    try {
+      List<SMObject> matched = new ArrayList<SMObject>();
+      for(SMObject object : objectsFor(s, candidateIds(s, flatten(query, new ArrayList<SMCondition>()), null))) {
+        if(predicate.matches(object)) {
+          matched.add(object);
+        }
+      }
+      for(SMObject object : matched) {
+        SMValue id = object.getValue().get(s.idField);
+        s.replace(id, object, applyUpdates(s, object, updateActions));
+      }
+    } finally {
+      s.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public BulkResult updateObjects(String schema, Map<SMValue, List<SMUpdate>> updateActions)
+          throws InvalidSchemaException, DatastoreException {
+    Schema s = existingSchema(schema);
+    List<SMValue> successIds = new ArrayList<SMValue>();
+    List<SMValue> failedIds = new ArrayList<SMValue>();
+    s.lock.writeLock().lock();
+    try {
+      for(Map.Entry<SMValue, List<SMUpdate>> entry : updateActions.entrySet()) {
+        SMValue id = entry.getKey();
+        SMObject current = s.objects.get(id);
+        if(current == null) {
+          failedIds.add(id);
+          continue;
+        }
+        try {
+          s.replace(id, current, applyUpdates(s, current, entry.getValue()));
+          successIds.add(id);
+        } catch(InvalidSchemaException e) {
+          failedIds.add(id);
+        }
+      }
+    } finally {
+      s.lock.writeLock().unlock();
+    }
+    return new BulkResult(successIds, failedIds);
+  }
+
+  @Override
+  public SMObject addRelatedObjects(String schema, SMValue objectId, String relation, List<? extends SMValue> relatedIds)
+          throws InvalidSchemaException, DatastoreException {
+    Schema s = existingSchema(schema);
+    relatedSchema(s, relation);
+    s.lock.writeLock().lock();
+    try {
+      SMObject current = s.objects.get(objectId);
+      if(current == null) {
+        throw new DatastoreException(String.format("no object with id %s exists in %s", objectId, schema));
+      }
+      List<SMValue> ids = relatedIds(current, relation);
+      for(SMValue id : relatedIds) {
+        if(!ids.contains(id)) {
+          ids.add(id);
+        }
+      }
+      SMObject updated = withField(current, relation, new SMList<SMValue>(ids));
+      s.replace(objectId, current, updated);
+      return SMValues.copy(updated);
+    } finally {
+      s.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public SMObject addRelatedObjects(String schema, SMValue objectId, String relation, SMList relatedIds)
+          throws InvalidSchemaException, DatastoreException {
+    return addRelatedObjects(schema, objectId, relation, (List<? extends SMValue>) relatedIds.getValue());
+  }
+
+  @Override
+  public Boolean deleteObject(String schema, String id) throws InvalidSchemaException, DatastoreException {
+    return deleteObject(schema, new SMString(id));
+  }
+
+  @Override
+  public Boolean deleteObject(String schema, SMValue id) throws InvalidSchemaException, DatastoreException {
+    Schema s = existingSchema(schema);
+    s.lock.writeLock().lock();
+    try {
+      return s.delete(id);
+    } finally {
+      s.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public BulkResult deleteObjects(String schema, List<SMValue> ids) throws InvalidSchemaException, DatastoreException {
+    Schema s = existingSchema(schema);
+    List<SMValue> successIds = new ArrayList<SMValue>();
+    List<SMValue> failedIds = new ArrayList<SMValue>();
+    s.lock.writeLock().lock();
+    try {
+      for(SMValue id : ids) {
+        if(s.delete(id)) {
+          successIds.add(id);
+        } else {
+          failedIds.add(id);
+        }
+      }
+    } finally {
+      s.lock.writeLock().unlock();
+    }
+    return new BulkResult(successIds, failedIds);
+  }
+
+  @Override
+  public void removeRelatedObjects(String schema, SMValue objectId, String relation, List<? extends SMValue> relatedIds, boolean cascadeDelete)
+          throws InvalidSchemaException, DatastoreException {
+    Schema s = existingSchema(schema);
+    String relatedSchema = relatedSchema(s, relation);
+    s.lock.writeLock().lock();
+    try {
+      SMObject current = s.objects.get(objectId);
+      if(current == null) {
+        throw new DatastoreException(String.format("no object with id %s exists in %s", objectId, schema));
+      }
+      List<SMValue> ids = relatedIds(current, relation);
+      ids.removeAll(relatedIds);
+      s.replace(objectId, current, withField(current, relation, new SMList<SMValue>(ids)));
+    } finally {
+      s.lock.writeLock().unlock();
+    }
+    // delete outside the parent's lock so that we never hold two schemas' write locks at once
+    if(cascadeDelete) {
+      for(SMValue id : relatedIds) {
+        deleteObject(relatedSchema, id);
+      }
+    }
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void removeRelatedObjects(String schema, SMValue objectId, String relation, SMList relatedIds, boolean cascadeDelete)
+          throws InvalidSchemaException, DatastoreException {
+    removeRelatedObjects(schema, objectId, relation, (List<? extends SMValue>) relatedIds.getValue(), cascadeDelete);
+  }
+
+  @Override
+  public long countObjects(String schema) throws InvalidSchemaException, DatastoreException {
+    Schema s = existingSchema(schema);
+    s.lock.readLock().lock();
+    try {
+      return s.objects.size();
+    } finally {
+      s.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Set<String> getObjectModelNames() {
+    return new HashSet<String>(schemas.keySet());
+  }
+
+  private List<SMObject> read(String schema, List<SMCondition> conditions, int expandDepth, ResultFilters resultFilters, List<String> fields)
+          throws InvalidSchemaException, DatastoreException {
+    Schema s = existingSchema(schema);
+    List<SMCondition> query = conditionsOrEmpty(conditions);
+    List<SMCondition> conjuncts = flatten(query, new ArrayList<SMCondition>());
+    SMNear near = findNear(conjuncts);
+    ObjectPredicate predicate = ConditionCompiler.compile(query);
+    List<SMOrdering> orderings = resultFilters == null ? null : resultFilters.getOrderings();
+    long start = resultFilters == null ? 0 : Math.max(resultFilters.getStart(), 0);
+    long limit = resultFilters == null || resultFilters.getEnd() < 0 ? Long.MAX_VALUE : resultFilters.getEnd() - start + 1;
+    List<SMValue> after = resultFilters == null ? null : resultFilters.getContinuationValues();
+    RowOrdering ordering = new RowOrdering(orderings == null ? Collections.<SMOrdering>emptyList() : orderings, s.idField);
+    if(after != null && after.size() != ordering.orderings.size() + 1) {
+      throw new IllegalArgumentException("the continuation doesn't match the query's orderings");
+    }
+
+    List<Row> rows = new ArrayList<Row>();
+    boolean windowed = false;
+    s.lock.readLock().lock();
+    try {
+      FieldIndex orderedBy = null;
+      Iterable<SMValue> inOrder = null;
+      if(near == null) {
+        SortedFieldIndex sorted = sortedIndexFor(s, orderings);
+        inOrder = sorted == null ? null : sorted.scan(conjuncts, orderings.get(0).getDirection());
+        if(inOrder != null && after != null && SMValues.isNumber(after.get(0))) {
+          // every object the index lists has a number in its field, so start the scan at the continuation's value
+          inOrder = sorted.scan(seekPast(conjuncts, orderings.get(0), after.get(0)), orderings.get(0).getDirection());
+        }
+        orderedBy = sorted;
+      } else if(after == null && (orderings == null || orderings.isEmpty())) {
+        GeoFieldIndex geo = geoIndexFor(s, near.getField());
+        inOrder = geo == null ? null : geo.nearest(near);
+        orderedBy = geo;
+      }
+      Collection<SMValue> ids = candidateIds(s, conjuncts, inOrder == null ? null : orderedBy);
+      if(inOrder != null && (ids == null || ids.size() > limit)) {
+        // the index lists objects in the requested order, so stop as soon as the window is full
+        long toSkip = start;
+        for(SMValue id : inOrder) {
+          if(rows.size() >= limit) {
+            break;
+          }
+          SMObject object = s.objects.get(id);
+          if(object != null && predicate.matches(object) && (after == null || ordering.compareToKey(object, after) > 0)) {
+            if(toSkip > 0) {
+              toSkip--;
+            } else {
+              rows.add(new Row(object, near));
+            }
+          }
+        }
+        windowed = true;
+      } else {
+        for(SMObject object : objectsFor(s, ids)) {
+          if(predicate.matches(object) && (after == null || ordering.compareToKey(object, after) > 0)) {
+            rows.add(new Row(object, near));
+          }
+        }
+      }
+    } finally {
+      s.lock.readLock().unlock();
+    }
+
+    // stored objects are never modified in place, so it's safe to sort, expand and copy them without the lock
+    int from = 0;
+    int to = rows.size();
+    if(!windowed) {
+      if(near != null && after == null && ordering.orderings.isEmpty()) {
+        Collections.sort(rows, DISTANCE_ORDERING);
+      } else if(after != null || !ordering.orderings.isEmpty() || limit != Long.MAX_VALUE) {
+        // windows over unordered results are taken in id order, so that paging through them is repeatable
+        if(limit != Long.MAX_VALUE && start + limit < rows.size()) {
+          rows = firstRows(rows, (int) (start + limit), ordering);
+        } else {
+          Collections.sort(rows, ordering);
+        }
+      }
+      from = (int) Math.min(start, rows.size());
+      to = limit <= 0 ? from : (limit >= rows.size() - from ? rows.size() : from + (int) limit);
+    }
+
+    List<SMObject> results = new ArrayList<SMObject>(Math.max(to - from, 0));
+    for(int i = from; i < to; i++) {
+      Row row = rows.get(i);
+      SMObject result = expand(s, row.object, expandDepth);
+      if(near != null) {
+        addDistance(result, near.getField(), row.distance);
+      }
+      results.add(project(s, result, fields));
+    }
+    return results;
+  }
+
+  private SMObject update(Schema s, SMValue id, List<SMCondition> conditions, List<SMUpdate> updateActions)
+          throws InvalidSchemaException, DatastoreException {
+    ObjectPredicate predicate = ConditionCompiler.compile(conditions);
+    s.lock.writeLock().lock();
+    try {
+      SMObject current = s.objects.get(id);
+      if(current == null || !predicate.matches(current)) {
+        return null;
+      }
+      SMObject updated = applyUpdates(s, current, updateActions);
+      s.replace(id, current, updated);
+      return SMValues.copy(updated);
+    } finally {
+      s.lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * copy an object to be created, giving it an id if it doesn't have one and stamping its created and modified dates
+   */
+  private static SMObject prepareForCreate(Schema s, SMObject toCreate, long now) {
+    SMObject created = SMValues.copy(toCreate);
+    Map<String, SMValue> fields = created.getValue();
+    if(SMValues.isNull(fields.get(s.idField))) {
+      fields.put(s.idField, new SMString(UUID.randomUUID().toString().replace("-", "")));
+    }
+    fields.put(CREATED_DATE_FIELD, new SMInt(now));
+    fields.put(LAST_MOD_DATE_FIELD, new SMInt(now));
+    return created;
+  }
+
+  private SMObject applyUpdates(Schema s, SMObject current, List<SMUpdate> updateActions) throws InvalidSchemaException {
+    SMObject updated = SMValues.copy(current);
+    Map<String, SMValue> fields = updated.getValue();
+    for(SMUpdate action : updateActions) {
+      if(action instanceof SMSet) {
+        SMSet set = (SMSet) action;
+        if(set.getField().equals(s.idField)) {
+          throw new InvalidSchemaException("cannot change the id field " + s.idField);
+        }
+        fields.put(set.getField(), set.getValue());
+      } else if(action instanceof SMIncrement) {
+        SMIncrement increment = (SMIncrement) action;
+        SMValue old = fields.get(increment.getField());
+        if(!SMValues.isNull(old) && !SMValues.isIntegral(old)) {
+          throw new InvalidSchemaException(String.format("cannot increment %s, it is not an integer", increment.getField()));
+        }
+        long base = SMValues.isNull(old) ? 0L : SMValues.longValue(old);
+        fields.put(increment.getField(), new SMInt(base + increment.getValue().getValue()));
+      } else {
+        throw new InvalidSchemaException("unsupported update action " + action);
+      }
+    }
+    fields.put(LAST_MOD_DATE_FIELD, new SMInt(System.currentTimeMillis()));
+    return updated;
+  }
+
+  /**
+   * ask the schema's indexes, other than <code>exclude</code>, for candidate ids for a query. conditions are tried
+   * from the most selective kind to the least, and only the first one an index can answer is looked up, so the other
+   * conditions are left to the predicate rather than each materializing their own candidates
+   * @return the candidate ids, or null if no index can narrow down the query
+   */
+  private static Collection<SMValue> candidateIds(Schema s, List<SMCondition> conjuncts, FieldIndex exclude) {
+    List<SMCondition> bySelectivity = new ArrayList<SMCondition>(conjuncts);
+    Collections.sort(bySelectivity, new Comparator<SMCondition>() {
+      @Override
+      public int compare(SMCondition a, SMCondition b) {
+        return selectivityRank(a) - selectivityRank(b);
+      }
+    });
+    for(SMCondition condition : bySelectivity) {
+      for(FieldIndex index : s.indexes) {
+        if(index == exclude) {
+          continue;
+        }
+        Collection<SMValue> ids = index.lookup(condition);
+        if(ids != null) {
+          return ids;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * a rough guess at how few objects a condition matches, lowest first: equality, then sets of values, geo areas and
+   * ranges, and inequality, which usually matches almost everything
+   */
+  private static int selectivityRank(SMCondition condition) {
+    if(condition instanceof SMEquals) {
+      return 0;
+    } else if(condition instanceof SMIn) {
+      return 1;
+    } else if(condition instanceof SMWithin || condition instanceof SMWithinBox || condition instanceof SMNear) {
+      return 2;
+    } else if(condition instanceof SMNotEqual) {
+      return 4;
+    }
+    return 3;
+  }
+
+  private static Collection<SMObject> objectsFor(Schema s, Collection<SMValue> ids) {
+    if(ids == null) {
+      return s.objects.values();
+    }
+    List<SMObject> objects = new ArrayList<SMObject>(ids.size());
+    for(SMValue id : ids) {
+      SMObject object = s.objects.get(id);
+      if(object != null) {
+        objects.add(object);
+      }
+    }
+    return objects;
+  }
+
+  private static GeoFieldIndex geoIndexFor(Schema s, String field) {
+    for(FieldIndex index : s.indexes) {
+      if(index instanceof GeoFieldIndex && index.getField().equals(field)) {
+        return (GeoFieldIndex) index;
+      }
+    }
+    return null;
+  }
+
+  private static SortedFieldIndex sortedIndexFor(Schema s, List<SMOrdering> orderings) {
+    if(orderings == null || orderings.size() != 1) {
+      return null;
+    }
+    for(FieldIndex index : s.indexes) {
+      if(index instanceof SortedFieldIndex && index.getField().equals(orderings.get(0).getField())) {
+        return (SortedFieldIndex) index;
+      }
+    }
+    return null;
+  }
+
+  private static List<SMCondition> seekPast(List<SMCondition> conjuncts, SMOrdering ordering, SMValue value) {
+    List<SMCondition> seek = new ArrayList<SMCondition>(conjuncts);
+    if(ordering.getDirection() == OrderingDirection.DESCENDING) {
+      seek.add(new SMLessOrEqual(ordering.getField(), value));
+    } else {
+      seek.add(new SMGreaterOrEqual(ordering.getField(), value));
+    }
+    return seek;
+  }
+
+  /**
+   * the first count rows in order, found with a bounded heap so that reading a page doesn't sort every match
+   */
+  private static List<Row> firstRows(List<Row> rows, int count, Comparator<Row> order) {
+    if(count <= 0) {
+      return new ArrayList<Row>();
+    }
+    PriorityQueue<Row> last = new PriorityQueue<Row>(count + 1, Collections.reverseOrder(order));
+    for(Row row : rows) {
+      if(last.size() < count) {
+        last.add(row);
+      } else if(order.compare(row, last.peek()) < 0) {
+        last.poll();
+        last.add(row);
+      }
+    }
+    List<Row> first = new ArrayList<Row>(last);
+    Collections.sort(first, order);
+    return first;
+  }
+
+  private static List<SMCondition> flatten(List<SMCondition> conditions, List<SMCondition> into) {
+    for(SMCondition condition : conditions) {
+      if(condition instanceof SMAnd) {
+        flatten(((SMAnd) condition).getClauses(), into);
+      } else {
+        into.add(condition);
+      }
+    }
+    return into;
+  }
+
+  private static SMNear findNear(List<SMCondition> conjuncts) {
+    for(SMCondition condition : conjuncts) {
+      if(condition instanceof SMNear) {
+        return (SMNear) condition;
+      }
+    }
+    return null;
+  }
+
+  private SMObject expand(Schema s, SMObject object, int depth) {
+    SMObject expanded = SMValues.copy(object);
+    if(depth <= 0) {
+      return expanded;
+    }
+    Map<String, SMValue> fields = expanded.getValue();
+    for(Map.Entry<String, String> relation : s.relations.entrySet()) {
+      SMValue value = fields.get(relation.getKey());
+      Schema related = schemas.get(relation.getValue());
+      if(SMValues.isNull(value) || related == null) {
+        continue;
+      }
+      if(value instanceof SMList) {
+        List<SMValue> objects = new ArrayList<SMValue>();
+        for(Object id : ((SMList<?>) value).getValue()) {
+          objects.add(expandId(related, (SMValue) id, depth));
+        }
+        fields.put(relation.getKey(), new SMList<SMValue>(objects));
+      } else {
+        fields.put(relation.getKey(), expandId(related, value, depth));
+      }
+    }
+    return expanded;
+  }
+
+  private SMValue expandId(Schema related, SMValue id, int depth) {
+    SMObject found = readById(related, id);
+    return found == null ? id : expand(related, found, depth - 1);
+  }
+
+  private static SMObject readById(Schema s, SMValue id) {
+    s.lock.readLock().lock();
+    try {
+      return s.objects.get(id);
+    } finally {
+      s.lock.readLock().unlock();
+    }
+  }
+
+  private static void addDistance(SMObject result, String field, double distance) {
+    SMValue point = result.getValue().get(field);
+    if(point instanceof SMObject) {
+      ((SMObject) point).getValue().put(GeoPoints.DISTANCE, new SMDouble(distance));
+    }
+  }
+
+  private static SMObject project(Schema s, SMObject object, List<String> fields) {
+    if(fields == null) {
+      return object;
+    }
+    Map<String, SMValue> projected = new HashMap<String, SMValue>();
+    projected.put(s.idField, object.getValue().get(s.idField));
+    for(String field : fields) {
+      if(object.getValue().containsKey(field)) {
+        projected.put(field, object.getValue().get(field));
+      }
+    }
+    return new SMObject(projected);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<SMValue> relatedIds(SMObject object, String relation) {
+    SMValue value = object.getValue().get(relation);
+    List<SMValue> ids = new ArrayList<SMValue>();
+    if(value instanceof SMList && value.getValue() != null) {
+      ids.addAll(((SMList<SMValue>) value).getValue());
+    } else if(!SMValues.isNull(value)) {
+      ids.add(value);
+    }
+    return ids;
+  }
+
+  private static SMObject withField(SMObject object, String field, SMValue value) {
+    SMObject updated = SMValues.copy(object);
+    updated.getValue().put(field, value);
+    updated.getValue().put(LAST_MOD_DATE_FIELD, new SMInt(System.currentTimeMillis()));
+    return updated;
+  }
+
+  private static List<SMCondition> conditionsOrEmpty(List<SMCondition> conditions) {
+    return conditions == null ? Collections.<SMCondition>emptyList() : conditions;
+  }
+
+  private String relatedSchema(Schema s, String relation) throws InvalidSchemaException {
+    String related = s.relations.get(relation);
+    if(related == null) {
+      throw new InvalidSchemaException(String.format("%s is not a relationship in %s", relation, s.name));
+    }
+    return related;
+  }
+
+  private Schema existingSchema(String schema) throws InvalidSchemaException {
+    Schema s = schemas.get(schema);
+    if(s == null) {
+      throw new InvalidSchemaException(String.format("the schema %s does not exist", schema));
+    }
+    return s;
+  }
+
+  private Schema schemaFor(String schema) {
+    Schema s = schemas.get(schema);
+    if(s == null) {
+      Schema created = new Schema(schema, getIdField(schema));
+      s = schemas.putIfAbsent(schema, created);
+      if(s == null) {
+        s = created;
+      }
+    }
+    return s;
+  }
+
+  /**
+   * The objects, relationships and indexes of a single schema. Readers hold the read lock, writers hold the write
+   * lock, and stored objects are replaced rather than modified so that readers can use them after unlocking.
+   */
+  private static final class Schema {
+    final String name;
+    final String idField;
+    final ReadWriteLock lock = new ReentrantReadWriteLock();
+    final Map<SMValue, SMObject> objects = new LinkedHashMap<SMValue, SMObject>();
+    final Map<String, String> relations = new ConcurrentHashMap<String, String>();
+    final List<FieldIndex> indexes = new CopyOnWriteArrayList<FieldIndex>();
+
+    Schema(String name, String idField) {
+      this.name = name;
+      this.idField = idField;
+    }
+
+    void insert(SMValue id, SMObject object) {
+      objects.put(id, object);
+      for(FieldIndex index : indexes) {
+        index.add(id, object.getValue().get(index.getField()));
+      }
+    }
+
+    void replace(SMValue id, SMObject old, SMObject updated) {
+      for(FieldIndex index : indexes) {
+        index.remove(id, old.getValue().get(index.getField()));
+      }
+      objects.put(id, updated);
+      for(FieldIndex index : indexes) {
+        index.add(id, updated.getValue().get(index.getField()));
+      }
+    }
+
+    boolean delete(SMValue id) {
+      SMObject old = objects.remove(id);
+      if(old == null) {
+        return false;
+      }
+      for(FieldIndex index : indexes) {
+        index.remove(id, old.getValue().get(index.getField()));
+      }
+      return true;
+    }
+  }
+
+  /**
+   * A matched object, along with its distance from the center of the query's SMNear condition if it has one
+   */
+  private static final class Row {
+    final SMObject object;
+    final double distance;
+
+    Row(SMObject object, SMNear near) {
+      this.object = object;
+      if(near == null) {
+        this.distance = 0;
+      } else {
+        SMValue point = object.getValue().get(near.getField());
+        this.distance = GeoPoints.distance(GeoPoints.lat(point), GeoPoints.lon(point),
+                near.getLat().getValue(), near.getLon().getValue());
+      }
+    }
+  }
+
+  private static final Comparator<Row> DISTANCE_ORDERING = new Comparator<Row>() {
+    @Override
+    public int compare(Row a, Row b) {
+      return Double.compare(a.distance, b.distance);
+    }
+  };
+
+  /**
+   * Sorts rows by the query's orderings and then by id, so that every row has a distinct position a continuation
+   * token can point at
+   */
+  private static final class RowOrdering implements Comparator<Row> {
+    private final List<SMOrdering> orderings;
+    private final String idField;
+
+    RowOrdering(List<SMOrdering> orderings, String idField) {
+      this.orderings = orderings;
+      this.idField = idField;
+    }
+
+    @Override
+    public int compare(Row a, Row b) {
+      for(SMOrdering ordering : orderings) {
+        int result = SMValues.sortCompare(a.object.getValue().get(ordering.getField()), b.object.getValue().get(ordering.getField()));
+        if(result != 0) {
+          return ordering.getDirection() == OrderingDirection.DESCENDING ? -result : result;
+        }
+      }
+      return SMValues.idCompare(a.object.getValue().get(idField), b.object.getValue().get(idField));
+    }
+
+    /**
+     * compare an object with a sort key from {@link ResultFilters#getContinuationValues()}
+     */
+    int compareToKey(SMObject object, List<SMValue> key) {
+      for(int i = 0; i < orderings.size(); i++) {
+        SMOrdering ordering = orderings.get(i);
+        int result = SMValues.sortCompare(object.getValue().get(ordering.getField()), key.get(i));
+        if(result != 0) {
+          return ordering.getDirection() == OrderingDirection.DESCENDING ? -result : result;
+        }
+      }
+      return SMValues.idCompare(object.getValue().get(idField), key.get(orderings.size()));
+    }
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+/**
+ * An open addressing hash map from primitive longs to objects, so that integer keys don't have to be boxed. Not thread
+ * safe, although concurrent calls to <code>get</code> are fine as long as nothing modifies the map at the same time.
+ * @param <V> the type of the values
+ */
+final class LongObjectMap<V> {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private long[] keys;
+  private Object[] values;
+  private int mask;
+  private int size;
+
+  LongObjectMap() {
+    keys = new long[INITIAL_CAPACITY];
+    values = new Object[INITIAL_CAPACITY];
+    mask = INITIAL_CAPACITY - 1;
+  }
+
+  int size() {
+    return size;
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(long key) {
+    for(int i = slot(key); values[i] != null; i = (i + 1) & mask) {
+      if(keys[i] == key) {
+        return (V) values[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * associate a non-null value with a key
+   * @param key the key
+   * @param value the value
+   */
+  void put(long key, V value) {
+    if((size + 1) * 4 > values.length * 3) {
+      resize(values.length * 2);
+    }
+    int i = slot(key);
+    while(values[i] != null) {
+      if(keys[i] == key) {
+        values[i] = value;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    size++;
+  }
+
+  @SuppressWarnings("unchecked")
+  V remove(long key) {
+    int i = slot(key);
+    while(values[i] != null && keys[i] != key) {
+      i = (i + 1) & mask;
+    }
+    if(values[i] == null) {
+      return null;
+    }
+    V removed = (V) values[i];
+    values[i] = null;
+    size--;
+    // shift later entries of the same probe run back so that lookups never stop early at the hole
+    for(int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+      int home = slot(keys[j]);
+      boolean reachable = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+      if(!reachable) {
+        keys[i] = keys[j];
+        values[i] = values[j];
+        values[j] = null;
+        i = j;
+      }
+    }
+    return removed;
+  }
+
+  private void resize(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+    for(int i = 0; i < oldValues.length; i++) {
+      if(oldValues[i] != null) {
+        int j = slot(oldKeys[i]);
+        while(values[j] != null) {
+          j = (j + 1) & mask;
+        }
+        keys[j] = oldKeys[i];
+        values[j] = oldValues[i];
+      }
+    }
+  }
+
+  private int slot(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32)) & mask;
+  }
+}
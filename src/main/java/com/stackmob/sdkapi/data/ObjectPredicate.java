@@ -0,0 +1,31 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.sdkapi.SMObject;
+
+/**
+ * A test on an SMObject, usually built from a list of SMConditions with {@link ConditionCompiler}
+ */
+public interface ObjectPredicate {
+
+  /**
+   * determine whether the given object passes this test
+   * @param object the object to test
+   * @return true if the object passes
+   */
+  boolean matches(SMObject object);
+}
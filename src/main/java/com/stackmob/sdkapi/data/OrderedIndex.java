@@ -0,0 +1,198 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.sdkapi.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * A sorted index over a numeric field, backed by a concurrent skip list. It answers SMLess, SMLessOrEqual, SMGreater
+ * and SMGreaterOrEqual conditions with a number as their value, and lets queries sorted on its field read their
+ * results in order.
+ *
+ * Objects whose field is missing, null or not a number are tracked separately. They can never meet a numeric range
+ * condition, but while there are any of them the index can only list objects in order for queries which have a range
+ * condition on its field. Objects with equal values are listed in order of their ids. Integers beyond 2^53 share keys
+ * with their nearest double, so they may be listed out of order relative to each other.
+ */
+public class OrderedIndex implements SortedFieldIndex {
+
+  private final String field;
+  private final ConcurrentSkipListMap<Double, Set<SMValue>> entries = new ConcurrentSkipListMap<Double, Set<SMValue>>();
+  private final Set<SMValue> unordered = Collections.newSetFromMap(new ConcurrentHashMap<SMValue, Boolean>());
+
+  /**
+   * create a new, empty OrderedIndex
+   * @param field the numeric field to index
+   */
+  public OrderedIndex(String field) {
+    this.field = field;
+  }
+
+  @Override
+  public String getField() {
+    return field;
+  }
+
+  @Override
+  public void add(SMValue id, SMValue value) {
+    if(!SMValues.isNumber(value)) {
+      unordered.add(id);
+      return;
+    }
+    Double key = SMValues.doubleValue(value);
+    Set<SMValue> ids = entries.get(key);
+    if(ids == null) {
+      ids = new ConcurrentSkipListSet<SMValue>(SMValues.ID_ORDER);
+      entries.put(key, ids);
+    }
+    ids.add(id);
+  }
+
+  @Override
+  public void remove(SMValue id, SMValue value) {
+    if(!SMValues.isNumber(value)) {
+      unordered.remove(id);
+      return;
+    }
+    Double key = SMValues.doubleValue(value);
+    Set<SMValue> ids = entries.get(key);
+    if(ids != null) {
+      ids.remove(id);
+      if(ids.isEmpty()) {
+        entries.remove(key);
+      }
+    }
+  }
+
+  @Override
+  public Collection<SMValue> lookup(SMCondition condition) {
+    Range range = new Range();
+    if(!range.narrow(condition)) {
+      return null;
+    }
+    List<SMValue> ids = new ArrayList<SMValue>();
+    for(SMValue id : idsIn(range, OrderingDirection.ASCENDING)) {
+      ids.add(id);
+    }
+    return ids;
+  }
+
+  @Override
+  public Iterable<SMValue> scan(List<SMCondition> conditions, OrderingDirection direction) {
+    Range range = new Range();
+    boolean narrowed = false;
+    for(SMCondition condition : conditions) {
+      narrowed |= range.narrow(condition);
+    }
+    if(!narrowed && !unordered.isEmpty()) {
+      return null;
+    }
+    return idsIn(range, direction);
+  }
+
+  private Iterable<SMValue> idsIn(Range range, OrderingDirection direction) {
+    NavigableMap<Double, Set<SMValue>> matching = entries;
+    if(range.lower > range.upper) {
+      matching = new TreeMap<Double, Set<SMValue>>();
+    } else if(range.lower != Double.NEGATIVE_INFINITY || range.upper != Double.POSITIVE_INFINITY) {
+      matching = entries.subMap(range.lower, true, range.upper, true);
+    }
+    final Collection<Set<SMValue>> postings = direction == OrderingDirection.DESCENDING ? matching.descendingMap().values() : matching.values();
+    return new Iterable<SMValue>() {
+      @Override
+      public Iterator<SMValue> iterator() {
+        return new Flattening(postings.iterator());
+      }
+    };
+  }
+
+  /**
+   * the inclusive bounds implied by the range conditions on this index's field. bounds are always inclusive since
+   * callers re-check the conditions anyway, which keeps long bounds that don't convert exactly to doubles safe
+   */
+  private final class Range {
+    double lower = Double.NEGATIVE_INFINITY;
+    double upper = Double.POSITIVE_INFINITY;
+
+    boolean narrow(SMCondition condition) {
+      if(condition instanceof SMLess) {
+        SMLess c = (SMLess) condition;
+        return narrowUpper(c.getField(), c.getValue());
+      } else if(condition instanceof SMLessOrEqual) {
+        SMLessOrEqual c = (SMLessOrEqual) condition;
+        return narrowUpper(c.getField(), c.getValue());
+      } else if(condition instanceof SMGreater) {
+        SMGreater c = (SMGreater) condition;
+        return narrowLower(c.getField(), c.getValue());
+      } else if(condition instanceof SMGreaterOrEqual) {
+        SMGreaterOrEqual c = (SMGreaterOrEqual) condition;
+        return narrowLower(c.getField(), c.getValue());
+      }
+      return false;
+    }
+
+    private boolean narrowUpper(String conditionField, SMValue bound) {
+      if(!field.equals(conditionField) || !SMValues.isNumber(bound) || Double.isNaN(SMValues.doubleValue(bound))) {
+        return false;
+      }
+      upper = Math.min(upper, SMValues.doubleValue(bound));
+      return true;
+    }
+
+    private boolean narrowLower(String conditionField, SMValue bound) {
+      if(!field.equals(conditionField) || !SMValues.isNumber(bound) || Double.isNaN(SMValues.doubleValue(bound))) {
+        return false;
+      }
+      lower = Math.max(lower, SMValues.doubleValue(bound));
+      return true;
+    }
+  }
+
+  private static final class Flattening implements Iterator<SMValue> {
+    private final Iterator<Set<SMValue>> postings;
+    private Iterator<SMValue> current = Collections.<SMValue>emptySet().iterator();
+
+    Flattening(Iterator<Set<SMValue>> postings) {
+      this.postings = postings;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while(!current.hasNext() && postings.hasNext()) {
+        current = postings.next().iterator();
+      }
+      return current.hasNext();
+    }
+
+    @Override
+    public SMValue next() {
+      if(!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.sdkapi.*;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes SMValues in a simple, unambiguous binary form, for building the canonical forms of queries. Each value is a
+ * one byte type tag followed by its contents. Values meant to be read back use {@link SMBinaryCodec} instead.
+ */
+final class SMValueCodec {
+
+  private static final byte NULL = 0;
+  private static final byte INT = 1;
+  private static final byte LONG = 2;
+  private static final byte DOUBLE = 3;
+  private static final byte STRING = 4;
+  private static final byte BOOLEAN = 5;
+  private static final byte LIST = 6;
+  private static final byte OBJECT = 7;
+
+  private static final String UTF8 = "UTF-8";
+
+  private SMValueCodec() {}
+
+  /**
+   * write a single value
+   * @throws IllegalArgumentException if the value isn't one of the standard SMValue types
+   */
+  @SuppressWarnings("unchecked")
+  static void writeValue(DataOutput out, SMValue value) throws IOException {
+    if(value == null || value.getValue() == null) {
+      out.writeByte(NULL);
+    } else if(value instanceof SMInt) {
+      out.writeByte(INT);
+      out.writeLong(((SMInt) value).getValue());
+    } else if(value instanceof SMLong) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value.getValue());
+    } else if(value instanceof SMDouble) {
+      out.writeByte(DOUBLE);
+      out.writeDouble(((SMDouble) value).getValue());
+    } else if(value instanceof SMString) {
+      out.writeByte(STRING);
+      writeString(out, ((SMString) value).getValue());
+    } else if(value instanceof SMBoolean) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean(((SMBoolean) value).getValue());
+    } else if(value instanceof SMList) {
+      List<SMValue> elements = ((SMList<SMValue>) value).getValue();
+      out.writeByte(LIST);
+      out.writeInt(elements.size());
+      for(SMValue element : elements) {
+        writeValue(out, element);
+      }
+    } else if(value instanceof SMObject) {
+      Map<String, SMValue> fields = ((SMObject) value).getValue();
+      out.writeByte(OBJECT);
+      out.writeInt(fields.size());
+      // SMObjects are usually backed by HashMaps, so write the fields in name order to keep equal objects equal here
+      List<String> names = new ArrayList<String>(fields.keySet());
+      Collections.sort(names);
+      for(String name : names) {
+        writeString(out, name);
+        writeValue(out, fields.get(name));
+      }
+    } else {
+      throw new IllegalArgumentException("cannot encode a " + value.getClass().getName());
+    }
+  }
+
+  static void writeString(DataOutput out, String string) throws IOException {
+    byte[] bytes = string.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
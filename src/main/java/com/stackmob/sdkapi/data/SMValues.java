@@ -0,0 +1,204 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.sdkapi.SMBoolean;
+import com.stackmob.sdkapi.SMDouble;
+import com.stackmob.sdkapi.SMInt;
+import com.stackmob.sdkapi.SMList;
+import com.stackmob.sdkapi.SMLong;
+import com.stackmob.sdkapi.SMObject;
+import com.stackmob.sdkapi.SMString;
+import com.stackmob.sdkapi.SMValue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Comparison and copying helpers for SMValues, shared by the in memory datastore and its indexes
+ */
+final class SMValues {
+
+  private SMValues() {}
+
+  /**
+   * determine whether the given value is null, or wraps null
+   * @param value the value to check
+   * @return true if there is no usable value
+   */
+  static boolean isNull(SMValue value) {
+    return value == null || value.getValue() == null;
+  }
+
+  /**
+   * determine whether the given value is an SMInt, SMLong or SMDouble
+   * @param value the value to check
+   * @return true if the value is a non-null number
+   */
+  static boolean isNumber(SMValue value) {
+    return (value instanceof SMInt || value instanceof SMLong || value instanceof SMDouble) && value.getValue() != null;
+  }
+
+  /**
+   * determine whether the given value is an integral number
+   * @param value the value to check
+   * @return true if the value is a non-null SMInt or SMLong
+   */
+  static boolean isIntegral(SMValue value) {
+    return (value instanceof SMInt || value instanceof SMLong) && value.getValue() != null;
+  }
+
+  static double doubleValue(SMValue value) {
+    return ((Number) value.getValue()).doubleValue();
+  }
+
+  static long longValue(SMValue value) {
+    return ((Number) value.getValue()).longValue();
+  }
+
+  /**
+   * determine whether two values can be ordered relative to each other
+   * @param a the first value
+   * @param b the second value
+   * @return true if both values are numbers, both are strings, or both are booleans
+   */
+  static boolean comparable(SMValue a, SMValue b) {
+    if(isNull(a) || isNull(b)) {
+      return false;
+    }
+    if(isNumber(a)) {
+      return isNumber(b);
+    }
+    return (a instanceof SMString && b instanceof SMString) || (a instanceof SMBoolean && b instanceof SMBoolean);
+  }
+
+  /**
+   * compare two values for which {@link #comparable(SMValue, SMValue)} is true
+   * @param a the first value
+   * @param b the second value
+   * @return a negative number, zero or a positive number as a is less than, equal to or greater than b
+   */
+  static int compare(SMValue a, SMValue b) {
+    if(isIntegral(a) && isIntegral(b)) {
+      long l = longValue(a);
+      long r = longValue(b);
+      return l < r ? -1 : (l == r ? 0 : 1);
+    }
+    if(isNumber(a)) {
+      return Double.compare(doubleValue(a), doubleValue(b));
+    }
+    if(a instanceof SMString) {
+      return ((String) a.getValue()).compareTo((String) b.getValue());
+    }
+    return ((Boolean) a.getValue()).compareTo((Boolean) b.getValue());
+  }
+
+  /**
+   * compare two arbitrary values for sorting. nulls sort first, and values of different kinds are grouped by kind
+   * @param a the first value
+   * @param b the second value
+   * @return a negative number, zero or a positive number as a sorts before, with or after b
+   */
+  static int sortCompare(SMValue a, SMValue b) {
+    if(comparable(a, b)) {
+      return compare(a, b);
+    }
+    int rankA = rank(a);
+    int rankB = rank(b);
+    return rankA < rankB ? -1 : (rankA == rankB ? 0 : 1);
+  }
+
+  /**
+   * a total order over ids: the order of {@link #sortCompare(SMValue, SMValue)}, with ties between unequal values broken
+   * by type and then by their string form
+   * @param a the first id
+   * @param b the second id
+   * @return a negative number, zero or a positive number as a sorts before, with or after b
+   */
+  static int idCompare(SMValue a, SMValue b) {
+    int result = sortCompare(a, b);
+    if(result != 0 || (a == null ? b == null : a.equals(b))) {
+      return result;
+    }
+    if(a == null || b == null) {
+      return a == null ? -1 : 1;
+    }
+    result = a.getClass().getName().compareTo(b.getClass().getName());
+    return result != 0 ? result : String.valueOf(a.getValue()).compareTo(String.valueOf(b.getValue()));
+  }
+
+  static final Comparator<SMValue> ID_ORDER = new Comparator<SMValue>() {
+    @Override
+    public int compare(SMValue a, SMValue b) {
+      return idCompare(a, b);
+    }
+  };
+
+  private static int rank(SMValue value) {
+    if(isNull(value)) return 0;
+    if(isNumber(value)) return 1;
+    if(value instanceof SMString) return 2;
+    if(value instanceof SMBoolean) return 3;
+    return 4;
+  }
+
+  /**
+   * determine whether two values are equal, treating numbers of different types as equal if they are numerically equal
+   * @param a the first value
+   * @param b the second value
+   * @return true if the values are equal
+   */
+  static boolean equal(SMValue a, SMValue b) {
+    if(isNumber(a) && isNumber(b)) {
+      return compare(a, b) == 0;
+    }
+    if(isNull(a)) {
+      return isNull(b);
+    }
+    return a.equals(b);
+  }
+
+  /**
+   * make a copy of an object deep enough that modifying the copy's fields, lists and sub-objects doesn't affect the original
+   * @param object the object to copy
+   * @return the copy
+   */
+  static SMObject copy(SMObject object) {
+    Map<String, SMValue> fields = new HashMap<String, SMValue>();
+    for(Map.Entry<String, SMValue> entry : object.getValue().entrySet()) {
+      fields.put(entry.getKey(), copyValue(entry.getValue()));
+    }
+    return new SMObject(fields);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static SMValue copyValue(SMValue value) {
+    if(value instanceof SMObject && value.getValue() != null) {
+      return copy((SMObject) value);
+    }
+    if(value instanceof SMList && value.getValue() != null) {
+      List<SMValue> elements = new ArrayList<SMValue>();
+      for(SMValue element : ((SMList<SMValue>) value).getValue()) {
+        elements.add(copyValue(element));
+      }
+      return new SMList<SMValue>(elements);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.stackmob.sdkapi.data;
+
+import com.stackmob.sdkapi.OrderingDirection;
+import com.stackmob.sdkapi.SMCondition;
+import com.stackmob.sdkapi.SMValue;
+
+import java.util.List;
+
+/**
+ * A {@link FieldIndex} which can also list objects in the order of its field. When a query is sorted on a single
+ * field with such an index, {@link InMemoryDataService} walks the index in order and stops as soon as it has filled
+ * the requested ResultFilters window, instead of matching and sorting the whole schema.
+ */
+public interface SortedFieldIndex extends FieldIndex {
+
+  /**
+   * list, in the order of the indexed field, the ids of the objects which might meet all of the given conditions.
+   * as with {@link #lookup(SMCondition)} the result may include ids of objects which don't meet the conditions, but
+   * must include every object which does. the ids may be produced lazily, so callers must finish with them before
+   * the index is modified. objects with equal values must be listed in ascending order of their ids, so that reads
+   * which resume after a continuation see the same order as sorted reads.
+   * @param conditions the conditions of a query, all of which must be met
+   * @param direction the direction to list the objects in
+   * @return the candidate ids in order, or null if this index can't list every candidate in order
+   */
+  Iterable<SMValue> scan(List<SMCondition> conditions, OrderingDirection direction);
+}
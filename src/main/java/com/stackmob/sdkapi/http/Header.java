@@ -16,6 +16,11 @@
 
 package com.stackmob.sdkapi.http;
 
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Set;
+
 public class Header {
     private String name;
     private String value;
@@ -32,4 +37,34 @@ public class Header {
     public String getValue() {
         return this.value;
     }
+
+    /**
+     * find the charset named in the Content-Type header of a set of headers
+     * @param headers the headers to look in. may be null
+     * @param defaultCharset the charset to return if there's no Content-Type header, it has no charset, or the charset
+     *                       isn't supported
+     * @return the charset of the Content-Type header, or defaultCharset
+     */
+    public static Charset charsetOf(Set<Header> headers, Charset defaultCharset) {
+        if(headers == null) {
+            return defaultCharset;
+        }
+        for(Header header : headers) {
+            if("Content-Type".equalsIgnoreCase(header.getName()) && header.getValue() != null) {
+                for(String param : header.getValue().split(";")) {
+                    String[] nameAndValue = param.trim().split("=", 2);
+                    if(nameAndValue.length == 2 && "charset".equalsIgnoreCase(nameAndValue[0].trim())) {
+                        try {
+                            return Charset.forName(nameAndValue[1].trim().replace("\"", ""));
+                        } catch(IllegalCharsetNameException e) {
+                            return defaultCharset;
+                        } catch(UnsupportedCharsetException e) {
+                            return defaultCharset;
+                        }
+                    }
+                }
+            }
+        }
+        return defaultCharset;
+    }
 }
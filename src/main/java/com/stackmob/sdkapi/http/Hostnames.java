@@ -0,0 +1,136 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.http;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Checks that a server certificate was issued for the host it was fetched from, following RFC 2818: the DNS or IP
+ * subjectAltNames if the certificate has any, otherwise the most specific CN of the subject. A wildcard only stands for
+ * the whole of the leftmost label, and never for an IP address.
+ */
+final class Hostnames {
+    private static final int SAN_DNS_NAME = 2;
+    private static final int SAN_IP_ADDRESS = 7;
+    private static final Pattern IPV4 = Pattern.compile("[0-9]{1,3}(\\.[0-9]{1,3}){3}");
+
+    private Hostnames() {}
+
+    /**
+     * @param host the host the certificate was fetched from, as it appears in the URL
+     * @param certificate the server's certificate
+     * @return true if the certificate was issued for the host
+     */
+    static boolean matches(String host, X509Certificate certificate) {
+        if(host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        boolean ipAddress = isIpAddress(host);
+        boolean hasDnsNames = false;
+        Collection<List<?>> altNames;
+        try {
+            altNames = certificate.getSubjectAlternativeNames();
+        } catch(CertificateParsingException e) {
+            return false;
+        }
+        if(altNames != null) {
+            for(List<?> altName : altNames) {
+                Object type = altName.get(0);
+                if(Integer.valueOf(SAN_DNS_NAME).equals(type)) {
+                    hasDnsNames = true;
+                    if(!ipAddress && matchesName(host, (String) altName.get(1))) {
+                        return true;
+                    }
+                } else if(Integer.valueOf(SAN_IP_ADDRESS).equals(type)) {
+                    if(ipAddress && sameAddress(host, (String) altName.get(1))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        if(ipAddress || hasDnsNames) {
+            return false;
+        }
+        String commonName = commonName(certificate);
+        return commonName != null && matchesName(host, commonName);
+    }
+
+    /**
+     * @param host a DNS host name
+     * @param pattern a name from a certificate, which may start with a <code>*.</code> wildcard
+     * @return true if the pattern matches the host
+     */
+    static boolean matchesName(String host, String pattern) {
+        host = normalize(host);
+        pattern = normalize(pattern);
+        if(!pattern.startsWith("*.")) {
+            return host.equals(pattern);
+        }
+        String suffix = pattern.substring(1);
+        // *.com and the like would match far too much
+        if(suffix.indexOf('.', 1) == -1) {
+            return false;
+        }
+        return host.endsWith(suffix) && host.indexOf('.') == host.length() - suffix.length() && host.length() > suffix.length();
+    }
+
+    private static String normalize(String name) {
+        name = name.toLowerCase(Locale.ENGLISH);
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static boolean isIpAddress(String host) {
+        return host.indexOf(':') != -1 || IPV4.matcher(host).matches();
+    }
+
+    private static boolean sameAddress(String host, String altName) {
+        if(!isIpAddress(altName)) {
+            return false;
+        }
+        try {
+            // both are literals, so this never goes to DNS
+            return InetAddress.getByName(host).equals(InetAddress.getByName(altName));
+        } catch(UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private static String commonName(X509Certificate certificate) {
+        try {
+            List<Rdn> rdns = new LdapName(certificate.getSubjectX500Principal().getName()).getRdns();
+            // the list starts with the least specific name
+            for(int i = rdns.size() - 1; i >= 0; i--) {
+                if("CN".equalsIgnoreCase(rdns.get(i).getType())) {
+                    return rdns.get(i).getValue().toString();
+                }
+            }
+        } catch(InvalidNameException e) {
+            return null;
+        }
+        return null;
+    }
+}
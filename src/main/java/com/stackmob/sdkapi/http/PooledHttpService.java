@@ -0,0 +1,879 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.http;
+
+import com.stackmob.sdkapi.http.exceptions.AccessDeniedException;
+import com.stackmob.sdkapi.http.exceptions.ConnectionFailedException;
+import com.stackmob.sdkapi.http.exceptions.TimeoutException;
+import com.stackmob.sdkapi.http.exceptions.WhitelistException;
+import com.stackmob.sdkapi.http.request.DeleteRequest;
+import com.stackmob.sdkapi.http.request.GetRequest;
+import com.stackmob.sdkapi.http.request.HttpRequest;
+import com.stackmob.sdkapi.http.request.HttpRequestWithBody;
+import com.stackmob.sdkapi.http.request.PostRequest;
+import com.stackmob.sdkapi.http.request.PutRequest;
+import com.stackmob.sdkapi.http.response.HttpResponse;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An HttpService which keeps connections to each host open between requests, so that calls to the same host after the
+ * first don't pay for a TCP or TLS handshake. Each host has its own pool of at most maxConnectionsPerHost connections;
+ * a request waits up to the connect timeout for one to come free, and connections left idle for longer than the idle
+ * timeout are closed rather than reused. URLs are checked against the whitelist before a connection is leased, so a
+ * request which isn't allowed never holds one.
+ *
+ * By default every response body is read straight away and its connection goes back to the pool, so responses can be
+ * used just as with any other HttpService. Streaming is opt in: with a bufferLimit, bodies over that many bytes are
+ * streamed, and hold their connection until they've been read to the end or the response is closed, so then always
+ * read or close a response you haven't read with {@link HttpResponse#getBody()}.
+ *
+ * GET and DELETE requests are retried once on a new connection if a pooled connection turns out to have been closed
+ * by the server. Failures other than timeouts are thrown as {@link ConnectionFailedException}. A request whose URL or
+ * headers contain a CR or LF is rejected with an IllegalArgumentException before it's sent.
+ */
+public class PooledHttpService extends HttpService {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLISECONDS = 30000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLISECONDS = 5000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLISECONDS = 30000;
+    // read every body before returning the response
+    public static final int DEFAULT_BUFFER_LIMIT = Integer.MAX_VALUE;
+
+    private static final Charset ASCII = Charset.forName("ISO-8859-1");
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    // the largest array most VMs will allocate. longer bodies are always streamed
+    private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+    private final Set<String> whitelist = new HashSet<String>();
+    private final ExecutorService executor;
+    private final int maxConnectionsPerHost;
+    private final long idleTimeoutMilliseconds;
+    private final int connectTimeoutMilliseconds;
+    private final int readTimeoutMilliseconds;
+    private final int bufferLimit;
+    private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsReused = new AtomicLong();
+    private final AtomicLong connectionsEvicted = new AtomicLong();
+
+    /**
+     * create a new PooledHttpService with the default limits and timeouts
+     * @param whitelist the domains requests may be sent to. a domain also allows all of its subdomains
+     * @param executor the executor to run async requests in. it isn't shut down by this class
+     */
+    public PooledHttpService(Collection<String> whitelist, ExecutorService executor) {
+        this(whitelist, executor, DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_IDLE_TIMEOUT_MILLISECONDS,
+                DEFAULT_CONNECT_TIMEOUT_MILLISECONDS, DEFAULT_READ_TIMEOUT_MILLISECONDS, DEFAULT_BUFFER_LIMIT);
+    }
+
+    /**
+     * create a new PooledHttpService
+     * @param whitelist the domains requests may be sent to. a domain also allows all of its subdomains
+     * @param executor the executor to run async requests in. it isn't shut down by this class
+     * @param maxConnectionsPerHost the most connections to open to any one host at once
+     * @param idleTimeoutMilliseconds how long a connection can sit unused in the pool before it's closed
+     * @param connectTimeoutMilliseconds how long to wait for a connection, either from the pool or a new one
+     * @param readTimeoutMilliseconds how long to wait for each read from a connection
+     * @param bufferLimit the largest response body to read before returning the response. larger bodies are streamed,
+     *                    and hold their connection until they're read to the end or the response is closed.
+     *                    {@link #DEFAULT_BUFFER_LIMIT} reads every body
+     */
+    public PooledHttpService(Collection<String> whitelist, ExecutorService executor, int maxConnectionsPerHost, long idleTimeoutMilliseconds,
+                             int connectTimeoutMilliseconds, int readTimeoutMilliseconds, int bufferLimit) {
+        if(maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be positive");
+        }
+        if(idleTimeoutMilliseconds < 0 || connectTimeoutMilliseconds < 0 || readTimeoutMilliseconds < 0 || bufferLimit < 0) {
+            throw new IllegalArgumentException("timeouts and bufferLimit can't be negative");
+        }
+        for(String domain : whitelist) {
+            this.whitelist.add(domain.toLowerCase(Locale.ENGLISH));
+        }
+        this.executor = executor;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeoutMilliseconds = idleTimeoutMilliseconds;
+        this.connectTimeoutMilliseconds = connectTimeoutMilliseconds;
+        this.readTimeoutMilliseconds = readTimeoutMilliseconds;
+        this.bufferLimit = Math.min(bufferLimit, MAX_BUFFER_SIZE);
+    }
+
+    @Override
+    public boolean isWhitelisted(String url) {
+        try {
+            return isWhitelisted(new URL(url));
+        } catch(MalformedURLException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public HttpResponse get(GetRequest req) throws AccessDeniedException, TimeoutException {
+        return execute("GET", req);
+    }
+
+    @Override
+    public Future<HttpResponse> getAsync(GetRequest req) throws AccessDeniedException {
+        return executeAsync("GET", req);
+    }
+
+    @Override
+    public HttpResponse post(PostRequest req) throws AccessDeniedException, TimeoutException {
+        return execute("POST", req);
+    }
+
+    @Override
+    public Future<HttpResponse> postAsync(PostRequest req) throws AccessDeniedException {
+        return executeAsync("POST", req);
+    }
+
+    @Override
+    public HttpResponse put(PutRequest req) throws AccessDeniedException, TimeoutException {
+        return execute("PUT", req);
+    }
+
+    @Override
+    public Future<HttpResponse> putAsync(PutRequest req) throws AccessDeniedException {
+        return executeAsync("PUT", req);
+    }
+
+    @Override
+    public HttpResponse delete(DeleteRequest req) throws AccessDeniedException, TimeoutException {
+        return execute("DELETE", req);
+    }
+
+    @Override
+    public Future<HttpResponse> deleteAsync(DeleteRequest req) throws AccessDeniedException {
+        return executeAsync("DELETE", req);
+    }
+
+    /**
+     * close every pooled connection which has been idle for longer than the idle timeout. this is also done as
+     * connections are leased and returned, so it only needs calling to free connections to hosts which are no longer
+     * being called
+     * @return the number of connections closed
+     */
+    public int evictIdleConnections() {
+        int evicted = 0;
+        long now = System.currentTimeMillis();
+        for(Pool pool : pools.values()) {
+            evicted += pool.evictIdle(now);
+        }
+        return evicted;
+    }
+
+    /**
+     * close every idle connection in the pools. leased connections are closed when they're returned
+     */
+    public void closeIdleConnections() {
+        for(Pool pool : pools.values()) {
+            Connection connection;
+            while((connection = pool.idle.pollLast()) != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of connections opened so far
+     */
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    /**
+     * @return the number of requests so far which were sent on a pooled connection rather than a new one
+     */
+    public long getConnectionsReused() {
+        return connectionsReused.get();
+    }
+
+    /**
+     * @return the number of connections closed so far for being idle too long
+     */
+    public long getConnectionsEvicted() {
+        return connectionsEvicted.get();
+    }
+
+    /**
+     * @return the number of connections currently leased to requests or unread responses
+     */
+    public int getLeasedConnections() {
+        int leased = 0;
+        for(Pool pool : pools.values()) {
+            leased += maxConnectionsPerHost - pool.permits.availablePermits();
+        }
+        return leased;
+    }
+
+    /**
+     * @return the number of connections currently idle in the pools
+     */
+    public int getIdleConnections() {
+        int idle = 0;
+        for(Pool pool : pools.values()) {
+            idle += pool.idle.size();
+        }
+        return idle;
+    }
+
+    private boolean isWhitelisted(URL url) {
+        String protocol = url.getProtocol();
+        if(!"http".equals(protocol) && !"https".equals(protocol)) {
+            return false;
+        }
+        String host = url.getHost().toLowerCase(Locale.ENGLISH);
+        for(String domain : whitelist) {
+            if(host.equals(domain) || host.endsWith("." + domain)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Future<HttpResponse> executeAsync(final String method, final HttpRequest req) throws AccessDeniedException {
+        // check before queueing so that requests which aren't allowed fail straight away
+        if(!isWhitelisted(req.getUrl())) {
+            throw new WhitelistException(req.getUrl().getHost());
+        }
+        checkHead(req);
+        return executor.submit(new Callable<HttpResponse>() {
+            @Override
+            public HttpResponse call() throws Exception {
+                return execute(method, req);
+            }
+        });
+    }
+
+    private HttpResponse execute(String method, HttpRequest req) throws AccessDeniedException, TimeoutException {
+        URL url = req.getUrl();
+        if(!isWhitelisted(url)) {
+            throw new WhitelistException(url.getHost());
+        }
+        checkHead(req);
+        Pool pool = poolFor(url);
+        boolean retried = false;
+        while(true) {
+            Connection connection;
+            try {
+                connection = pool.lease(url.toString());
+            } catch(SocketTimeoutException e) {
+                throw new TimeoutException(url.toString());
+            } catch(IOException e) {
+                throw new ConnectionFailedException(url.toString(), e);
+            }
+            boolean handedOff = false;
+            try {
+                send(method, req, connection);
+                HttpResponse response = receive(pool, connection);
+                handedOff = true;
+                return response;
+            } catch(SocketTimeoutException e) {
+                throw new TimeoutException(url.toString());
+            } catch(IOException e) {
+                // a pooled connection the server has since closed fails before any of the response arrives
+                if(connection.reused && !connection.responseStarted && !(req instanceof HttpRequestWithBody) && !retried) {
+                    retried = true;
+                    continue;
+                }
+                throw new ConnectionFailedException(url.toString(), e);
+            } finally {
+                if(!handedOff) {
+                    pool.discard(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * make sure nothing in a request can end a line of its head early, which would let it add headers or smuggle in a
+     * second request on a pooled connection
+     * @throws IllegalArgumentException if the URL or a header contains a CR or LF
+     */
+    private static void checkHead(HttpRequest req) {
+        if(hasLineBreak(req.getUrl().getFile())) {
+            throw new IllegalArgumentException("the URL can't contain line breaks");
+        }
+        if(req.getHeaders() != null) {
+            for(Header header : req.getHeaders()) {
+                if(hasLineBreak(header.getName()) || hasLineBreak(header.getValue())) {
+                    throw new IllegalArgumentException("header names and values can't contain line breaks");
+                }
+            }
+        }
+    }
+
+    private static boolean hasLineBreak(String s) {
+        return s != null && (s.indexOf('\r') != -1 || s.indexOf('\n') != -1);
+    }
+
+    private Pool poolFor(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String key = url.getProtocol() + "://" + url.getHost().toLowerCase(Locale.ENGLISH) + ":" + port;
+        Pool pool = pools.get(key);
+        if(pool == null) {
+            Pool created = new Pool(url.getProtocol(), url.getHost(), port);
+            pool = pools.putIfAbsent(key, created);
+            if(pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    private void send(String method, HttpRequest req, Connection connection) throws IOException {
+        URL url = req.getUrl();
+        StringBuilder head = new StringBuilder(method).append(' ');
+        head.append(url.getFile().length() == 0 ? "/" : url.getFile()).append(" HTTP/1.1\r\n");
+        head.append("Host: ").append(url.getHost());
+        if(url.getPort() != -1 && url.getPort() != url.getDefaultPort()) {
+            head.append(':').append(url.getPort());
+        }
+        head.append("\r\n");
+        if(req.getHeaders() != null) {
+            for(Header header : req.getHeaders()) {
+                String name = header.getName();
+                // framing and connection headers are managed here
+                if(!"Host".equalsIgnoreCase(name) && !"Content-Length".equalsIgnoreCase(name)
+                        && !"Transfer-Encoding".equalsIgnoreCase(name) && !"Connection".equalsIgnoreCase(name)) {
+                    head.append(name).append(": ").append(header.getValue()).append("\r\n");
+                }
+            }
+        }
+        HttpRequestWithBody withBody = req instanceof HttpRequestWithBody ? (HttpRequestWithBody) req : null;
+        if(withBody != null) {
+            if(withBody.isChunked()) {
+                head.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                head.append("Content-Length: ").append(withBody.getContentLength()).append("\r\n");
+            }
+        }
+        head.append("\r\n");
+        connection.out.write(head.toString().getBytes(ASCII));
+        if(withBody != null) {
+            if(withBody.isChunked()) {
+                ChunkedOutputStream chunked = new ChunkedOutputStream(connection.out);
+                withBody.writeBody(chunked);
+                chunked.finish();
+            } else {
+                withBody.writeBody(connection.out);
+            }
+        }
+        connection.out.flush();
+    }
+
+    private HttpResponse receive(Pool pool, Connection connection) throws IOException {
+        String statusLine;
+        int code;
+        Set<Header> headers;
+        do {
+            statusLine = readLine(connection.in);
+            if(statusLine == null) {
+                throw new EOFException("the connection was closed before the response");
+            }
+            connection.responseStarted = true;
+            String[] status = statusLine.split(" ", 3);
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch(RuntimeException e) {
+                throw new IOException("malformed status line: " + statusLine);
+            }
+            headers = readHeaders(connection.in);
+        } while(code >= 100 && code < 200);
+
+        boolean keepAlive = statusLine.startsWith("HTTP/1.1");
+        String transferEncoding = null;
+        long contentLength = -1;
+        for(Header header : headers) {
+            if("Connection".equalsIgnoreCase(header.getName())) {
+                keepAlive = keepAlive && !"close".equalsIgnoreCase(header.getValue().trim());
+            } else if("Transfer-Encoding".equalsIgnoreCase(header.getName())) {
+                transferEncoding = header.getValue().trim();
+            } else if("Content-Length".equalsIgnoreCase(header.getName())) {
+                try {
+                    contentLength = Long.parseLong(header.getValue().trim());
+                } catch(NumberFormatException e) {
+                    throw new IOException("malformed Content-Length: " + header.getValue());
+                }
+            }
+        }
+
+        InputStream framed;
+        if(code == 204 || code == 304) {
+            contentLength = 0;
+            framed = new LengthInputStream(connection.in, 0);
+        } else if(transferEncoding != null && transferEncoding.toLowerCase(Locale.ENGLISH).endsWith("chunked")) {
+            contentLength = -1;
+            framed = new ChunkedInputStream(connection.in);
+        } else if(contentLength >= 0) {
+            framed = new LengthInputStream(connection.in, contentLength);
+        } else {
+            // the body runs until the server closes the connection
+            framed = connection.in;
+            keepAlive = false;
+        }
+
+        ReleasingInputStream body = new ReleasingInputStream(framed, pool, connection, keepAlive);
+        // size the buffer to the body when its length is known, and grow it up to the limit when it isn't
+        byte[] buffered = new byte[contentLength >= 0 ? (int) Math.min(contentLength, bufferLimit) : Math.min(INITIAL_BUFFER_SIZE, bufferLimit)];
+        int length = 0;
+        int read = 0;
+        while(length < bufferLimit) {
+            if(length == buffered.length) {
+                if(contentLength >= 0) {
+                    break;
+                }
+                buffered = Arrays.copyOf(buffered, (int) Math.min(2L * buffered.length, bufferLimit));
+            }
+            read = body.read(buffered, length, buffered.length - length);
+            if(read == -1) {
+                break;
+            }
+            length += read;
+        }
+        if(read == -1 || body.finished()) {
+            return new PooledResponse(code, headers, length == buffered.length ? buffered : Arrays.copyOf(buffered, length), null);
+        }
+        return new PooledResponse(code, headers, Arrays.copyOf(buffered, length), body);
+    }
+
+    private static Set<Header> readHeaders(InputStream in) throws IOException {
+        Set<Header> headers = new HashSet<Header>();
+        String line;
+        while((line = readLine(in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if(colon > 0) {
+                headers.add(new Header(line.substring(0, colon).trim(), line.substring(colon + 1).trim()));
+            }
+        }
+        if(line == null) {
+            throw new EOFException("the connection was closed in the response headers");
+        }
+        return headers;
+    }
+
+    /**
+     * @return the next CRLF terminated line, without the terminator, or null if the stream has ended
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while((b = in.read()) != '\n') {
+            if(b == -1) {
+                if(line.size() == 0) {
+                    return null;
+                }
+                throw new EOFException("the connection was closed mid line");
+            }
+            if(line.size() == MAX_LINE_LENGTH) {
+                throw new IOException("response line too long");
+            }
+            line.write(b);
+        }
+        String s = new String(line.toByteArray(), ASCII);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    /**
+     * the connections to one scheme, host and port
+     */
+    private final class Pool {
+        final String scheme;
+        final String host;
+        final int port;
+        final Semaphore permits = new Semaphore(maxConnectionsPerHost, true);
+        // most recently used first, so that the oldest connections are the ones left to go idle
+        final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<Connection>();
+
+        Pool(String scheme, String host, int port) {
+            this.scheme = scheme;
+            this.host = host;
+            this.port = port;
+        }
+
+        Connection lease(String url) throws IOException, TimeoutException {
+            try {
+                if(!permits.tryAcquire(connectTimeoutMilliseconds, TimeUnit.MILLISECONDS)) {
+                    throw new TimeoutException(url);
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TimeoutException(url);
+            }
+            boolean leased = false;
+            try {
+                long now = System.currentTimeMillis();
+                Connection connection;
+                while((connection = idle.pollFirst()) != null) {
+                    if(now - connection.idleSince > idleTimeoutMilliseconds) {
+                        connection.close();
+                        connectionsEvicted.incrementAndGet();
+                    } else {
+                        connectionsReused.incrementAndGet();
+                        connection.reused = true;
+                        connection.responseStarted = false;
+                        connection.leased = true;
+                        leased = true;
+                        return connection;
+                    }
+                }
+                connection = open();
+                connectionsOpened.incrementAndGet();
+                connection.leased = true;
+                leased = true;
+                return connection;
+            } finally {
+                if(!leased) {
+                    permits.release();
+                }
+            }
+        }
+
+        void release(Connection connection) {
+            if(!connection.giveBack()) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            connection.idleSince = now;
+            idle.offerFirst(connection);
+            permits.release();
+            evictIdle(now);
+        }
+
+        void discard(Connection connection) {
+            if(!connection.giveBack()) {
+                return;
+            }
+            connection.close();
+            permits.release();
+        }
+
+        int evictIdle(long now) {
+            int evicted = 0;
+            Iterator<Connection> oldestFirst = idle.descendingIterator();
+            while(oldestFirst.hasNext()) {
+                Connection connection = oldestFirst.next();
+                if(now - connection.idleSince <= idleTimeoutMilliseconds) {
+                    break;
+                }
+                if(idle.removeLastOccurrence(connection)) {
+                    connection.close();
+                    connectionsEvicted.incrementAndGet();
+                    evicted++;
+                }
+            }
+            return evicted;
+        }
+
+        private Connection open() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), connectTimeoutMilliseconds);
+                socket.setSoTimeout(readTimeoutMilliseconds);
+                socket.setTcpNoDelay(true);
+                if("https".equals(scheme)) {
+                    SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, host, port, true);
+                    ssl.startHandshake();
+                    if(!Hostnames.matches(host, (X509Certificate) ssl.getSession().getPeerCertificates()[0])) {
+                        throw new SSLPeerUnverifiedException("the certificate doesn't match " + host);
+                    }
+                    socket = ssl;
+                }
+                return new Connection(socket);
+            } catch(IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+    }
+
+    private static final class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        volatile long idleSince;
+        boolean reused = false;
+        boolean responseStarted = false;
+        private boolean leased = false;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        /**
+         * @return true if the connection was leased, so it's the caller's to return to the pool or close
+         */
+        synchronized boolean giveBack() {
+            boolean wasLeased = leased;
+            leased = false;
+            return wasLeased;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch(IOException e) {
+                // it's being thrown away either way
+            }
+        }
+    }
+
+    /**
+     * a response body which gives its connection back to the pool once it has been read to the end, or closes it if
+     * the body is closed first
+     */
+    private static final class ReleasingInputStream extends InputStream {
+        private final InputStream in;
+        private final Pool pool;
+        private final Connection connection;
+        private final boolean keepAlive;
+        private boolean done = false;
+
+        ReleasingInputStream(InputStream in, Pool pool, Connection connection, boolean keepAlive) {
+            this.in = in;
+            this.pool = pool;
+            this.connection = connection;
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(done) {
+                return -1;
+            }
+            if(len == 0) {
+                return 0;
+            }
+            int read;
+            try {
+                read = in.read(b, off, len);
+            } catch(IOException e) {
+                finish(false);
+                throw e;
+            }
+            if(read == -1) {
+                finish(keepAlive);
+            }
+            return read;
+        }
+
+        @Override
+        public synchronized void close() {
+            finish(false);
+        }
+
+        synchronized boolean finished() throws IOException {
+            if(!done && in instanceof LengthInputStream && ((LengthInputStream) in).remaining == 0) {
+                finish(keepAlive);
+            }
+            return done;
+        }
+
+        private void finish(boolean reusable) {
+            if(!done) {
+                done = true;
+                if(reusable) {
+                    pool.release(connection);
+                } else {
+                    pool.discard(connection);
+                }
+            }
+        }
+    }
+
+    private static final class LengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        LengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(remaining == 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if(read == -1) {
+                throw new EOFException("the connection was closed before the end of the body");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+
+    private static final class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining = 0;
+        private boolean first = true;
+        private boolean eof = false;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(eof) {
+                return -1;
+            }
+            if(remaining == 0) {
+                if(!first) {
+                    // the CRLF after the last chunk's data
+                    readLine(in);
+                }
+                first = false;
+                String size = readLine(in);
+                if(size == null) {
+                    throw new EOFException("the connection was closed before the end of the body");
+                }
+                int extension = size.indexOf(';');
+                try {
+                    remaining = Long.parseLong((extension == -1 ? size : size.substring(0, extension)).trim(), 16);
+                } catch(NumberFormatException e) {
+                    throw new IOException("malformed chunk size: " + size);
+                }
+                if(remaining == 0) {
+                    readHeaders(in);
+                    eof = true;
+                    return -1;
+                }
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if(read == -1) {
+                throw new EOFException("the connection was closed before the end of the body");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+
+    private static final class ChunkedOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final byte[] buffer = new byte[8192];
+        private int count = 0;
+
+        ChunkedOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(count == buffer.length) {
+                flushChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(len >= buffer.length) {
+                flushChunk();
+                writeChunk(b, off, len);
+            } else {
+                if(len > buffer.length - count) {
+                    flushChunk();
+                }
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+            }
+        }
+
+        /**
+         * write the last chunk. the underlying stream is left open for the next request
+         */
+        void finish() throws IOException {
+            flushChunk();
+            out.write("0\r\n\r\n".getBytes(ASCII));
+        }
+
+        private void flushChunk() throws IOException {
+            writeChunk(buffer, 0, count);
+            count = 0;
+        }
+
+        private void writeChunk(byte[] b, int off, int len) throws IOException {
+            if(len > 0) {
+                out.write((Integer.toHexString(len) + "\r\n").getBytes(ASCII));
+                out.write(b, off, len);
+                out.write("\r\n".getBytes(ASCII));
+            }
+        }
+    }
+
+    private static final class PooledResponse extends HttpResponse {
+        PooledResponse(Integer code, Set<Header> headers, byte[] body, InputStream rest) {
+            super(code, headers, body, rest);
+        }
+    }
+}
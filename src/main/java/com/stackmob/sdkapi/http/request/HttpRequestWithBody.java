@@ -17,18 +17,229 @@
 package com.stackmob.sdkapi.http.request;
 import com.stackmob.sdkapi.http.Header;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
 import java.util.Set;
 
+/**
+ * An HTTP request with a body. The body can be a String, which is encoded with the charset in the Content-Type header
+ * or UTF-8 if there is none, raw bytes in a byte[] or ByteBuffer, or a stream which is only read when the request is
+ * sent. Binary bodies are never copied or encoded, and a stream whose length isn't known is sent with chunked transfer
+ * encoding, so large uploads don't have to be held in memory. Requests with binary bodies are made with the static
+ * factories of subclasses like {@link PostRequest#ofBytes(String, Set, byte[])}.
+ *
+ * HttpService implementations should send the body with {@link #writeBody(OutputStream)}, giving a Content-Length of
+ * {@link #getContentLength()} or using chunked transfer encoding if {@link #isChunked()}. A streamed body can only be
+ * sent once.
+ */
 public abstract class HttpRequestWithBody extends HttpRequest {
+    private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    private final boolean stringBody;
     private String body;
+    private byte[] bodyBytes;
+    private ByteBuffer bodyBuffer;
+    private InputStream bodyStream;
+    private long contentLength = -1;
+    private boolean streamed = false;
 
     public HttpRequestWithBody(String url, Set<Header> headers, String body) throws MalformedURLException {
         super(url, headers);
+        this.stringBody = true;
         this.body = body;
     }
 
-    public String getBody() {
+    /**
+     * create a new request with a binary body, which is exactly one of <code>bytes</code>, <code>buffer</code> and
+     * <code>stream</code>. subclasses take binary bodies through static factories, since constructors overloaded on
+     * the body's type would make a null body ambiguous
+     * @param contentLength the length of a streamed body in bytes, or -1 if it isn't known
+     */
+    HttpRequestWithBody(String url, Set<Header> headers, byte[] bytes, ByteBuffer buffer, InputStream stream, long contentLength) throws MalformedURLException {
+        super(url, headers);
+        this.stringBody = false;
+        if(stream != null) {
+            this.bodyStream = stream;
+            this.contentLength = contentLength < 0 ? -1 : contentLength;
+        } else if(buffer != null) {
+            this.bodyBuffer = buffer.duplicate();
+            this.contentLength = this.bodyBuffer.remaining();
+        } else {
+            this.bodyBytes = bytes == null ? new byte[0] : bytes;
+            this.contentLength = this.bodyBytes.length;
+        }
+    }
+
+    /**
+     * get the request body as a String, decoding a binary body and reading a streamed one into memory if necessary
+     * @return the request body
+     * @throws IllegalStateException if the body has already been sent as a stream, or couldn't be read
+     */
+    public synchronized String getBody() {
+        if(!stringBody && body == null) {
+            try {
+                body = new String(getBodyBytes(), getCharset());
+            } catch(IOException e) {
+                throw new IllegalStateException("the request body could not be read", e);
+            }
+        }
         return body;
     }
-}
\ No newline at end of file
+
+    /**
+     * get the request body as bytes, encoding a String body and reading a streamed one into memory if necessary
+     * @return the request body. the array may be shared with the request, so don't modify it
+     * @throws IOException if a streamed body couldn't be read
+     * @throws IllegalStateException if the body has already been sent as a stream
+     */
+    public synchronized byte[] getBodyBytes() throws IOException {
+        if(bodyBytes == null) {
+            if(stringBody) {
+                bodyBytes = body == null ? new byte[0] : body.getBytes(getCharset());
+            } else if(bodyBuffer != null) {
+                bodyBytes = new byte[bodyBuffer.remaining()];
+                bodyBuffer.duplicate().get(bodyBytes);
+            } else {
+                checkNotStreamed();
+                bodyBytes = readFully(bodyStream);
+                bodyStream = null;
+            }
+            contentLength = bodyBytes.length;
+        }
+        return bodyBytes;
+    }
+
+    /**
+     * get the request body as a stream. a streamed body is handed out as it is, and can't be read again
+     * @return the request body as a stream
+     * @throws IllegalStateException if the body has already been sent as a stream
+     */
+    public synchronized InputStream getBodyStream() {
+        if(bodyStream != null) {
+            checkNotStreamed();
+            streamed = true;
+            return bodyStream;
+        }
+        if(bodyBytes == null && bodyBuffer == null) {
+            bodyBytes = body == null ? new byte[0] : body.getBytes(getCharset());
+        }
+        if(bodyBytes == null) {
+            final ByteBuffer remaining = bodyBuffer.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return remaining.hasRemaining() ? remaining.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if(len == 0) {
+                        return 0;
+                    }
+                    if(!remaining.hasRemaining()) {
+                        return -1;
+                    }
+                    int read = Math.min(len, remaining.remaining());
+                    remaining.get(b, off, read);
+                    return read;
+                }
+
+                @Override
+                public int available() {
+                    return remaining.remaining();
+                }
+            };
+        }
+        return new ByteArrayInputStream(bodyBytes);
+    }
+
+    /**
+     * write the request body, without copying binary bodies or reading streamed ones into memory
+     * @param out the stream to write the body to. it isn't closed
+     * @throws IOException if the body couldn't be read or written
+     * @throws IllegalStateException if the body has already been sent as a stream
+     */
+    public void writeBody(OutputStream out) throws IOException {
+        ByteBuffer buffer;
+        byte[] bytes;
+        synchronized(this) {
+            buffer = bodyBuffer == null ? null : bodyBuffer.duplicate();
+            bytes = bodyBytes;
+        }
+        if(buffer != null) {
+            if(buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                Channels.newChannel(out).write(buffer);
+            }
+        } else if(bytes != null || stringBody) {
+            out.write(getBodyBytes());
+        } else {
+            InputStream in = getBodyStream();
+            try {
+                byte[] chunk = new byte[8192];
+                int read;
+                while((read = in.read(chunk)) != -1) {
+                    out.write(chunk, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * get the length of the request body
+     * @return the length of the body in bytes, or -1 if it's a stream of unknown length
+     */
+    public synchronized long getContentLength() {
+        if(stringBody && bodyBytes == null) {
+            bodyBytes = body == null ? new byte[0] : body.getBytes(getCharset());
+            contentLength = bodyBytes.length;
+        }
+        return contentLength;
+    }
+
+    /**
+     * determine whether the request body should be sent with chunked transfer encoding
+     * @return true if the body is a stream of unknown length, false otherwise
+     */
+    public boolean isChunked() {
+        return getContentLength() < 0;
+    }
+
+    /**
+     * get the charset a String body is encoded with: the one in the Content-Type header, or UTF-8 if there is none
+     * @return the charset of the body
+     */
+    public Charset getCharset() {
+        return Header.charsetOf(getHeaders(), DEFAULT_CHARSET);
+    }
+
+    private void checkNotStreamed() {
+        if(streamed) {
+            throw new IllegalStateException("the request body has already been sent as a stream");
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
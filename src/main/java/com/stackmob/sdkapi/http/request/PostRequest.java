@@ -18,7 +18,9 @@ package com.stackmob.sdkapi.http.request;
 
 import com.stackmob.sdkapi.http.Header;
 
+import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
 import java.util.Set;
 
 public class PostRequest extends HttpRequestWithBody {
@@ -29,4 +31,47 @@ public class PostRequest extends HttpRequestWithBody {
     public PostRequest(String url, String body) throws MalformedURLException {
         super(url, EmptyHeaders, body);
     }
+
+    private PostRequest(String url, Set<Header> headers, byte[] bytes, ByteBuffer buffer, InputStream stream, long contentLength) throws MalformedURLException {
+        super(url, headers, bytes, buffer, stream, contentLength);
+    }
+
+    /**
+     * create a new request with a binary body. the array isn't copied, so don't modify it until the request is sent
+     * @param url the URL to send the request to
+     * @param headers the request headers
+     * @param body the request body
+     * @return the request
+     * @throws MalformedURLException if the URL is invalid
+     */
+    public static PostRequest ofBytes(String url, Set<Header> headers, byte[] body) throws MalformedURLException {
+        return new PostRequest(url, headers, body, null, null, -1);
+    }
+
+    /**
+     * create a new request with a binary body made of the remaining bytes of a buffer. the buffer's position isn't
+     * changed and its contents aren't copied, so don't modify them until the request is sent
+     * @param url the URL to send the request to
+     * @param headers the request headers
+     * @param body the request body
+     * @return the request
+     * @throws MalformedURLException if the URL is invalid
+     */
+    public static PostRequest ofBuffer(String url, Set<Header> headers, ByteBuffer body) throws MalformedURLException {
+        return new PostRequest(url, headers, null, body, null, -1);
+    }
+
+    /**
+     * create a new request whose body is read from a stream as it's sent
+     * @param url the URL to send the request to
+     * @param headers the request headers
+     * @param body the stream to read the request body from. it's closed once it has been read
+     * @param contentLength the length of the body in bytes, or -1 if it isn't known, in which case the body is sent
+     *                      with chunked transfer encoding
+     * @return the request
+     * @throws MalformedURLException if the URL is invalid
+     */
+    public static PostRequest ofStream(String url, Set<Header> headers, InputStream body, long contentLength) throws MalformedURLException {
+        return new PostRequest(url, headers, null, null, body, contentLength);
+    }
 }
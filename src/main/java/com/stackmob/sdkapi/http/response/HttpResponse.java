@@ -17,12 +17,37 @@
 package com.stackmob.sdkapi.http.response;
 
 import com.stackmob.sdkapi.http.Header;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 import java.util.Set;
 
-public class HttpResponse {
+/**
+ * An HTTP response. The body can be read as a String with {@link #getBody()}, as raw bytes with
+ * {@link #getBodyBytes()}, or as a stream with {@link #getBodyStream()} or {@link #getBodyChannel()}. Responses whose
+ * body is streamed are only read when one of these is called, and the String is only decoded when getBody() is called,
+ * so large bodies can be copied or parsed without ever being held in memory whole.
+ *
+ * A streamed body can only be read once: after getBodyStream() or getBodyChannel() has handed it out, the other
+ * accessors throw IllegalStateException. A streamed response should be closed if its body isn't read.
+ */
+public class HttpResponse implements Closeable {
+    private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
     private Integer code;
     private Set<Header> headers;
+    private Charset charset;
     private String body;
+    private byte[] bodyBytes;
+    private InputStream bodyStream;
+    private boolean streamed = false;
 
     /**
      * create a new HTTP response
@@ -33,6 +58,7 @@ public class HttpResponse {
     protected HttpResponse(Integer code, Set<Header> headers, String body) {
         this.code = code;
         this.headers = headers;
+        this.charset = Header.charsetOf(headers, DEFAULT_CHARSET);
         if(body == null) {
             this.body = "";
         } else {
@@ -40,6 +66,31 @@ public class HttpResponse {
         }
     }
 
+    /**
+     * create a new HTTP response from the raw body: the bytes read so far, followed by whatever is left in a stream,
+     * which is only read as it's needed. the body is decoded with the charset in the Content-Type header, or UTF-8 if
+     * there is none, the first time getBody() is called. this takes the body in two parts rather than overloading the
+     * String constructor, so that subclasses passing a null String body still compile
+     * @param code the response code
+     * @param headers the response headers
+     * @param body the start of the raw response body, or the whole of it if <code>rest</code> is null. the array isn't
+     *             copied
+     * @param rest the stream to read the rest of the response body from, or null if <code>body</code> is all of it.
+     *             it's closed once it has been read, or when the response is closed
+     */
+    protected HttpResponse(Integer code, Set<Header> headers, byte[] body, InputStream rest) {
+        this.code = code;
+        this.headers = headers;
+        this.charset = Header.charsetOf(headers, DEFAULT_CHARSET);
+        if(rest == null) {
+            this.bodyBytes = body == null ? new byte[0] : body;
+        } else if(body == null || body.length == 0) {
+            this.bodyStream = rest;
+        } else {
+            this.bodyStream = new SequenceInputStream(new ByteArrayInputStream(body), rest);
+        }
+    }
+
     /**
      * get the response code
      * @return the response code
@@ -57,18 +108,114 @@ public class HttpResponse {
     }
 
     /**
-     * get the response body
+     * get the charset the body is decoded with: the one in the Content-Type header, or UTF-8 if there is none
+     * @return the charset of the body
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * get the response body, reading and decoding it if that hasn't been done yet
      * @return the response body, or the empty string if there was none
+     * @throws IllegalStateException if the body has already been handed out as a stream, or couldn't be read
      */
-    public String getBody() {
+    public synchronized String getBody() {
+        if(body == null) {
+            try {
+                body = new String(getBodyBytes(), charset);
+            } catch(IOException e) {
+                throw new IllegalStateException("the response body could not be read", e);
+            }
+        }
         return body;
     }
 
     /**
-     * convenience method for getBody().length > 0
+     * get the raw response body, reading it if that hasn't been done yet. the array is shared, so don't modify it
+     * @return the raw response body, or an empty array if there was none
+     * @throws IOException if the body couldn't be read
+     * @throws IllegalStateException if the body has already been handed out as a stream
+     */
+    public synchronized byte[] getBodyBytes() throws IOException {
+        if(bodyBytes == null) {
+            if(body != null) {
+                bodyBytes = body.getBytes(charset);
+            } else {
+                checkNotStreamed();
+                bodyBytes = readFully(bodyStream);
+                bodyStream = null;
+            }
+        }
+        return bodyBytes;
+    }
+
+    /**
+     * get the response body as a stream. if the body hasn't been read yet this is the underlying stream, which the
+     * caller is responsible for closing, and the body can't be read again
+     * @return the response body as a stream
+     * @throws IllegalStateException if the body has already been handed out as a stream
+     */
+    public synchronized InputStream getBodyStream() {
+        if(bodyStream != null) {
+            checkNotStreamed();
+            streamed = true;
+            return bodyStream;
+        }
+        if(bodyBytes == null) {
+            bodyBytes = body.getBytes(charset);
+        }
+        return new ByteArrayInputStream(bodyBytes);
+    }
+
+    /**
+     * get the response body as a channel, with the same rules as {@link #getBodyStream()}
+     * @return the response body as a channel
+     * @throws IllegalStateException if the body has already been handed out as a stream
+     */
+    public ReadableByteChannel getBodyChannel() {
+        return Channels.newChannel(getBodyStream());
+    }
+
+    /**
+     * close the body stream if it was never read. this does nothing if the body was read or handed out as a stream
+     * @throws IOException if the stream couldn't be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(bodyStream != null && !streamed) {
+            InputStream unread = bodyStream;
+            bodyStream = null;
+            bodyBytes = new byte[0];
+            unread.close();
+        }
+    }
+
+    /**
+     * convenience method for getBody().length > 0. this reads a streamed body
      * @return true if it does have a body, false otherwise.
      */
     boolean hasBody() {
-        return this.body.length() > 0;
+        return this.getBody().length() > 0;
+    }
+
+    private void checkNotStreamed() {
+        if(streamed) {
+            throw new IllegalStateException("the response body has already been read as a stream");
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
     }
-}
\ No newline at end of file
+}
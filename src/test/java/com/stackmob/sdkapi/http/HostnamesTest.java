@@ -0,0 +1,92 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.http;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HostnamesTest {
+    // CN=legacy.example.net, with the subjectAltNames *.example.com, example.org and 127.0.0.1
+    private static final String SAN_CERTIFICATE =
+            "-----BEGIN CERTIFICATE-----\n"
+            + "MIIBgTCCASagAwIBAgIISkUailuarW8wCgYIKoZIzj0EAwIwHTEbMBkGA1UEAxMS\n"
+            + "bGVnYWN5LmV4YW1wbGUubmV0MCAXDTI2MTAxNzA0MTIxM1oYDzIxMjYwOTIzMDQx\n"
+            + "MjEzWjAdMRswGQYDVQQDExJsZWdhY3kuZXhhbXBsZS5uZXQwWTATBgcqhkjOPQIB\n"
+            + "BggqhkjOPQMBBwNCAATPYtkXBHa/r/LtGvmn/UzO4r5o7dmOwUeUE05g4zYm59up\n"
+            + "uCGwVBxfVRpzyGSw83egUM+xXqJ73YRCOXjgQ7hPo04wTDAdBgNVHQ4EFgQUL6uj\n"
+            + "zeb3YA1CfuKM3LYmFKPN1OswKwYDVR0RBCQwIoINKi5leGFtcGxlLmNvbYILZXhh\n"
+            + "bXBsZS5vcmeHBH8AAAEwCgYIKoZIzj0EAwIDSQAwRgIhANLllgrvSWglrRONE/gh\n"
+            + "sC/1xzUOdhOC08Xs4sdbjdhaAiEAr/BhlG51GxMKOW04PbQRq+7nsqfrED3no5Xj\n"
+            + "HkE0HFM=\n"
+            + "-----END CERTIFICATE-----\n";
+    // CN=only-cn.example.net, O=Example, with no subjectAltNames
+    private static final String CN_CERTIFICATE =
+            "-----BEGIN CERTIFICATE-----\n"
+            + "MIIBejCCAR+gAwIBAgIIZTLfvZ61DK4wCgYIKoZIzj0EAwIwMDEQMA4GA1UEChMH\n"
+            + "RXhhbXBsZTEcMBoGA1UEAxMTb25seS1jbi5leGFtcGxlLm5ldDAgFw0yNjEwMTcw\n"
+            + "NDEyMTRaGA8yMTI2MDkyMzA0MTIxNFowMDEQMA4GA1UEChMHRXhhbXBsZTEcMBoG\n"
+            + "A1UEAxMTb25seS1jbi5leGFtcGxlLm5ldDBZMBMGByqGSM49AgEGCCqGSM49AwEH\n"
+            + "A0IABLMmI17VyYCiZj5LjRX+feVKQzZ+KView2UjL2sRehlIRQIHeVpw4eJnFQSU\n"
+            + "yqtwCnVCS44zKpLoUys+l3JEF4ijITAfMB0GA1UdDgQWBBTUnjakIZkQQAf3WLE1\n"
+            + "qvs8lrR2aDAKBggqhkjOPQQDAgNJADBGAiEA8dxSmeSxW1Jf69ZrkpiWmTyRqKkr\n"
+            + "yzhR/B4uSjnDFhsCIQD2QpKdfP8XUzOSJFmp/reTotF3ZM5hq9eAc7QmtNby9g==\n"
+            + "-----END CERTIFICATE-----\n";
+
+    @Test
+    public void subjectAltNamesMatch() throws Exception {
+        X509Certificate certificate = certificate(SAN_CERTIFICATE);
+        assertTrue(Hostnames.matches("api.example.com", certificate));
+        assertTrue(Hostnames.matches("EXAMPLE.org", certificate));
+        assertTrue(Hostnames.matches("127.0.0.1", certificate));
+        assertFalse(Hostnames.matches("example.com", certificate));
+        assertFalse(Hostnames.matches("a.api.example.com", certificate));
+        assertFalse(Hostnames.matches("127.0.0.2", certificate));
+    }
+
+    @Test
+    public void commonNameIsIgnoredWhenThereAreDnsNames() throws Exception {
+        assertFalse(Hostnames.matches("legacy.example.net", certificate(SAN_CERTIFICATE)));
+    }
+
+    @Test
+    public void commonNameMatchesWithoutSubjectAltNames() throws Exception {
+        X509Certificate certificate = certificate(CN_CERTIFICATE);
+        assertTrue(Hostnames.matches("only-cn.example.net", certificate));
+        assertFalse(Hostnames.matches("example.net", certificate));
+        assertFalse(Hostnames.matches("Example", certificate));
+    }
+
+    @Test
+    public void wildcardsMatchOneLabel() {
+        assertTrue(Hostnames.matchesName("api.example.com", "*.example.com"));
+        assertTrue(Hostnames.matchesName("API.Example.com.", "*.example.com"));
+        assertFalse(Hostnames.matchesName("example.com", "*.example.com"));
+        assertFalse(Hostnames.matchesName("a.b.example.com", "*.example.com"));
+        assertFalse(Hostnames.matchesName("example.com", "*.com"));
+        assertFalse(Hostnames.matchesName("evilexample.com", "example.com"));
+    }
+
+    private static X509Certificate certificate(String pem) throws Exception {
+        return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(new ByteArrayInputStream(pem.getBytes("US-ASCII")));
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright 2012-2013 StackMob
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.stackmob.sdkapi.http;
+
+import com.stackmob.sdkapi.http.exceptions.TimeoutException;
+import com.stackmob.sdkapi.http.exceptions.WhitelistException;
+import com.stackmob.sdkapi.http.request.GetRequest;
+import com.stackmob.sdkapi.http.response.HttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PooledHttpServiceTest {
+    private static final int BIG_BODY_SIZE = 100000;
+
+    private ExecutorService executor;
+    private TestServer server;
+    private PooledHttpService http;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = new TestServer(executor);
+        http = new PooledHttpService(Arrays.asList("localhost"), executor);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        http.closeIdleConnections();
+        server.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void requestsReuseKeptAliveConnections() throws Exception {
+        assertEquals("hello", http.get(new GetRequest(server.url("/hello"))).getBody());
+        assertEquals("hello", http.get(new GetRequest(server.url("/hello"))).getBody());
+        assertEquals(1, http.getConnectionsOpened());
+        assertEquals(1, http.getConnectionsReused());
+        assertEquals(1, http.getIdleConnections());
+        assertEquals(0, http.getLeasedConnections());
+        assertEquals(1, server.accepted.get());
+    }
+
+    @Test
+    public void whitelistIsCheckedBeforeLeasing() throws Exception {
+        try {
+            http.get(new GetRequest("http://127.0.0.1:" + server.port() + "/hello"));
+            fail("a request to a host off the whitelist was sent");
+        } catch(WhitelistException e) {
+            // expected
+        }
+        assertEquals(0, http.getConnectionsOpened());
+        assertEquals(0, http.getLeasedConnections());
+        assertEquals(0, server.accepted.get());
+    }
+
+    @Test
+    public void unreadResponsesDontHoldConnections() throws Exception {
+        http = new PooledHttpService(Arrays.asList("localhost"), executor, 2, 30000, 200, 5000, PooledHttpService.DEFAULT_BUFFER_LIMIT);
+        for(int i = 0; i < 10; i++) {
+            assertEquals(200, http.get(new GetRequest(server.url("/big"))).getCode().intValue());
+        }
+        assertEquals(0, http.getLeasedConnections());
+        assertEquals(1, http.getConnectionsOpened());
+    }
+
+    @Test
+    public void connectionsPerHostAreLimited() throws Exception {
+        http = new PooledHttpService(Arrays.asList("localhost"), executor, 2, 30000, 200, 5000, 1024);
+        HttpResponse first = http.get(new GetRequest(server.url("/big")));
+        HttpResponse second = http.get(new GetRequest(server.url("/big")));
+        assertEquals(2, http.getLeasedConnections());
+        try {
+            http.get(new GetRequest(server.url("/hello")));
+            fail("a third connection was leased");
+        } catch(TimeoutException e) {
+            // expected
+        }
+        assertEquals(BIG_BODY_SIZE, first.getBodyBytes().length);
+        assertEquals(1, http.getLeasedConnections());
+        assertEquals("hello", http.get(new GetRequest(server.url("/hello"))).getBody());
+        second.close();
+        assertEquals(0, http.getLeasedConnections());
+        assertEquals(2, server.accepted.get());
+    }
+
+    @Test
+    public void idleConnectionsAreEvicted() throws Exception {
+        http = new PooledHttpService(Arrays.asList("localhost"), executor, 2, 50, 5000, 5000, PooledHttpService.DEFAULT_BUFFER_LIMIT);
+        http.get(new GetRequest(server.url("/hello")));
+        assertEquals(1, http.getIdleConnections());
+        Thread.sleep(150);
+        assertEquals(1, http.evictIdleConnections());
+        assertEquals(1, http.getConnectionsEvicted());
+        assertEquals(0, http.getIdleConnections());
+        http.get(new GetRequest(server.url("/hello")));
+        assertEquals(2, http.getConnectionsOpened());
+        assertEquals(0, http.getConnectionsReused());
+    }
+
+    @Test
+    public void headersWithLineBreaksAreRejected() throws Exception {
+        try {
+            http.get(new GetRequest(server.url("/hello"), new HashSet<Header>(Collections.singleton(new Header("X-Name", "a\r\nX-Injected: b")))));
+            fail("a header with a line break was sent");
+        } catch(IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, http.getConnectionsOpened());
+        assertEquals(0, server.accepted.get());
+    }
+
+    /**
+     * a keep-alive HTTP/1.1 server which answers GET /hello with "hello" and GET /big with {@link #BIG_BODY_SIZE} bytes
+     */
+    private static final class TestServer {
+        final ServerSocket serverSocket;
+        final AtomicInteger accepted = new AtomicInteger();
+
+        TestServer(final ExecutorService executor) throws IOException {
+            serverSocket = new ServerSocket(0);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while(true) {
+                            final Socket socket = serverSocket.accept();
+                            accepted.incrementAndGet();
+                            executor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    serve(socket);
+                                }
+                            });
+                        }
+                    } catch(IOException e) {
+                        // closed
+                    }
+                }
+            });
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        String url(String path) {
+            return "http://localhost:" + port() + path;
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        private static void serve(Socket socket) {
+            try {
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                String requestLine;
+                while((requestLine = readLine(in)) != null) {
+                    String line;
+                    do {
+                        line = readLine(in);
+                    } while(line != null && line.length() > 0);
+                    byte[] body;
+                    if(requestLine.startsWith("GET /big ")) {
+                        body = new byte[BIG_BODY_SIZE];
+                        Arrays.fill(body, (byte) 'x');
+                    } else {
+                        body = "hello".getBytes("ISO-8859-1");
+                    }
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + "\r\n\r\n").getBytes("ISO-8859-1"));
+                    out.write(body);
+                    out.flush();
+                }
+            } catch(IOException e) {
+                // the client went away
+            } finally {
+                try {
+                    socket.close();
+                } catch(IOException e) {
+                    // done either way
+                }
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while((b = in.read()) != '\n') {
+                if(b == -1) {
+                    return null;
+                }
+                if(b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString("ISO-8859-1");
+        }
+    }
+}